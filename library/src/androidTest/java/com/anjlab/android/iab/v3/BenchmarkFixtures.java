@@ -0,0 +1,80 @@
+package com.anjlab.android.iab.v3;
+
+import android.util.Base64;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+
+/**
+ * Payloads shared by the on-device benchmarks, shaped like what Play Billing returns, and
+ * a key pair standing in for the Play Console license key.
+ */
+final class BenchmarkFixtures
+{
+    static final String LOG_TAG = "iabv3.benchmark";
+
+    private static final String TOKEN = "hjkofllmdlbebfoioeghpban.AO-J1OzmD1Qh2CNX5mLbNvUoR7b6L5F0yyPqLBXYD"
+            + "Xqq3L7nNi1sR8o2kKWtQH0dR46VwWAqW3c2eTNu7RL0k4I5w4WnqPEUb6Nl7kIlz7hM0ZN4jA";
+
+    private static KeyPair keyPair;
+
+    private BenchmarkFixtures()
+    {
+    }
+
+    /**
+     * A one-time product purchase as {@code Purchase.getOriginalJson()} returns it.
+     */
+    static String inAppPurchaseJson(String productId)
+    {
+        return "{\"orderId\":\"GPA.3377-4478-2719-53116\",\"packageName\":\"com.example.app\","
+                + "\"productId\":\"" + productId + "\",\"purchaseTime\":1718292135842,"
+                + "\"purchaseState\":0,\"purchaseToken\":\"" + TOKEN + "\","
+                + "\"obfuscatedAccountId\":\"a1b2c3d4e5\",\"quantity\":1,\"acknowledged\":false}";
+    }
+
+    /**
+     * A subscription purchase as {@code Purchase.getOriginalJson()} returns it.
+     */
+    static String subscriptionPurchaseJson(String productId)
+    {
+        return "{\"orderId\":\"GPA.3349-2171-7305-80771..0\",\"packageName\":\"com.example.app\","
+                + "\"productId\":\"" + productId + "\",\"purchaseTime\":1718292135842,"
+                + "\"purchaseState\":0,\"purchaseToken\":\"" + TOKEN + "\","
+                + "\"obfuscatedAccountId\":\"a1b2c3d4e5\",\"obfuscatedProfileId\":\"p-42\","
+                + "\"quantity\":1,\"autoRenewing\":true,\"acknowledged\":true,"
+                + "\"productIds\":[\"" + productId + "\"],"
+                + "\"accountIdentifiers\":{\"obfuscatedAccountId\":\"a1b2c3d4e5\"}}";
+    }
+
+    /**
+     * RSA key generation is slow; one pair serves every benchmark.
+     */
+    static synchronized KeyPair keyPair() throws GeneralSecurityException
+    {
+        if (keyPair == null)
+        {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            keyPair = generator.generateKeyPair();
+        }
+        return keyPair;
+    }
+
+    static String licenseKey() throws GeneralSecurityException
+    {
+        return Base64.encodeToString(keyPair().getPublic().getEncoded(), Base64.NO_WRAP);
+    }
+
+    static String sign(PrivateKey key, String data) throws GeneralSecurityException
+    {
+        Signature signature = Signature.getInstance("SHA1withRSA");
+        signature.initSign(key);
+        signature.update(data.getBytes(StandardCharsets.UTF_8));
+        return Base64.encodeToString(signature.sign(), Base64.NO_WRAP);
+    }
+}
@@ -0,0 +1,85 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertEquals;
+
+import android.util.Log;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Sequential and batched {@link PurchaseBatchVerifier} throughput at 10, 100 and 1000
+ * purchases, on a device. Runs with the other instrumented tests and logs its numbers
+ * under {@link BenchmarkFixtures#LOG_TAG}; it only asserts that both agree.
+ */
+public class PurchaseBatchVerifierBenchmark
+{
+    private static int countValid(boolean[] valid)
+    {
+        int count = 0;
+        for (boolean each : valid)
+        {
+            count += each ? 1 : 0;
+        }
+        return count;
+    }
+
+    @Test
+    public void batchSizes() throws Exception
+    {
+        final String licenseKey = BenchmarkFixtures.licenseKey();
+        PurchaseBatchVerifier.Check check =
+                purchase -> Security.verifyPurchase(purchase.productId, licenseKey,
+                                                    purchase.json, purchase.signature);
+        List<ParsedPurchase> all = new ArrayList<>(1000);
+        for (int i = 0; i < 1000; i++)
+        {
+            String json = BenchmarkFixtures.inAppPurchaseJson("sku" + i);
+            all.add(PurchaseJsonParser.parse(
+                    json, BenchmarkFixtures.sign(BenchmarkFixtures.keyPair().getPrivate(), json)));
+        }
+        PurchaseBatchVerifier verifier = new PurchaseBatchVerifier(
+                BillingExecutors.verification(), BillingExecutors.VERIFICATION_THREADS);
+        int rounds = 5;
+
+        for (int i = 0; i < 2; i++)
+        {
+            verifier.verify(all, check);
+        }
+
+        for (int size : new int[] { 10, 100, 1000 })
+        {
+            List<ParsedPurchase> batch = all.subList(0, size);
+
+            int sequentialValid = 0;
+            long start = System.nanoTime();
+            for (int round = 0; round < rounds; round++)
+            {
+                for (ParsedPurchase purchase : batch)
+                {
+                    sequentialValid += check.isValid(purchase) ? 1 : 0;
+                }
+            }
+            long sequentialNanos = System.nanoTime() - start;
+
+            int batchValid = 0;
+            start = System.nanoTime();
+            for (int round = 0; round < rounds; round++)
+            {
+                batchValid += countValid(verifier.verify(batch, check));
+            }
+            long batchNanos = System.nanoTime() - start;
+
+            Log.i(BenchmarkFixtures.LOG_TAG, String.format(Locale.US,
+                    "verify %d purchases on %d threads: sequential %.2f ms, batched %.2f ms (%.2fx)",
+                    size, BillingExecutors.VERIFICATION_THREADS,
+                    sequentialNanos / 1e6 / rounds, batchNanos / 1e6 / rounds,
+                    (double) sequentialNanos / batchNanos));
+            assertEquals(size * rounds, sequentialValid);
+            assertEquals(sequentialValid, batchValid);
+        }
+    }
+}
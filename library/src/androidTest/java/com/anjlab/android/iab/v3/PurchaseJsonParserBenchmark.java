@@ -0,0 +1,82 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertEquals;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares {@link PurchaseJsonParser} with the {@code JSONObject} code it replaced, on a
+ * device where the timings mean something. Runs with the other instrumented tests and logs
+ * its numbers under {@link BenchmarkFixtures#LOG_TAG}; it only asserts that both paths
+ * agree, so it cannot flake on a slow device.
+ */
+public class PurchaseJsonParserBenchmark
+{
+    /**
+     * The parser {@link PurchaseJsonParser} replaced.
+     */
+    private static PurchaseData parseWithJsonObject(String json) throws JSONException
+    {
+        JSONObject object = new JSONObject(json);
+        PurchaseData data = new PurchaseData();
+        data.orderId = object.optString(Constants.RESPONSE_ORDER_ID);
+        data.packageName = object.optString(Constants.RESPONSE_PACKAGE_NAME);
+        data.productId = object.optString(Constants.RESPONSE_PRODUCT_ID);
+        long purchaseTimeMillis = object.optLong(Constants.RESPONSE_PURCHASE_TIME, 0);
+        data.purchaseTime = purchaseTimeMillis != 0 ? new Date(purchaseTimeMillis) : null;
+        data.purchaseState = PurchaseJsonParser.toPurchaseState(
+                object.optInt(Constants.RESPONSE_PURCHASE_STATE, PurchaseState.Canceled.ordinal()));
+        data.purchaseToken = object.getString(Constants.RESPONSE_PURCHASE_TOKEN);
+        data.autoRenewing = object.optBoolean(Constants.RESPONSE_AUTO_RENEWING);
+        return data;
+    }
+
+    @Test
+    public void jsonReaderAgainstJsonObject() throws Exception
+    {
+        List<String> payloads = Arrays.asList(BenchmarkFixtures.inAppPurchaseJson("premium"),
+                                              BenchmarkFixtures.subscriptionPurchaseJson("monthly"));
+        int warmup = 2000;
+        int iterations = 20000;
+
+        for (int i = 0; i < warmup; i++)
+        {
+            String json = payloads.get(i % payloads.size());
+            parseWithJsonObject(json);
+            PurchaseJsonParser.parse(json, null);
+        }
+
+        long jsonObjectChecksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            jsonObjectChecksum += parseWithJsonObject(payloads.get(i % payloads.size())).purchaseToken.length();
+        }
+        long jsonObjectNanos = System.nanoTime() - start;
+
+        long streamingChecksum = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            streamingChecksum += PurchaseJsonParser.parse(payloads.get(i % payloads.size()), null)
+                    .purchaseToken.length();
+        }
+        long streamingNanos = System.nanoTime() - start;
+
+        Log.i(BenchmarkFixtures.LOG_TAG, String.format(Locale.US,
+                "purchase JSON parse: JSONObject %.0f ns/op, JsonReader %.0f ns/op (%.2fx)",
+                (double) jsonObjectNanos / iterations,
+                (double) streamingNanos / iterations,
+                (double) jsonObjectNanos / streamingNanos));
+        assertEquals(jsonObjectChecksum, streamingChecksum);
+    }
+}
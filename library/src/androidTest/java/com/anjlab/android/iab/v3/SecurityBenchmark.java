@@ -0,0 +1,72 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertEquals;
+
+import android.util.Base64;
+import android.util.Log;
+
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Locale;
+
+/**
+ * Verifications per second of {@link Security#verify} with its reused per-thread
+ * verifiers, against the per-call {@code Signature} setup they replaced, on a device.
+ * Runs with the other instrumented tests and logs its numbers under
+ * {@link BenchmarkFixtures#LOG_TAG}; it only asserts that both agree.
+ */
+public class SecurityBenchmark
+{
+    /**
+     * What {@link Security#verify} did before verifiers were reused.
+     */
+    private static boolean verifyWithFreshSignature(PublicKey key, String data, String signature)
+            throws GeneralSecurityException
+    {
+        Signature sig = Signature.getInstance("SHA1withRSA");
+        sig.initVerify(key);
+        sig.update(data.getBytes());
+        return sig.verify(Base64.decode(signature, Base64.DEFAULT));
+    }
+
+    @Test
+    public void reusedVerifiersAgainstFreshSignatures() throws GeneralSecurityException
+    {
+        PublicKey key = Security.getPublicKey(BenchmarkFixtures.licenseKey());
+        String json = BenchmarkFixtures.subscriptionPurchaseJson("monthly");
+        String signature = BenchmarkFixtures.sign(BenchmarkFixtures.keyPair().getPrivate(), json);
+        int warmup = 500;
+        int iterations = 5000;
+
+        for (int i = 0; i < warmup; i++)
+        {
+            verifyWithFreshSignature(key, json, signature);
+            Security.verify(key, json, signature);
+        }
+
+        int freshVerified = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            freshVerified += verifyWithFreshSignature(key, json, signature) ? 1 : 0;
+        }
+        long freshNanos = System.nanoTime() - start;
+
+        int reusedVerified = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            reusedVerified += Security.verify(key, json, signature) ? 1 : 0;
+        }
+        long reusedNanos = System.nanoTime() - start;
+
+        Log.i(BenchmarkFixtures.LOG_TAG, String.format(Locale.US,
+                "signature verification: fresh Signature %.0f/s, reused verifier %.0f/s",
+                iterations * 1e9 / freshNanos, iterations * 1e9 / reusedNanos));
+        assertEquals(iterations, freshVerified);
+        assertEquals(iterations, reusedVerified);
+    }
+}
@@ -16,16 +16,21 @@
 package com.anjlab.android.iab.v3;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
 
 class BillingBase
 {
 	private Context context;
+	private BillingStore store;
 
 	BillingBase(Context context)
+	{
+		this(context, new SharedPreferencesBillingStore(context));
+	}
+
+	BillingBase(Context context, BillingStore store)
 	{
 		this.context = context;
+		this.store = store;
 	}
 
 	Context getContext()
@@ -33,60 +38,33 @@ class BillingBase
 		return context;
 	}
 
-	String getPreferencesBaseKey()
+	BillingStore getStore()
 	{
-		return getContext().getPackageName() + "_preferences";
+		return store;
 	}
 
-	private SharedPreferences getPreferences()
+	String getPreferencesBaseKey()
 	{
-		return PreferenceManager.getDefaultSharedPreferences(getContext());
+		return getContext().getPackageName() + "_preferences";
 	}
 
 	boolean saveString(String key, String value)
 	{
-		SharedPreferences sp = getPreferences();
-		if (sp != null)
-		{
-			SharedPreferences.Editor spe = sp.edit();
-			spe.putString(key, value);
-			spe.commit();
-			return true;
-		}
-		return false;
+		return store.edit().putString(key, value).commit();
 	}
 
 	String loadString(String key, String defValue)
 	{
-		SharedPreferences sp = getPreferences();
-		if (sp != null)
-		{
-			return sp.getString(key, defValue);
-		}
-		return defValue;
+		return store.getString(key, defValue);
 	}
 
 	boolean saveBoolean(String key, Boolean value)
 	{
-		SharedPreferences sp = getPreferences();
-		if (sp != null)
-		{
-			SharedPreferences.Editor spe = sp.edit();
-			spe.putBoolean(key, value);
-			spe.commit();
-			return true;
-		}
-		return false;
+		return store.edit().putBoolean(key, value).commit();
 	}
 
 	boolean loadBoolean(String key, boolean defValue)
 	{
-		SharedPreferences sp = getPreferences();
-		if (sp != null)
-		{
-			return sp.getBoolean(key, defValue);
-		}
-		return defValue;
+		return store.getBoolean(key, defValue);
 	}
 }
-
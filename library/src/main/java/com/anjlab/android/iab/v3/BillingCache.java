@@ -15,31 +15,173 @@
  */
 package com.anjlab.android.iab.v3;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
+import android.util.Log;
+import androidx.annotation.Nullable;
 
+import java.io.IOException;
+import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * In-memory copy of one kind of owned purchases, persisted through a {@link BillingStore}.
+ *
+ * <p>By default every mutation is written through before it returns. With
+ * {@link #enableWriteBehind(Executor)} mutations only update memory and a background flush
+ * writes the latest state; mutations that arrive while a flush is queued are folded into
+ * it. {@link #flushNow()} makes pending changes durable, and it runs on its own once the
+ * app's UI is hidden.
+ *
+ * <p>Caches for the same key in one process share a generation counter that every write
+ * bumps, so a read only has to compare two longs to know whether another instance has
+ * written since. The version kept in the store is only consulted by
+ * {@link #checkForExternalChanges()}, for writes made by other processes.
+ *
+ * <p>Readers never lock: the content is an immutable {@link Snapshot} published through a
+ * volatile field, and every mutation builds a new one under the cache lock. A reader
+ * therefore sees either all of a mutation or none of it, whichever thread it runs on.
+ */
 class BillingCache extends BillingBase
 {
-	private static final String ENTRY_DELIMITER = "#####";
-	private static final String LINE_DELIMITER = ">>>>>";
+	private static final String LOG_TAG = "iabv3.cache";
 	private static final String VERSION_KEY = ".version";
+	private static final String DATA_KEY = ".bin";
+	private static final long FIRST_RETRY_DELAY_MILLIS = 1000L;
+	private static final long MAX_RETRY_DELAY_MILLIS = 60_000L;
+
+	private static final ConcurrentHashMap<String, AtomicLong> GENERATIONS = new ConcurrentHashMap<>();
+	// Makes versions written by different processes distinct.
+	private static final String PROCESS_TAG = Long.toHexString(new SecureRandom().nextLong());
+	private static final AtomicLong VERSION_SEQUENCE = new AtomicLong();
 
-	private HashMap<String, PurchaseInfo> data;
+	private volatile Snapshot snapshot;
 	private String cacheKey;
 	private String version;
+	// Doubles as the write lock for this key: writes and generation bumps happen
+	// in the same order for every instance.
+	private final AtomicLong sharedGeneration;
+
+	// Guarded by this. dirty: memory holds changes the store does not have yet;
+	// flushing: a write is on its way, so the stored version is about to change.
+	private boolean dirty;
+	private boolean flushing;
+
+	/**
+	 * Immutable content of the cache, together with the shared generation it was read
+	 * at or written as. The key list is built once so listing owned products does not
+	 * allocate.
+	 */
+	private static final class Snapshot
+	{
+		final Map<String, PurchaseInfo> entries;
+		final List<String> productIds;
+		final long generation;
+
+		/**
+		 * Takes ownership of {@code entries}; the caller must not touch it afterwards.
+		 */
+		Snapshot(HashMap<String, PurchaseInfo> entries, long generation)
+		{
+			this(Collections.unmodifiableMap(entries),
+				 Collections.unmodifiableList(new ArrayList<>(entries.keySet())),
+				 generation);
+		}
+
+		private Snapshot(Map<String, PurchaseInfo> entries, List<String> productIds, long generation)
+		{
+			this.entries = entries;
+			this.productIds = productIds;
+			this.generation = generation;
+		}
+
+		Snapshot withGeneration(long generation)
+		{
+			return new Snapshot(entries, productIds, generation);
+		}
+	}
+
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	@Nullable
+	private volatile Executor writeBehindExecutor;
+	@Nullable
+	private ComponentCallbacks2 backgroundFlusher;
+	// Guarded by this. Delay before the next write-behind retry of a failed flush.
+	private long retryDelayMillis = FIRST_RETRY_DELAY_MILLIS;
+	@Nullable
+	private Handler retryHandler;
+
+	private final Runnable flushTask = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			flushScheduled.set(false);
+			flushNow();
+		}
+	};
 
 	BillingCache(Context context, String key)
 	{
-		super(context);
-		data = new HashMap<>();
+		this(context, new SharedPreferencesBillingStore(context), key);
+	}
+
+	BillingCache(Context context, BillingStore store, String key)
+	{
+		this(context, store, key, true);
+	}
+
+	private BillingCache(Context context, BillingStore store, String key, boolean load)
+	{
+		super(context, store);
 		cacheKey = key;
-		load();
+		sharedGeneration = sharedGeneration(getPreferencesDataKey());
+		if (load)
+		{
+			snapshot = load();
+		}
+		else
+		{
+			version = "";
+			snapshot = new Snapshot(new HashMap<String, PurchaseInfo>(), sharedGeneration.get());
+		}
+	}
+
+	/**
+	 * A cache that starts out empty instead of reading the store, for when reading it
+	 * failed. Like a damaged record, this only costs the local copy until the next refresh
+	 * from Google.
+	 */
+	static BillingCache empty(Context context, BillingStore store, String key)
+	{
+		return new BillingCache(context, store, key, false);
+	}
+
+	private static AtomicLong sharedGeneration(String key)
+	{
+		AtomicLong generation = GENERATIONS.get(key);
+		if (generation == null)
+		{
+			AtomicLong created = new AtomicLong();
+			generation = GENERATIONS.putIfAbsent(key, created);
+			if (generation == null)
+			{
+				generation = created;
+			}
+		}
+		return generation;
 	}
 
 	private String getPreferencesCacheKey()
@@ -47,83 +189,399 @@ class BillingCache extends BillingBase
 		return getPreferencesBaseKey() + cacheKey;
 	}
 
+	private String getPreferencesDataKey()
+	{
+		return getPreferencesCacheKey() + DATA_KEY;
+	}
+
 	private String getPreferencesVersionKey()
 	{
 		return getPreferencesCacheKey() + VERSION_KEY;
 	}
 
-	private void load()
+	private Snapshot load()
 	{
-		String[] entries = loadString(getPreferencesCacheKey(), "").split(Pattern.quote(ENTRY_DELIMITER));
-		for (String entry : entries)
+		// Read the generation first: a write that lands after it bumps the counter,
+		// so the next read reloads instead of trusting what we read here.
+		long generation = sharedGeneration.get();
+		HashMap<String, PurchaseInfo> data = new HashMap<>();
+		byte[] bytes = getStore().getBytes(getPreferencesDataKey());
+		if (bytes == null)
+		{
+			migrateLegacyData(data);
+		}
+		else
 		{
-			if (!TextUtils.isEmpty(entry))
+			try
 			{
-				String[] parts = entry.split(Pattern.quote(LINE_DELIMITER));
-				if (parts.length > 2)
+				data.putAll(BillingCacheFormat.decode(bytes));
+			}
+			catch (IOException e)
+			{
+				// A damaged record only costs us the local copy: the next refresh
+				// from Google repopulates it.
+				Log.e(LOG_TAG, "Failed to read " + getPreferencesDataKey(), e);
+			}
+		}
+		version = getCurrentVersion();
+		return new Snapshot(data, generation);
+	}
+
+	/**
+	 * Moves entries written by releases that kept the cache as one delimited string
+	 * into the binary record, then drops the old key.
+	 */
+	private void migrateLegacyData(HashMap<String, PurchaseInfo> data)
+	{
+		String legacy = loadString(getPreferencesCacheKey(), null);
+		if (legacy == null)
+		{
+			return;
+		}
+		data.putAll(BillingCacheFormat.decodeLegacy(legacy));
+		try
+		{
+			getStore().edit()
+					  .putBytes(getPreferencesDataKey(), BillingCacheFormat.encode(data))
+					  .remove(getPreferencesCacheKey())
+					  .commit();
+		}
+		catch (IOException e)
+		{
+			Log.e(LOG_TAG, "Failed to migrate " + getPreferencesCacheKey(), e);
+		}
+	}
+
+	/**
+	 * Switches this cache to write-behind: mutations return as soon as memory is updated
+	 * and are persisted on {@code executor}. Pending changes are also flushed when the
+	 * app's UI goes to the background.
+	 */
+	void enableWriteBehind(Executor executor)
+	{
+		writeBehindExecutor = executor;
+		if (backgroundFlusher == null)
+		{
+			backgroundFlusher = new ComponentCallbacks2()
+			{
+				@Override
+				public void onTrimMemory(int level)
 				{
-					data.put(parts[0], new PurchaseInfo(parts[1], parts[2]));
+					if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+					{
+						scheduleFlush();
+					}
 				}
-				else if (parts.length > 1)
+
+				@Override
+				public void onConfigurationChanged(Configuration newConfig)
 				{
-					data.put(parts[0], new PurchaseInfo(parts[1], null));
 				}
+
+				@Override
+				public void onLowMemory()
+				{
+					scheduleFlush();
+				}
+			};
+			getContext().registerComponentCallbacks(backgroundFlusher);
+		}
+	}
+
+	/**
+	 * Flushes pending changes and stops listening for the app going to the background.
+	 */
+	void release()
+	{
+		flushNow();
+		if (backgroundFlusher != null)
+		{
+			getContext().unregisterComponentCallbacks(backgroundFlusher);
+			backgroundFlusher = null;
+		}
+	}
+
+	/**
+	 * Called after a mutation has marked the cache dirty, without holding the cache lock.
+	 */
+	private void persist()
+	{
+		if (writeBehindExecutor == null)
+		{
+			flushNow();
+		}
+		else
+		{
+			scheduleFlush();
+		}
+	}
+
+	/**
+	 * Queues a flush on the write-behind executor unless one is queued already. The
+	 * component callbacks run on the main thread, which must not wait for store I/O.
+	 */
+	private void scheduleFlush()
+	{
+		Executor executor = writeBehindExecutor;
+		if (executor != null && flushScheduled.compareAndSet(false, true))
+		{
+			executor.execute(flushTask);
+		}
+	}
+
+	/**
+	 * Schedules another write-behind flush after a failed one, backing off up to
+	 * {@value #MAX_RETRY_DELAY_MILLIS} ms. In write-through mode the changes stay dirty
+	 * and go out with the next mutation or {@link #flushNow()}.
+	 */
+	private void scheduleRetry()
+	{
+		if (writeBehindExecutor == null)
+		{
+			return;
+		}
+		long delay;
+		synchronized (this)
+		{
+			delay = retryDelayMillis;
+			retryDelayMillis = Math.min(retryDelayMillis * 2, MAX_RETRY_DELAY_MILLIS);
+			if (retryHandler == null)
+			{
+				retryHandler = new Handler(Looper.getMainLooper());
 			}
 		}
-		version = getCurrentVersion();
+		retryHandler.postDelayed(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				scheduleFlush();
+			}
+		}, delay);
 	}
 
-	private void flush()
+	/**
+	 * Writes any pending changes and returns once they are in the store. A write already
+	 * in progress on another thread is waited for. Does nothing if there is nothing to
+	 * write. If the store fails the write, the changes stay pending.
+	 */
+	void flushNow()
 	{
-		ArrayList<String> output = new ArrayList<>();
-		for (String productId : data.keySet())
+		synchronized (sharedGeneration)
 		{
-			PurchaseInfo info = data.get(productId);
-			output.add(productId + LINE_DELIMITER + info.responseData + LINE_DELIMITER +
-					   info.signature);
+			Map<String, PurchaseInfo> entries;
+			String snapshotVersion;
+			synchronized (this)
+			{
+				if (!dirty)
+				{
+					return;
+				}
+				dirty = false;
+				flushing = true;
+				entries = snapshot.entries;
+				snapshotVersion = PROCESS_TAG + "." + VERSION_SEQUENCE.incrementAndGet();
+			}
+			boolean written = false;
+			try
+			{
+				written = getStore().edit()
+									.putBytes(getPreferencesDataKey(), BillingCacheFormat.encode(entries))
+									.putString(getPreferencesVersionKey(), snapshotVersion)
+									.commit();
+				if (!written)
+				{
+					Log.e(LOG_TAG, "Store did not commit " + getPreferencesDataKey());
+				}
+			}
+			catch (IOException e)
+			{
+				Log.e(LOG_TAG, "Failed to write " + getPreferencesDataKey(), e);
+			}
+			finally
+			{
+				if (written)
+				{
+					long generation = sharedGeneration.incrementAndGet();
+					synchronized (this)
+					{
+						flushing = false;
+						version = snapshotVersion;
+						snapshot = snapshot.withGeneration(generation);
+						retryDelayMillis = FIRST_RETRY_DELAY_MILLIS;
+					}
+				}
+				else
+				{
+					// The store still has the old version: keep the changes pending.
+					synchronized (this)
+					{
+						flushing = false;
+						dirty = true;
+					}
+				}
+			}
+			if (!written)
+			{
+				scheduleRetry();
+			}
 		}
-		saveString(getPreferencesCacheKey(), TextUtils.join(ENTRY_DELIMITER, output));
-		version = Long.toString(new Date().getTime());
-		saveString(getPreferencesVersionKey(), version);
 	}
 
 	boolean includesProduct(String productId)
 	{
-		reloadDataIfNeeded();
-		return data.containsKey(productId);
+		return current().entries.containsKey(productId);
 	}
 
+	@Nullable
 	PurchaseInfo getDetails(String productId)
 	{
-		reloadDataIfNeeded();
-		return data.containsKey(productId) ? data.get(productId) : null;
+		return current().entries.get(productId);
 	}
 
 	void put(String productId, String details, String signature)
 	{
-		reloadDataIfNeeded();
-		if (!data.containsKey(productId))
+		put(productId, new PurchaseInfo(details, signature));
+	}
+
+	/**
+	 * Adds {@code info} unless the cache already has an entry for {@code productId}. An
+	 * info built from a {@link ParsedPurchase} is stored with its decoded fields.
+	 */
+	void put(String productId, PurchaseInfo info)
+	{
+		synchronized (this)
 		{
-			data.put(productId, new PurchaseInfo(details, signature));
-			flush();
+			Snapshot current = reloadDataIfNeeded();
+			if (current.entries.containsKey(productId))
+			{
+				return;
+			}
+			HashMap<String, PurchaseInfo> next = new HashMap<>(current.entries);
+			next.put(productId, info);
+			publish(next, current);
 		}
+		persist();
 	}
 
 	void remove(String productId)
 	{
-		reloadDataIfNeeded();
-		if (data.containsKey(productId))
+		synchronized (this)
 		{
-			data.remove(productId);
-			flush();
+			Snapshot current = reloadDataIfNeeded();
+			if (!current.entries.containsKey(productId))
+			{
+				return;
+			}
+			HashMap<String, PurchaseInfo> next = new HashMap<>(current.entries);
+			next.remove(productId);
+			publish(next, current);
 		}
+		persist();
 	}
 
 	void clear()
 	{
-		reloadDataIfNeeded();
-		data.clear();
-		flush();
+		synchronized (this)
+		{
+			publish(new HashMap<String, PurchaseInfo>(), reloadDataIfNeeded());
+		}
+		persist();
+	}
+
+	/**
+	 * Makes {@code next} what readers see and marks it for writing. Called with the
+	 * cache lock held, with the snapshot {@code next} was derived from.
+	 */
+	private void publish(HashMap<String, PurchaseInfo> next, Snapshot base)
+	{
+		snapshot = new Snapshot(next, base.generation);
+		dirty = true;
+	}
+
+	/**
+	 * Starts a batch of mutations. Nothing is visible to readers and nothing is
+	 * written until {@link Transaction#commit()}, which applies the whole batch
+	 * with a single serialization and a single store commit.
+	 */
+	synchronized Transaction begin()
+	{
+		return new Transaction(reloadDataIfNeeded().entries);
+	}
+
+	/**
+	 * Replaces the whole content of the cache with {@code entries} in one write.
+	 */
+	void replaceAll(Map<String, PurchaseInfo> entries)
+	{
+		begin().replaceAll(entries).commit();
+	}
+
+	class Transaction
+	{
+		private final HashMap<String, PurchaseInfo> pending;
+		private boolean committed;
+
+		private Transaction(Map<String, PurchaseInfo> current)
+		{
+			pending = new HashMap<>(current);
+		}
+
+		/**
+		 * Same semantics as {@link BillingCache#put(String, String, String)}: an
+		 * existing entry for {@code productId} is kept.
+		 */
+		Transaction put(String productId, String details, String signature)
+		{
+			checkOpen();
+			if (!pending.containsKey(productId))
+			{
+				pending.put(productId, new PurchaseInfo(details, signature));
+			}
+			return this;
+		}
+
+		Transaction remove(String productId)
+		{
+			checkOpen();
+			pending.remove(productId);
+			return this;
+		}
+
+		Transaction clear()
+		{
+			checkOpen();
+			pending.clear();
+			return this;
+		}
+
+		Transaction replaceAll(Map<String, PurchaseInfo> entries)
+		{
+			checkOpen();
+			pending.clear();
+			pending.putAll(entries);
+			return this;
+		}
+
+		void commit()
+		{
+			checkOpen();
+			committed = true;
+			synchronized (BillingCache.this)
+			{
+				// The pending map becomes the published snapshot, hence checkOpen().
+				publish(pending, snapshot);
+			}
+			persist();
+		}
+
+		private void checkOpen()
+		{
+			if (committed)
+			{
+				throw new IllegalStateException("Transaction has already been committed");
+			}
+		}
 	}
 
 	private String getCurrentVersion()
@@ -131,23 +589,67 @@ class BillingCache extends BillingBase
 		return loadString(getPreferencesVersionKey(), "0");
 	}
 
-	private void reloadDataIfNeeded()
+	/**
+	 * The snapshot readers should see. Lock-free unless another instance has written
+	 * since this one last read or wrote, which costs one reload.
+	 */
+	private Snapshot current()
+	{
+		Snapshot current = snapshot;
+		if (current.generation == sharedGeneration.get())
+		{
+			return current;
+		}
+		synchronized (this)
+		{
+			return reloadDataIfNeeded();
+		}
+	}
+
+	/**
+	 * Called with the cache lock held.
+	 */
+	private Snapshot reloadDataIfNeeded()
+	{
+		Snapshot current = snapshot;
+		// Memory is ahead of the store until the pending write lands.
+		if (dirty || flushing)
+		{
+			return current;
+		}
+		if (current.generation != sharedGeneration.get())
+		{
+			current = load();
+			snapshot = current;
+		}
+		return current;
+	}
+
+	/**
+	 * Reloads if the store holds a version this process has neither read nor written,
+	 * which can only happen when another process shares the store. Costs a store read,
+	 * so it is not part of the regular read path.
+	 */
+	synchronized void checkForExternalChanges()
 	{
-		if (!version.equalsIgnoreCase(getCurrentVersion()))
+		if (!dirty && !flushing && !version.equals(getCurrentVersion()))
 		{
-			data.clear();
-			load();
+			snapshot = load();
 		}
 	}
 
+	/**
+	 * Product ids currently in the cache, as an unmodifiable list that later mutations
+	 * do not affect.
+	 */
 	List<String> getContents()
 	{
-		return new ArrayList<>(data.keySet());
+		return current().productIds;
 	}
 
 	@Override
 	public String toString()
 	{
-		return TextUtils.join(", ", data.keySet());
+		return TextUtils.join(", ", current().productIds);
 	}
 }
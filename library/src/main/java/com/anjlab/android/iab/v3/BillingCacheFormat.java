@@ -0,0 +1,234 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.text.TextUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Binary record format of {@link BillingCache}.
+ *
+ * <pre>
+ * int    magic ("IABC")
+ * int    format version
+ * int    record count
+ * record productId, responseData, signature, each as an int byte length
+ *        (-1 for null) followed by that many UTF-8 bytes
+ *        since version 2, then:
+ *        byte   1 if decoded fields follow, 0 if responseData was never parsed
+ *        orderId, packageName, productId, purchaseToken as strings above
+ *        long   purchase time in millis, 0 if unknown
+ *        int    PurchaseState ordinal
+ *        byte   bit 0 autoRenewing, bit 1 autoRenewing present in the JSON
+ * long   CRC32 of everything above
+ * </pre>
+ *
+ * Records carrying decoded fields load without touching the JSON. Version 1 records are
+ * still read; their entries are parsed on first use.
+ */
+final class BillingCacheFormat
+{
+	static final int MAGIC = 0x49414243;
+	static final int VERSION = 2;
+	private static final int VERSION_WITHOUT_FIELDS = 1;
+
+	private static final int AUTO_RENEWING = 1;
+	private static final int HAS_AUTO_RENEWING = 1 << 1;
+
+	private static final int HEADER_SIZE = 12;
+	private static final int CHECKSUM_SIZE = 8;
+
+	private static final String LEGACY_ENTRY_DELIMITER = "#####";
+	private static final String LEGACY_LINE_DELIMITER = ">>>>>";
+
+	private BillingCacheFormat()
+	{
+	}
+
+	static byte[] encode(Map<String, PurchaseInfo> entries) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + entries.size() * 512);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(entries.size());
+		for (Map.Entry<String, PurchaseInfo> entry : entries.entrySet())
+		{
+			PurchaseInfo info = entry.getValue();
+			writeString(out, entry.getKey());
+			writeString(out, info.responseData);
+			writeString(out, info.signature);
+			writeFields(out, info.parsed);
+		}
+		out.flush();
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeLong(crc.getValue());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @throws IOException if {@code data} is truncated, fails the checksum or was written by
+	 *                     an unknown format version
+	 */
+	static Map<String, PurchaseInfo> decode(byte[] data) throws IOException
+	{
+		if (data.length < HEADER_SIZE + CHECKSUM_SIZE)
+		{
+			throw new IOException("Cache record is truncated");
+		}
+		int bodyLength = data.length - CHECKSUM_SIZE;
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, bodyLength);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		in.skipBytes(bodyLength);
+		if (in.readLong() != crc.getValue())
+		{
+			throw new IOException("Cache record checksum mismatch");
+		}
+
+		in = new DataInputStream(new ByteArrayInputStream(data, 0, bodyLength));
+		if (in.readInt() != MAGIC)
+		{
+			throw new IOException("Not a billing cache record");
+		}
+		int version = in.readInt();
+		if (version != VERSION && version != VERSION_WITHOUT_FIELDS)
+		{
+			throw new IOException("Unsupported cache format version " + version);
+		}
+		int count = in.readInt();
+		HashMap<String, PurchaseInfo> entries = new HashMap<>(Math.max(count, 0) * 2);
+		for (int i = 0; i < count; i++)
+		{
+			String productId = readString(in);
+			String responseData = readString(in);
+			String signature = readString(in);
+			ParsedPurchase parsed = version == VERSION ? readFields(in, responseData, signature) : null;
+			entries.put(productId, parsed != null
+					? new PurchaseInfo(parsed, "")
+					: new PurchaseInfo(responseData, signature));
+		}
+		return entries;
+	}
+
+	private static void writeFields(DataOutputStream out, ParsedPurchase parsed) throws IOException
+	{
+		if (parsed == null)
+		{
+			out.writeByte(0);
+			return;
+		}
+		out.writeByte(1);
+		writeString(out, parsed.orderId);
+		writeString(out, parsed.packageName);
+		writeString(out, parsed.productId);
+		writeString(out, parsed.purchaseToken);
+		out.writeLong(parsed.purchaseTimeMillis);
+		out.writeInt(parsed.purchaseState.ordinal());
+		out.writeByte((parsed.autoRenewing ? AUTO_RENEWING : 0)
+					  | (parsed.hasAutoRenewing ? HAS_AUTO_RENEWING : 0));
+	}
+
+	private static ParsedPurchase readFields(DataInputStream in, String responseData, String signature)
+			throws IOException
+	{
+		if (in.readByte() == 0)
+		{
+			return null;
+		}
+		String orderId = readString(in);
+		String packageName = readString(in);
+		String productId = readString(in);
+		String purchaseToken = readString(in);
+		long purchaseTimeMillis = in.readLong();
+		int state = in.readInt();
+		int flags = in.readByte();
+		PurchaseState[] states = PurchaseState.values();
+		if (state < 0 || state >= states.length)
+		{
+			throw new IOException("Unknown purchase state " + state);
+		}
+		return new ParsedPurchase(responseData, signature, orderId, packageName, productId,
+								  purchaseTimeMillis, states[state], purchaseToken,
+								  (flags & AUTO_RENEWING) != 0, (flags & HAS_AUTO_RENEWING) != 0);
+	}
+
+	/**
+	 * Parses the delimiter-joined string that releases up to 3.0 kept in SharedPreferences.
+	 */
+	static Map<String, PurchaseInfo> decodeLegacy(String value)
+	{
+		HashMap<String, PurchaseInfo> entries = new HashMap<>();
+		String[] lines = value.split(Pattern.quote(LEGACY_ENTRY_DELIMITER));
+		for (String line : lines)
+		{
+			if (!TextUtils.isEmpty(line))
+			{
+				String[] parts = line.split(Pattern.quote(LEGACY_LINE_DELIMITER));
+				if (parts.length > 2)
+				{
+					entries.put(parts[0], new PurchaseInfo(parts[1], parts[2]));
+				}
+				else if (parts.length > 1)
+				{
+					entries.put(parts[0], new PurchaseInfo(parts[1], null));
+				}
+			}
+		}
+		return entries;
+	}
+
+	static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		if (value == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(utf8.length);
+		out.write(utf8);
+	}
+
+	static String readString(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0)
+		{
+			return null;
+		}
+		if (length > in.available())
+		{
+			throw new IOException("Record length " + length + " exceeds cache record size");
+		}
+		byte[] utf8 = new byte[length];
+		in.readFully(utf8);
+		return new String(utf8, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads the library owns for disk I/O and other background work.
+ */
+final class BillingExecutors
+{
+	private static final int BACKGROUND_THREADS = 2;
+	private static final long KEEP_ALIVE_SECONDS = 30L;
+
+	/**
+	 * One thread per core: signature checks are pure CPU work.
+	 */
+	static final int VERIFICATION_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+	private static volatile Executor background;
+	private static volatile Executor verification;
+
+	private BillingExecutors()
+	{
+	}
+
+	/**
+	 * A small pool of low-priority daemon threads, shared by every {@link BillingProcessor}
+	 * in the process. Idle threads exit after {@value #KEEP_ALIVE_SECONDS} seconds.
+	 */
+	static Executor background()
+	{
+		if (background == null)
+		{
+			synchronized (BillingExecutors.class)
+			{
+				if (background == null)
+				{
+					ThreadPoolExecutor executor = new ThreadPoolExecutor(
+							BACKGROUND_THREADS, BACKGROUND_THREADS,
+							KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+							new LinkedBlockingQueue<Runnable>(),
+							newThreadFactory("iabv3-background"));
+					executor.allowCoreThreadTimeOut(true);
+					background = executor;
+				}
+			}
+		}
+		return background;
+	}
+
+	/**
+	 * A pool of {@link #VERIFICATION_THREADS} threads that batches of signature checks are
+	 * split across. It is separate from {@link #background()} so that a task there can wait
+	 * for its checks without occupying the threads they need.
+	 */
+	static Executor verification()
+	{
+		if (verification == null)
+		{
+			synchronized (BillingExecutors.class)
+			{
+				if (verification == null)
+				{
+					ThreadPoolExecutor executor = new ThreadPoolExecutor(
+							VERIFICATION_THREADS, VERIFICATION_THREADS,
+							KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+							new LinkedBlockingQueue<Runnable>(),
+							newThreadFactory("iabv3-verify"));
+					executor.allowCoreThreadTimeOut(true);
+					verification = executor;
+				}
+			}
+		}
+		return verification;
+	}
+
+	static ThreadFactory newThreadFactory(final String prefix)
+	{
+		return new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				Thread thread = new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						runnable.run();
+					}
+				}, prefix + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
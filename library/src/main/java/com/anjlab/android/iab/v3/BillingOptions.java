@@ -0,0 +1,350 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Optional settings for a {@link BillingProcessor}. Anything left unset keeps the
+ * library's default behavior.
+ * <pre>
+ * BillingOptions options = BillingOptions.newBuilder()
+ *         .setStore(new FileBillingStore(context))
+ *         .build();
+ * BillingProcessor bp = new BillingProcessor(context, licenseKey, merchantId, handler, options);
+ * </pre>
+ */
+public final class BillingOptions
+{
+	@Nullable
+	private final BillingStore store;
+	private final boolean writeBehind;
+	private final boolean loadCachesAsync;
+	@Nullable
+	private final Executor executor;
+	private final int requestQueueCapacity;
+	private final long requestDeadlineMillis;
+	private final int productDetailsCacheSize;
+	private final long productDetailsTtlMillis;
+	private final List<String> catalogInAppProductIds;
+	private final List<String> catalogSubscriptionIds;
+	private final boolean persistProductDetails;
+	private final int productDetailsChunkSize;
+	private final int productDetailsMaxInFlight;
+	private final long productDetailsBatchWindowMillis;
+
+	private BillingOptions(Builder builder)
+	{
+		store = builder.store;
+		writeBehind = builder.writeBehind;
+		loadCachesAsync = builder.loadCachesAsync;
+		executor = builder.executor;
+		requestQueueCapacity = builder.requestQueueCapacity;
+		requestDeadlineMillis = builder.requestDeadlineMillis;
+		productDetailsCacheSize = builder.productDetailsCacheSize;
+		productDetailsTtlMillis = builder.productDetailsTtlMillis;
+		catalogInAppProductIds = builder.catalogInAppProductIds;
+		catalogSubscriptionIds = builder.catalogSubscriptionIds;
+		persistProductDetails = builder.persistProductDetails;
+		productDetailsChunkSize = builder.productDetailsChunkSize;
+		productDetailsMaxInFlight = builder.productDetailsMaxInFlight;
+		productDetailsBatchWindowMillis = builder.productDetailsBatchWindowMillis;
+	}
+
+	public static Builder newBuilder()
+	{
+		return new Builder();
+	}
+
+	static BillingOptions defaults()
+	{
+		return newBuilder().build();
+	}
+
+	@Nullable
+	BillingStore getStore()
+	{
+		return store;
+	}
+
+	boolean isWriteBehind()
+	{
+		return writeBehind;
+	}
+
+	boolean isLoadCachesAsync()
+	{
+		return loadCachesAsync;
+	}
+
+	@Nullable
+	Executor getExecutor()
+	{
+		return executor;
+	}
+
+	int getRequestQueueCapacity()
+	{
+		return requestQueueCapacity;
+	}
+
+	long getRequestDeadlineMillis()
+	{
+		return requestDeadlineMillis;
+	}
+
+	int getProductDetailsCacheSize()
+	{
+		return productDetailsCacheSize;
+	}
+
+	long getProductDetailsTtlMillis()
+	{
+		return productDetailsTtlMillis;
+	}
+
+	List<String> getCatalogInAppProductIds()
+	{
+		return catalogInAppProductIds;
+	}
+
+	List<String> getCatalogSubscriptionIds()
+	{
+		return catalogSubscriptionIds;
+	}
+
+	boolean isPersistProductDetails()
+	{
+		return persistProductDetails;
+	}
+
+	int getProductDetailsChunkSize()
+	{
+		return productDetailsChunkSize;
+	}
+
+	int getProductDetailsMaxInFlight()
+	{
+		return productDetailsMaxInFlight;
+	}
+
+	/**
+	 * Negative if batching is disabled.
+	 */
+	long getProductDetailsBatchWindowMillis()
+	{
+		return productDetailsBatchWindowMillis;
+	}
+
+	public static final class Builder
+	{
+		private BillingStore store;
+		private boolean writeBehind;
+		private boolean loadCachesAsync;
+		private Executor executor;
+		private int requestQueueCapacity;
+		private long requestDeadlineMillis;
+		private int productDetailsCacheSize = ProductDetailsCache.DEFAULT_MAX_ENTRIES;
+		private long productDetailsTtlMillis = ProductDetailsCache.DEFAULT_TTL_MILLIS;
+		private List<String> catalogInAppProductIds = Collections.emptyList();
+		private List<String> catalogSubscriptionIds = Collections.emptyList();
+		private boolean persistProductDetails;
+		private int productDetailsChunkSize = ProductDetailsFetcher.DEFAULT_CHUNK_SIZE;
+		private int productDetailsMaxInFlight = ProductDetailsFetcher.DEFAULT_MAX_IN_FLIGHT;
+		private long productDetailsBatchWindowMillis = -1;
+
+		private Builder()
+		{
+		}
+
+		/**
+		 * Where purchase caches and library bookkeeping are persisted. Defaults to
+		 * {@link SharedPreferencesBillingStore}.
+		 */
+		public Builder setStore(@Nullable BillingStore store)
+		{
+			this.store = store;
+			return this;
+		}
+
+		/**
+		 * When enabled, purchase cache updates return as soon as memory is updated and
+		 * bursts of them are persisted together on a background thread, instead of every
+		 * update committing to disk on the calling thread. Pending updates are written
+		 * when the app's UI is hidden, on {@link BillingProcessor#release()}, and on
+		 * {@link BillingProcessor#flushNow()}. Disabled by default.
+		 */
+		public Builder setWriteBehind(boolean writeBehind)
+		{
+			this.writeBehind = writeBehind;
+			return this;
+		}
+
+		/**
+		 * When enabled, the {@link BillingProcessor} constructor returns without reading the
+		 * purchase caches, and they are loaded on a background thread instead. Cache reads
+		 * such as {@link BillingProcessor#isPurchased(String)} block until the load is done;
+		 * use {@link BillingProcessor#whenCachesReady(BillingProcessor.ICachesReadyListener)}
+		 * or {@link BillingProcessor#getCachesReadyFuture()} to avoid that on the main
+		 * thread. If the load fails, the caches start out empty until the next refresh
+		 * from Google. Disabled by default.
+		 */
+		public Builder setLoadCachesAsync(boolean loadCachesAsync)
+		{
+			this.loadCachesAsync = loadCachesAsync;
+			return this;
+		}
+
+		/**
+		 * Runs the library's background work: purchase history initialization, signature
+		 * verification, cache loading and persistence. {@link IBillingHandler} callbacks are
+		 * still delivered on the main thread. Defaults to threads owned by the library,
+		 * which are not shared with {@code AsyncTask} or the app.
+		 */
+		public Builder setExecutor(@Nullable Executor executor)
+		{
+			this.executor = executor;
+			return this;
+		}
+
+		/**
+		 * Holds purchases, owned-purchase queries and product details queries made while
+		 * the billing client is not connected, instead of failing them at once. Up to
+		 * {@code capacity} requests are kept and replayed in order as soon as the
+		 * connection is up. A request still waiting after {@code deadlineMillis} fails
+		 * with {@link Constants#BILLING_ERROR_CONNECTION_TIMEOUT}. A request that finds the
+		 * queue full fails at once, as it would without the queue. A queued
+		 * {@code purchase} or {@code subscribe} call returns {@code true}. It holds its
+		 * activity weakly and fails with {@link Constants#BILLING_ERROR_ACTIVITY_GONE} if the
+		 * activity is gone or finishing by the time it is replayed. Disabled by default, or
+		 * with a {@code capacity} of 0.
+		 */
+		public Builder setQueueWhileConnecting(int capacity, long deadlineMillis)
+		{
+			if (capacity < 0 || deadlineMillis <= 0)
+			{
+				throw new IllegalArgumentException(
+						"capacity must be >= 0 and deadlineMillis > 0, got " + capacity + ", " + deadlineMillis);
+			}
+			this.requestQueueCapacity = capacity;
+			this.requestDeadlineMillis = deadlineMillis;
+			return this;
+		}
+
+		/**
+		 * How many {@link com.android.billingclient.api.ProductDetails} to keep in memory,
+		 * and for how long. Purchases and the product details and listing queries are
+		 * answered from these entries while they are fresh, without asking Play again.
+		 * Defaults to {@value ProductDetailsCache#DEFAULT_MAX_ENTRIES} entries for five
+		 * minutes. A {@code maxEntries} or {@code ttlMillis} of 0 disables the cache.
+		 */
+		public Builder setProductDetailsCache(int maxEntries, long ttlMillis)
+		{
+			if (maxEntries < 0 || ttlMillis < 0)
+			{
+				throw new IllegalArgumentException(
+						"maxEntries and ttlMillis must be >= 0, got " + maxEntries + ", " + ttlMillis);
+			}
+			this.productDetailsCacheSize = maxEntries;
+			this.productDetailsTtlMillis = ttlMillis;
+			return this;
+		}
+
+		/**
+		 * Products whose details should be fetched as soon as the billing client connects,
+		 * before anything asks for them. Once they are in,
+		 * {@link BillingProcessor#getCatalogProductDetails(String)} answers without a round
+		 * trip, and {@link BillingProcessor#whenCatalogReady(BillingProcessor.ICatalogReadyListener)}
+		 * reports when that is. The details are fetched again on every reconnect. Empty by
+		 * default.
+		 */
+		public Builder setProductCatalog(List<String> inAppProductIds, List<String> subscriptionIds)
+		{
+			this.catalogInAppProductIds = inAppProductIds;
+			this.catalogSubscriptionIds = subscriptionIds;
+			return this;
+		}
+
+		/**
+		 * When enabled, the product details Play returns are also written to the
+		 * {@link #setStore(BillingStore) store}, and the legacy listing queries such as
+		 * {@link BillingProcessor#getPurchaseListingDetailsAsync(String, BillingProcessor.ISkuDetailsResponseListener)}
+		 * answer from them on the next launch right away, before the billing client
+		 * connects. Those {@link SkuDetails} report {@link SkuDetails#isPossiblyStale()}.
+		 * The details are then fetched again in the background, and the listener is called
+		 * a second time, with the fresh details, only if a price changed. Disabled by
+		 * default.
+		 */
+		public Builder setPersistProductDetails(boolean persistProductDetails)
+		{
+			this.persistProductDetails = persistProductDetails;
+			return this;
+		}
+
+		/**
+		 * Splits product details queries into requests of at most {@code chunkSize}
+		 * products, with at most {@code maxInFlight} of them outstanding at once. A
+		 * request that fails with a transient error is retried on its own, after a
+		 * growing delay, without repeating the ones that succeeded. The listener still gets one answer, in the
+		 * order the products were requested. Defaults to
+		 * {@value ProductDetailsFetcher#DEFAULT_CHUNK_SIZE} products and
+		 * {@value ProductDetailsFetcher#DEFAULT_MAX_IN_FLIGHT} requests.
+		 */
+		public Builder setProductDetailsChunking(int chunkSize, int maxInFlight)
+		{
+			if (chunkSize <= 0 || maxInFlight <= 0)
+			{
+				throw new IllegalArgumentException(
+						"chunkSize and maxInFlight must be > 0, got " + chunkSize + ", " + maxInFlight);
+			}
+			this.productDetailsChunkSize = chunkSize;
+			this.productDetailsMaxInFlight = maxInFlight;
+			return this;
+		}
+
+		/**
+		 * Collects the single-product lookups
+		 * {@link BillingProcessor#getPurchaseProductDetailsAsync(String,
+		 * BillingProcessor.IProductDetailsResponseListener)} and
+		 * {@link BillingProcessor#getSubscriptionProductDetailsAsync(String,
+		 * BillingProcessor.IProductDetailsResponseListener)} into one query per product
+		 * type, so screens that each ask for one product in the same frame share a round
+		 * trip to Play. A batch is sent {@code windowMillis} after its first lookup; with a
+		 * {@code windowMillis} of 0 it is sent as soon as the main thread runs out of queued
+		 * work. Lookups already answered by the
+		 * {@link #setProductDetailsCache(int, long) cache} are not held back. Disabled by
+		 * default.
+		 */
+		public Builder setProductDetailsBatchWindow(long windowMillis)
+		{
+			if (windowMillis < 0)
+			{
+				throw new IllegalArgumentException("windowMillis must be >= 0, got " + windowMillis);
+			}
+			this.productDetailsBatchWindowMillis = windowMillis;
+			return this;
+		}
+
+		public BillingOptions build()
+		{
+			return new BillingOptions(this);
+		}
+	}
+}
@@ -32,31 +32,44 @@ import com.android.billingclient.api.PurchasesUpdatedListener;
 import com.android.billingclient.api.QueryProductDetailsParams;
 import com.android.billingclient.api.QueryProductDetailsResult;
 import com.android.billingclient.api.QueryPurchasesParams;
+import com.android.billingclient.api.UnfetchedProduct;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 public class BillingProcessor extends BillingBase
 {
@@ -129,6 +142,39 @@ public class BillingProcessor extends BillingBase
 		void onProductDetailsResponse(@NonNull List<ProductDetails> products);
 
 		void onProductDetailsError(@NonNull String error);
+
+		/**
+		 * Called right before {@link #onProductDetailsResponse(List)} with the requested
+		 * products Play did not return, and why ({@link UnfetchedProduct#getStatusCode()}).
+		 * Not called if Play returned every product. Does nothing by default.
+		 */
+		default void onProductDetailsUnfetched(@NonNull List<UnfetchedProduct> unfetched)
+		{
+		}
+	}
+
+	/**
+	 * Callback for {@link #whenCachesReady(ICachesReadyListener)}, invoked on the main thread.
+	 */
+	public interface ICachesReadyListener
+	{
+		void onCachesReady();
+
+		/**
+		 * Called instead of {@link #onCachesReady()} if loading the caches threw. Cache
+		 * reads then throw {@link IllegalStateException}.
+		 */
+		default void onCachesLoadFailed(@NonNull Throwable error)
+		{
+		}
+	}
+
+	/**
+	 * Callback for {@link #whenCatalogReady(ICatalogReadyListener)}, invoked on the main thread.
+	 */
+	public interface ICatalogReadyListener
+	{
+		void onCatalogReady();
 	}
 
 	private static final Date DATE_MERCHANT_LIMIT_1; //5th December 2012
@@ -149,6 +195,7 @@ public class BillingProcessor extends BillingBase
 	private static final String MANAGED_PRODUCTS_CACHE_KEY = ".products.cache" + SETTINGS_VERSION;
 	private static final String SUBSCRIPTIONS_CACHE_KEY = ".subscriptions.cache" + SETTINGS_VERSION;
 	private static final String PURCHASE_PAYLOAD_CACHE_KEY = ".purchase.last" + SETTINGS_VERSION;
+	private static final String PRODUCT_DETAILS_SNAPSHOT_KEY = ".details.snapshot" + SETTINGS_VERSION;
 
 	private static final long RECONNECT_TIMER_START_MILLISECONDS = 1000L;
 	private static final long RECONNECT_TIMER_MAX_TIME_MILLISECONDS = 1000L * 60L * 15L;
@@ -156,10 +203,17 @@ public class BillingProcessor extends BillingBase
 	private long reconnectMilliseconds = RECONNECT_TIMER_START_MILLISECONDS;
 	private final AtomicBoolean reconnectPending = new AtomicBoolean(false);
 
+	// Callers waiting on the owned-purchase refresh in flight, or null if none is.
+	// Guarded by refreshLock.
+	private final Object refreshLock = new Object();
+	private ArrayList<IPurchasesResponseListener> refreshListeners;
+
 	private BillingClient billingService;
 	private String signatureBase64;
-	private BillingCache cachedProducts;
-	private BillingCache cachedSubscriptions;
+	// Set by cachesLoader; read through products() and subscriptions().
+	private volatile BillingCache cachedProducts;
+	private volatile BillingCache cachedSubscriptions;
+	private final CachesLoader cachesLoader;
 	private IBillingHandler eventHandler;
 	private String developerMerchantId;
 	private boolean isSubsUpdateSupported;
@@ -167,10 +221,39 @@ public class BillingProcessor extends BillingBase
 
 	private Handler handler = new Handler(Looper.getMainLooper());
 
-	private class HistoryInitializationTask extends AsyncTask<Void, Void, Boolean>
+	private final VerificationCache verificationCache =
+			new VerificationCache(VerificationCache.DEFAULT_CAPACITY);
+	// Background work; see BillingOptions.Builder#setExecutor.
+	private final Executor executor;
+	// Null unless BillingOptions.Builder#setQueueWhileConnecting enabled it.
+	@Nullable
+	private final PendingRequestQueue pendingRequests;
+	// Null if BillingOptions.Builder#setProductDetailsCache disabled it.
+	@Nullable
+	private final ProductDetailsCache productDetailsCache;
+	// Null unless BillingOptions.Builder#setProductCatalog declared products.
+	@Nullable
+	private final ProductCatalog productCatalog;
+	// Null unless BillingOptions.Builder#setPersistProductDetails enabled it.
+	@Nullable
+	private final ProductDetailsSnapshot productDetailsSnapshot;
+	// Background refreshes of details served from the snapshot, waiting for a connection.
+	// Guarded by itself.
+	private final ArrayList<Runnable> snapshotRefreshes = new ArrayList<>();
+	private final PurchaseBatchVerifier batchVerifier;
+	private final ProductDetailsFetcher productDetailsFetcher;
+	// Null unless BillingOptions.Builder#setProductDetailsBatchWindow enabled it.
+	@Nullable
+	private final ProductDetailsBatcher productDetailsBatcher;
+	// Keyed like ProductDetailsCache, by product type and id.
+	private final ConcurrentHashMap<String, PreparedCheckout> preparedCheckouts = new ConcurrentHashMap<>();
+	// How old prepared or catalog details may be for a purchase to launch with them.
+	private final long purchaseDetailsMaxAgeMillis;
+
+	private class HistoryInitializationTask implements Runnable
 	{
 		@Override
-		protected Boolean doInBackground(Void... nothing)
+		public void run()
 		{
 			// Always refresh on init. The cache is only appended to from the
 			// purchase callback path (handlePurchase -> verifyAndCachePurchase),
@@ -178,15 +261,17 @@ public class BillingProcessor extends BillingBase
 			// a refunded product stays cached as "owned" forever — see #435.
 			// loadOwnedPurchasesFromGoogleAsync clears and repopulates the cache
 			// on success.
+			awaitCaches();
 			final boolean firstRestore = !isPurchaseHistoryRestored();
 			loadOwnedPurchasesFromGoogleAsync(null);
-			return firstRestore;
+			if (handler != null)
+			{
+				handler.post(() -> onHistoryInitialized(firstRestore));
+			}
 		}
 
-		@Override
-		protected void onPostExecute(Boolean restored)
+		private void onHistoryInitialized(boolean restored)
 		{
-
 			isHistoryTaskExecuted = true;
 
 			if (restored)
@@ -204,6 +289,160 @@ public class BillingProcessor extends BillingBase
 		}
 	}
 
+	/**
+	 * Builds the purchase caches, which reads and decodes them from the store. Completes
+	 * before the constructor returns unless {@link BillingOptions.Builder#setLoadCachesAsync(boolean)}
+	 * moved it to a background thread.
+	 */
+	private class CachesLoader extends FutureTask<Void>
+	{
+		// Guarded by listeners.
+		private final ArrayList<ICachesReadyListener> listeners = new ArrayList<>();
+		private boolean released;
+
+		CachesLoader(final BillingOptions options)
+		{
+			super(new Callable<Void>()
+			{
+				@Override
+				public Void call()
+				{
+					try
+					{
+						cachedProducts = newCache(MANAGED_PRODUCTS_CACHE_KEY, false);
+						cachedSubscriptions = newCache(SUBSCRIPTIONS_CACHE_KEY, false);
+					}
+					finally
+					{
+						// Cache reads must not fail along with the load: they answer from
+						// empty caches, which the next refresh from Google fills.
+						if (cachedProducts == null)
+						{
+							cachedProducts = newCache(MANAGED_PRODUCTS_CACHE_KEY, true);
+						}
+						if (cachedSubscriptions == null)
+						{
+							cachedSubscriptions = newCache(SUBSCRIPTIONS_CACHE_KEY, true);
+						}
+					}
+					return null;
+				}
+
+				private BillingCache newCache(String key, boolean empty)
+				{
+					BillingCache cache = empty
+							? BillingCache.empty(getContext(), getStore(), key)
+							: new BillingCache(getContext(), getStore(), key);
+					if (options.isWriteBehind())
+					{
+						cache.enableWriteBehind(executor);
+					}
+					return cache;
+				}
+			});
+		}
+
+		/**
+		 * @return true once the caches were read from the store, false while they are
+		 * loading or if they had to start out empty
+		 */
+		boolean isLoaded()
+		{
+			return isDone() && loadFailure() == null;
+		}
+
+		void addListener(ICachesReadyListener listener)
+		{
+			synchronized (listeners)
+			{
+				if (!isDone())
+				{
+					listeners.add(listener);
+					return;
+				}
+			}
+			reportCachesLoaded(listener, loadFailure());
+		}
+
+		/**
+		 * Releases the caches, or, while they are still loading, has the loading thread
+		 * release them once it is done rather than waiting for it.
+		 */
+		void releaseCaches()
+		{
+			synchronized (listeners)
+			{
+				if (!isDone())
+				{
+					released = true;
+					listeners.clear();
+					return;
+				}
+			}
+			releaseLoadedCaches();
+		}
+
+		@Override
+		protected void done()
+		{
+			ArrayList<ICachesReadyListener> ready;
+			boolean release;
+			synchronized (listeners)
+			{
+				ready = new ArrayList<>(listeners);
+				listeners.clear();
+				release = released;
+			}
+			Throwable failure = loadFailure();
+			if (failure != null)
+			{
+				Log.e(LOG_TAG, "Failed to load purchase caches", failure);
+				reportBillingError(Constants.BILLING_ERROR_OTHER_ERROR, failure);
+			}
+			for (ICachesReadyListener listener : ready)
+			{
+				reportCachesLoaded(listener, failure);
+			}
+			if (release)
+			{
+				releaseLoadedCaches();
+			}
+		}
+
+		/**
+		 * Only called once loading is done, so it does not block.
+		 */
+		@Nullable
+		private Throwable loadFailure()
+		{
+			try
+			{
+				get();
+				return null;
+			}
+			catch (ExecutionException e)
+			{
+				return e.getCause();
+			}
+			catch (CancellationException | InterruptedException e)
+			{
+				return e;
+			}
+		}
+
+		private void releaseLoadedCaches()
+		{
+			if (cachedProducts != null)
+			{
+				cachedProducts.release();
+			}
+			if (cachedSubscriptions != null)
+			{
+				cachedSubscriptions.release();
+			}
+		}
+	}
+
 	/**
 	 * Returns a new {@link BillingProcessor}, without immediately binding to Play Services. If you use
 	 * this factory, then you must call {@link #initialize()} afterwards.
@@ -229,7 +468,23 @@ public class BillingProcessor extends BillingBase
 	public static BillingProcessor newBillingProcessor(Context context, String licenseKey, String merchantId,
 													   IBillingHandler handler)
 	{
-		return new BillingProcessor(context, licenseKey, merchantId, handler, false);
+		return newBillingProcessor(context, licenseKey, merchantId, handler, BillingOptions.defaults());
+	}
+
+	/**
+	 * Returns a new {@link BillingProcessor}, without immediately binding to Play Services. If you use
+	 * this factory, then you must call {@link #initialize()} afterwards.
+	 * @param context Context object
+	 * @param licenseKey Licence key from Play Console
+	 * @param merchantId Google merchant ID
+	 * @param handler callback instance
+	 * @param options optional settings, see {@link BillingOptions}
+	 * @return BillingProcessor instance
+	 */
+	public static BillingProcessor newBillingProcessor(Context context, String licenseKey, String merchantId,
+													   IBillingHandler handler, BillingOptions options)
+	{
+		return new BillingProcessor(context, licenseKey, merchantId, handler, options, false);
 	}
 
 	public BillingProcessor(Context context, String licenseKey, IBillingHandler handler)
@@ -240,18 +495,75 @@ public class BillingProcessor extends BillingBase
 	public BillingProcessor(Context context, String licenseKey, String merchantId,
 							IBillingHandler handler)
 	{
-		this(context, licenseKey, merchantId, handler, true);
+		this(context, licenseKey, merchantId, handler, BillingOptions.defaults(), true);
 	}
 
-	private BillingProcessor(Context context, String licenseKey, String merchantId, IBillingHandler handler,
-							 boolean bindImmediately)
+	public BillingProcessor(Context context, String licenseKey, String merchantId,
+							IBillingHandler handler, BillingOptions options)
+	{
+		this(context, licenseKey, merchantId, handler, options, true);
+	}
+
+	private BillingProcessor(Context context, final String licenseKey, String merchantId, IBillingHandler handler,
+							 BillingOptions options, boolean bindImmediately)
 	{
-		super(context.getApplicationContext());
+		super(context.getApplicationContext(), resolveStore(context.getApplicationContext(), options));
 		signatureBase64 = licenseKey;
 		eventHandler = handler;
-		cachedProducts = new BillingCache(getContext(), MANAGED_PRODUCTS_CACHE_KEY);
-		cachedSubscriptions = new BillingCache(getContext(), SUBSCRIPTIONS_CACHE_KEY);
+		Executor customExecutor = options.getExecutor();
+		executor = customExecutor != null ? customExecutor : BillingExecutors.background();
+		batchVerifier = new PurchaseBatchVerifier(
+				customExecutor != null ? customExecutor : BillingExecutors.verification(),
+				BillingExecutors.VERIFICATION_THREADS);
+		pendingRequests = options.getRequestQueueCapacity() > 0
+				? new PendingRequestQueue(this.handler, options.getRequestQueueCapacity(),
+										  options.getRequestDeadlineMillis())
+				: null;
+		productDetailsCache = options.getProductDetailsCacheSize() > 0 && options.getProductDetailsTtlMillis() > 0
+				? new ProductDetailsCache(options.getProductDetailsCacheSize(), options.getProductDetailsTtlMillis())
+				: null;
+		productCatalog = options.getCatalogInAppProductIds().isEmpty() && options.getCatalogSubscriptionIds().isEmpty()
+				? null
+				: new ProductCatalog(options.getCatalogInAppProductIds(), options.getCatalogSubscriptionIds());
+		purchaseDetailsMaxAgeMillis = options.getProductDetailsTtlMillis() > 0
+				? options.getProductDetailsTtlMillis()
+				: ProductDetailsCache.DEFAULT_TTL_MILLIS;
+		productDetailsFetcher = new ProductDetailsFetcher(options.getProductDetailsChunkSize(),
+														  options.getProductDetailsMaxInFlight(), this.handler);
+		productDetailsBatcher = options.getProductDetailsBatchWindowMillis() >= 0
+				? new ProductDetailsBatcher(this.handler, options.getProductDetailsBatchWindowMillis(),
+											this::getProductDetailsAsync)
+				: null;
+		productDetailsSnapshot = options.isPersistProductDetails()
+				? new ProductDetailsSnapshot(getStore(), getPreferencesBaseKey() + PRODUCT_DETAILS_SNAPSHOT_KEY)
+				: null;
+		if (productDetailsSnapshot != null)
+		{
+			// Read it before the first listing query asks, off the calling thread.
+			executor.execute(productDetailsSnapshot::load);
+		}
+		cachesLoader = new CachesLoader(options);
+		if (options.isLoadCachesAsync())
+		{
+			executor.execute(cachesLoader);
+		}
+		else
+		{
+			cachesLoader.run();
+			awaitCaches();
+		}
 		developerMerchantId = merchantId;
+		if (!TextUtils.isEmpty(licenseKey))
+		{
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					Security.warmUp(licenseKey);
+				}
+			});
+		}
 		init(context);
 		if (bindImmediately)
 		{
@@ -259,6 +571,229 @@ public class BillingProcessor extends BillingBase
 		}
 	}
 
+	/**
+	 * Blocks until the purchase caches are loaded, or replaced by empty ones if loading
+	 * failed. Returns at once unless they are being loaded in the background.
+	 */
+	private void awaitCaches()
+	{
+		boolean interrupted = false;
+		try
+		{
+			while (true)
+			{
+				try
+				{
+					cachesLoader.get();
+					return;
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+				catch (ExecutionException e)
+				{
+					// Already reported by CachesLoader.done(); the caches start out empty.
+					return;
+				}
+			}
+		}
+		finally
+		{
+			if (interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private BillingCache products()
+	{
+		BillingCache cache = cachedProducts;
+		if (cache == null)
+		{
+			awaitCaches();
+			cache = cachedProducts;
+		}
+		return cache;
+	}
+
+	private BillingCache subscriptions()
+	{
+		BillingCache cache = cachedSubscriptions;
+		if (cache == null)
+		{
+			awaitCaches();
+			cache = cachedSubscriptions;
+		}
+		return cache;
+	}
+
+	/**
+	 * Runs {@code task} on the main thread once the purchase caches are loaded, or right
+	 * away if they already are, so that the calling thread never waits for the load.
+	 */
+	private void runWhenCachesLoaded(final Runnable task)
+	{
+		if (cachesLoader.isDone())
+		{
+			task.run();
+			return;
+		}
+		cachesLoader.addListener(new ICachesReadyListener()
+		{
+			@Override
+			public void onCachesReady()
+			{
+				task.run();
+			}
+
+			@Override
+			public void onCachesLoadFailed(@NonNull Throwable error)
+			{
+				task.run();
+			}
+		});
+	}
+
+	/**
+	 * Completes once the purchase caches are loaded. Already complete unless the caches
+	 * are {@link BillingOptions.Builder#setLoadCachesAsync(boolean) loaded asynchronously}.
+	 */
+	public Future<Void> getCachesReadyFuture()
+	{
+		return cachesLoader;
+	}
+
+	/**
+	 * Calls {@code listener} on the main thread once the purchase caches are loaded, or
+	 * right away if they already are. Until then {@link #isPurchased(String)} and the other
+	 * cache reads block. If loading fails, {@link ICachesReadyListener#onCachesLoadFailed}
+	 * is called instead, and the cache reads answer from empty caches until the next
+	 * refresh from Google.
+	 */
+	public void whenCachesReady(ICachesReadyListener listener)
+	{
+		cachesLoader.addListener(listener);
+	}
+
+	/**
+	 * Calls {@code listener} on the main thread once the details of every product in the
+	 * {@link BillingOptions.Builder#setProductCatalog(List, List) catalog} have been
+	 * fetched, or right away if they already have. A fetch that fails is retried on the
+	 * next connection, so the listener may wait across reconnects.
+	 *
+	 * @throws IllegalStateException if no catalog was set
+	 */
+	public void whenCatalogReady(final ICatalogReadyListener listener)
+	{
+		if (requireCatalog().addReadyListener(listener::onCatalogReady))
+		{
+			handler.post(listener::onCatalogReady);
+		}
+	}
+
+	/**
+	 * @throws IllegalStateException if no catalog was set
+	 */
+	public boolean isCatalogReady()
+	{
+		return requireCatalog().isReady();
+	}
+
+	/**
+	 * Details of a catalog product from the last successful catalog fetch, without a round
+	 * trip to Play. Null until the catalog is {@link #whenCatalogReady ready}, and for ids
+	 * that Play did not return.
+	 *
+	 * @throws IllegalStateException if no catalog was set
+	 */
+	@Nullable
+	public ProductDetails getCatalogProductDetails(String productId)
+	{
+		return requireCatalog().get(productId);
+	}
+
+	private ProductCatalog requireCatalog()
+	{
+		if (productCatalog == null)
+		{
+			throw new IllegalStateException("No product catalog was set in BillingOptions");
+		}
+		return productCatalog;
+	}
+
+	/**
+	 * Fetches the details of every catalog product, unless a fetch is already running.
+	 */
+	private void prefetchCatalog()
+	{
+		final ProductCatalog catalog = productCatalog;
+		if (catalog == null || !catalog.beginFetch())
+		{
+			return;
+		}
+		final List<ProductDetails> fetched = Collections.synchronizedList(new ArrayList<ProductDetails>());
+		final AtomicInteger pending = new AtomicInteger(2);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		IProductDetailsResponseListener part = new IProductDetailsResponseListener()
+		{
+			@Override
+			public void onProductDetailsResponse(@NonNull List<ProductDetails> products)
+			{
+				fetched.addAll(products);
+				onPartDone();
+			}
+
+			@Override
+			public void onProductDetailsError(@NonNull String error)
+			{
+				Log.w(LOG_TAG, "Product catalog prefetch failed: " + error);
+				failed.set(true);
+				onPartDone();
+			}
+
+			private void onPartDone()
+			{
+				if (pending.decrementAndGet() != 0)
+				{
+					return;
+				}
+				if (failed.get())
+				{
+					catalog.fetchFailed();
+					return;
+				}
+				// Already on the main thread, where product details answers arrive.
+				for (Runnable listener : catalog.fetchSucceeded(fetched))
+				{
+					listener.run();
+				}
+			}
+		};
+		fetchCatalogPart(catalog.inAppProductIds, Constants.PRODUCT_TYPE_MANAGED, part);
+		fetchCatalogPart(catalog.subscriptionIds, Constants.PRODUCT_TYPE_SUBSCRIPTION, part);
+	}
+
+	private void fetchCatalogPart(List<String> productIds, String productType,
+								  IProductDetailsResponseListener listener)
+	{
+		if (productIds.isEmpty())
+		{
+			listener.onProductDetailsResponse(Collections.<ProductDetails>emptyList());
+		}
+		else
+		{
+			getProductDetailsAsync(productIds, productType, listener);
+		}
+	}
+
+	private static BillingStore resolveStore(Context context, BillingOptions options)
+	{
+		BillingStore store = options.getStore();
+		return store != null ? store : new SharedPreferencesBillingStore(context);
+	}
+
 	private static Intent getBindServiceIntent()
 	{
 		Intent intent = new Intent("com.android.vending.billing.InAppBillingService.BIND");
@@ -345,6 +880,16 @@ public class BillingProcessor extends BillingBase
 			return;
 		}
 
+		// The only point where another process sharing the store could have
+		// written since we loaded; regular reads do not look at the store. A load
+		// still running in the background reads the latest data anyway, and must
+		// not be waited for on the caller's thread.
+		if (cachesLoader.isLoaded())
+		{
+			products().checkForExternalChanges();
+			subscriptions().checkForExternalChanges();
+		}
+
 		// enableAutoServiceReconnection() lets the Play Billing client bring the
 		// connection up on its own. When it reports ready before we ever call
 		// startConnection(), our BillingClientStateListener is never invoked --
@@ -360,8 +905,11 @@ public class BillingProcessor extends BillingBase
 		{
 			if (!isHistoryTaskExecuted)
 			{
-				new HistoryInitializationTask().execute();
+				executor.execute(new HistoryInitializationTask());
 			}
+			prefetchCatalog();
+			runSnapshotRefreshes();
+			drainPendingRequests();
 			return;
 		}
 
@@ -382,8 +930,11 @@ public class BillingProcessor extends BillingBase
 						//Initialize history of purchases if any exist.
 						if (!isHistoryTaskExecuted)
 						{
-							new HistoryInitializationTask().execute();
+							executor.execute(new HistoryInitializationTask());
 						}
+						prefetchCatalog();
+						runSnapshotRefreshes();
+						drainPendingRequests();
 					}
 					else
 					{
@@ -436,6 +987,62 @@ public class BillingProcessor extends BillingBase
 				Math.min(reconnectMilliseconds * 2, RECONNECT_TIMER_MAX_TIME_MILLISECONDS);
 	}
 
+	/**
+	 * Starts reconnecting and, if {@link BillingOptions.Builder#setQueueWhileConnecting}
+	 * enabled it, queues {@code replay} to run once connected.
+	 *
+	 * @param onExpired called on the main thread, after reporting
+	 * {@link Constants#BILLING_ERROR_CONNECTION_TIMEOUT}, if the deadline passes first
+	 * @return false if the request was not queued and the caller must fail it now
+	 */
+	private boolean deferUntilConnected(final String request, Runnable replay, final Runnable onExpired)
+	{
+		retryBillingClientConnection();
+		if (pendingRequests == null)
+		{
+			return false;
+		}
+		return pendingRequests.offer(replay, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				String message = request + " timed out waiting for the billing service to connect";
+				Log.e(LOG_TAG, message);
+				reportBillingError(Constants.BILLING_ERROR_CONNECTION_TIMEOUT, new Throwable(message));
+				onExpired.run();
+			}
+		});
+	}
+
+	/**
+	 * The activity a queued purchase was started from, or null, with the request failed, if
+	 * it has since been collected or is finishing. Queued purchases only hold it weakly so
+	 * that a screen the user left is neither leaked nor used to launch the billing flow.
+	 */
+	@Nullable
+	private Activity getLiveActivity(WeakReference<Activity> activityRef, String request)
+	{
+		Activity activity = activityRef.get();
+		if (activity == null || activity.isFinishing() || activity.isDestroyed())
+		{
+			String message = request + " dropped: its activity is gone";
+			Log.e(LOG_TAG, message);
+			reportBillingError(Constants.BILLING_ERROR_ACTIVITY_GONE, new Throwable(message));
+			return null;
+		}
+		return activity;
+	}
+
+	private void drainPendingRequests()
+	{
+		if (pendingRequests != null)
+		{
+			// Replayed requests read the caches, which the main thread must not wait for.
+			runWhenCachesLoaded(pendingRequests::drain);
+		}
+	}
+
 	/**
 	 *  Check for billingClient is initialized and connected, if true then its ready for use.
 	 * @return true or false
@@ -457,6 +1064,28 @@ public class BillingProcessor extends BillingBase
 			Log.d(LOG_TAG, "BillingClient can only be used once -- closing connection");
 			billingService.endConnection();
 		}
+		if (pendingRequests != null)
+		{
+			pendingRequests.expireAll();
+		}
+		synchronized (snapshotRefreshes)
+		{
+			snapshotRefreshes.clear();
+		}
+		preparedCheckouts.clear();
+		cachesLoader.releaseCaches();
+	}
+
+	/**
+	 * Writes purchase cache updates that are still pending and returns once they are on
+	 * disk. Only {@link BillingOptions.Builder#setWriteBehind(boolean) write-behind} mode
+	 * leaves updates pending; otherwise this returns immediately. May block on disk I/O, so
+	 * prefer calling it off the main thread.
+	 */
+	public void flushNow()
+	{
+		products().flushNow();
+		subscriptions().flushNow();
 	}
 
 	public boolean isInitialized()
@@ -464,33 +1093,46 @@ public class BillingProcessor extends BillingBase
 		return billingService != null;
 	}
 
+	/**
+	 * Replaces the Play Billing client, so tests can talk to a fake one.
+	 */
+	@VisibleForTesting
+	void setBillingClient(BillingClient billingClient)
+	{
+		billingService = billingClient;
+	}
+
 	public boolean isPurchased(String productId)
 	{
-		return cachedProducts.includesProduct(productId);
+		return products().includesProduct(productId);
 	}
 
 	public boolean isSubscribed(String productId)
 	{
-		return cachedSubscriptions.includesProduct(productId);
+		return subscriptions().includesProduct(productId);
 	}
 
 	public List<String> listOwnedProducts()
 	{
-		return cachedProducts.getContents();
+		return products().getContents();
 	}
 
 	public List<String> listOwnedSubscriptions()
 	{
-		return cachedSubscriptions.getContents();
+		return subscriptions().getContents();
 	}
 
-	private void loadPurchasesByTypeAsync(String type, final BillingCache cacheStorage,
+	private void loadPurchasesByTypeAsync(final String type, final BillingCache cacheStorage,
 										  final IPurchasesResponseListener listener)
 	{
 		if (!isConnected())
 		{
-			reportPurchasesError(listener);
-			retryBillingClientConnection();
+			if (!deferUntilConnected("Query for owned " + type + " purchases",
+									 () -> loadPurchasesByTypeAsync(type, cacheStorage, listener),
+									 () -> reportPurchasesError(listener)))
+			{
+				reportPurchasesError(listener);
+			}
 			return;
 		}
 
@@ -506,37 +1148,9 @@ public class BillingProcessor extends BillingBase
 			{
 				if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK)
 				{
-					cacheStorage.clear();
-					for (Purchase purchaseItem : list)
-					{
-						String jsonData = purchaseItem.getOriginalJson();
-						if (!TextUtils.isEmpty(jsonData))
-						{
-							try
-							{
-								/*
-								  This is a replacement for the bundling in the old version
-								  here we query all users' purchases and save it locally
-								  However, it is also recommended to save and verify all purchases
-								  on own server
-								  */
-								JSONObject purchase = new JSONObject(jsonData);
-								cacheStorage.put(
-										purchase.getString(Constants.RESPONSE_PRODUCT_ID),
-										jsonData,
-										purchaseItem.getSignature());
-							}
-							catch (Exception e)
-							{
-								reportBillingError(
-										Constants.BILLING_ERROR_FAILED_LOAD_PURCHASES, e);
-								Log.e(LOG_TAG, "Error in loadPurchasesByType", e);
-								reportPurchasesError(listener);
-							}
-						}
-					}
-
-					reportPurchasesSuccess(listener);
+					// Verifying a large owned set is slow, so keep it off the callback thread.
+					executor.execute(
+							() -> reconcileOwnedPurchases(list, cacheStorage, listener));
 				}
 				else
 				{
@@ -547,66 +1161,196 @@ public class BillingProcessor extends BillingBase
 	}
 
 	/**
-	 * Attempt to fetch purchases from the server and update our cache if successful
+	 * Replaces {@code cacheStorage} with the verified subset of {@code purchases}. The
+	 * signatures are checked in parallel by {@link PurchaseBatchVerifier}. Each purchase
+	 * that fails the check is left out of the cache and reported as
+	 * {@link Constants#BILLING_ERROR_INVALID_SIGNATURE}.
+	 */
+	private void reconcileOwnedPurchases(List<Purchase> purchases, BillingCache cacheStorage,
+										 IPurchasesResponseListener listener)
+	{
+		List<ParsedPurchase> parsedPurchases = new ArrayList<>(purchases.size());
+		HashSet<String> productIds = new HashSet<>();
+		for (Purchase purchaseItem : purchases)
+		{
+			String jsonData = purchaseItem.getOriginalJson();
+			if (!TextUtils.isEmpty(jsonData))
+			{
+				try
+				{
+					/*
+					  This is a replacement for the bundling in the old version
+					  here we query all users' purchases and save it locally
+					  However, it is also recommended to save and verify all purchases
+					  on own server
+					  */
+					ParsedPurchase parsed = parsePurchase(purchaseItem);
+					if (productIds.add(parsed.productId))
+					{
+						parsedPurchases.add(parsed);
+					}
+				}
+				catch (Exception e)
+				{
+					reportBillingError(
+							Constants.BILLING_ERROR_FAILED_LOAD_PURCHASES, e);
+					Log.e(LOG_TAG, "Error in loadPurchasesByType", e);
+					reportPurchasesError(listener);
+				}
+			}
+		}
+
+		boolean[] valid = TextUtils.isEmpty(signatureBase64)
+				? null
+				: batchVerifier.verify(parsedPurchases,
+									   parsed -> verifyPurchaseSignature(parsed.productId, parsed.json,
+																		 parsed.signature));
+
+		// Collect the whole owned set first and apply it in one transaction:
+		// clear() + put() per item used to re-serialize and commit the
+		// entire cache once per purchase.
+		HashMap<String, PurchaseInfo> owned = new HashMap<>();
+		for (int i = 0; i < parsedPurchases.size(); i++)
+		{
+			ParsedPurchase parsed = parsedPurchases.get(i);
+			if (valid == null || valid[i])
+			{
+				owned.put(parsed.productId, parsed.toPurchaseInfo(""));
+			}
+			else
+			{
+				Log.e(LOG_TAG, "Public key signature doesn't match for " + parsed.productId);
+				reportBillingError(Constants.BILLING_ERROR_INVALID_SIGNATURE, null);
+			}
+		}
+		cacheStorage.replaceAll(owned);
+
+		reportPurchasesSuccess(listener);
+	}
+
+	/**
+	 * Attempt to fetch purchases from the server and update our cache if successful.
+	 * If a refresh is already in flight, the call joins it instead of starting another,
+	 * and {@code listener} receives that refresh's result.
 	 *
-	 * @param listener invokes method onPurchasesError if all retrievals are failure,
-	 *                    onPurchasesSuccess if even one retrieval succeeded
+	 * @param listener invokes method onPurchasesSuccess if both the products and the
+	 *                    subscriptions were retrieved, onPurchasesError otherwise
 	 */
 	public void loadOwnedPurchasesFromGoogleAsync(final IPurchasesResponseListener listener)
 	{
-		final IPurchasesResponseListener successListener = new IPurchasesResponseListener()
+		synchronized (refreshLock)
+		{
+			if (refreshListeners != null)
+			{
+				refreshListeners.add(listener);
+				return;
+			}
+			refreshListeners = new ArrayList<>();
+			refreshListeners.add(listener);
+		}
+
+		// The two queries are independent, so both go out at once and the refresh takes
+		// as long as the slower one rather than the sum of both.
+		PurchasesJoin join = new PurchasesJoin(new IPurchasesResponseListener()
 		{
 			@Override
 			public void onPurchasesSuccess()
 			{
-				reportPurchasesSuccess(listener);
+				finishRefresh(true);
 			}
 
 			@Override
 			public void onPurchasesError()
 			{
-				reportPurchasesError(listener);
+				finishRefresh(false);
 			}
-		};
+		}, 2);
+		runWhenCachesLoaded(() ->
+		{
+			loadPurchasesByTypeAsync(Constants.PRODUCT_TYPE_MANAGED, products(), join.newPart());
+			loadPurchasesByTypeAsync(Constants.PRODUCT_TYPE_SUBSCRIPTION, subscriptions(), join.newPart());
+		});
+	}
 
-		final IPurchasesResponseListener errorListener = new IPurchasesResponseListener()
+	private void finishRefresh(boolean success)
+	{
+		ArrayList<IPurchasesResponseListener> listeners;
+		synchronized (refreshLock)
 		{
-			@Override
-			public void onPurchasesSuccess()
+			listeners = refreshListeners;
+			refreshListeners = null;
+		}
+		for (IPurchasesResponseListener listener : listeners)
+		{
+			if (success)
 			{
-				reportPurchasesError(listener);
+				reportPurchasesSuccess(listener);
 			}
-
-			@Override
-			public void onPurchasesError()
+			else
 			{
 				reportPurchasesError(listener);
 			}
-		};
+		}
+	}
 
-		loadPurchasesByTypeAsync(
-				Constants.PRODUCT_TYPE_MANAGED,
-				cachedProducts,
-				new IPurchasesResponseListener()
+	/**
+	 * Calls {@code listener} once every part has answered: success if all of them
+	 * succeeded, an error otherwise. Only the first answer of each part counts. The parts
+	 * are answered on the main thread, and so is {@code listener}.
+	 */
+	private class PurchasesJoin
+	{
+		private final IPurchasesResponseListener listener;
+		private final AtomicInteger pending;
+		private final AtomicBoolean failed = new AtomicBoolean(false);
+
+		PurchasesJoin(IPurchasesResponseListener listener, int parts)
+		{
+			this.listener = listener;
+			pending = new AtomicInteger(parts);
+		}
+
+		IPurchasesResponseListener newPart()
+		{
+			final AtomicBoolean answered = new AtomicBoolean(false);
+			return new IPurchasesResponseListener()
+			{
+				@Override
+				public void onPurchasesSuccess()
 				{
-					@Override
-					public void onPurchasesSuccess()
-					{
-						loadPurchasesByTypeAsync(
-								Constants.PRODUCT_TYPE_SUBSCRIPTION,
-								cachedSubscriptions,
-								successListener);
-					}
+					onPartAnswered(answered, false);
+				}
 
-					@Override
-					public void onPurchasesError()
-					{
-						loadPurchasesByTypeAsync(
-								Constants.PRODUCT_TYPE_SUBSCRIPTION,
-								cachedSubscriptions,
-								errorListener);
-					}
-				});
+				@Override
+				public void onPurchasesError()
+				{
+					onPartAnswered(answered, true);
+				}
+			};
+		}
+
+		private void onPartAnswered(AtomicBoolean answered, boolean error)
+		{
+			if (!answered.compareAndSet(false, true))
+			{
+				return;
+			}
+			if (error)
+			{
+				failed.set(true);
+			}
+			if (pending.decrementAndGet() == 0)
+			{
+				if (failed.get())
+				{
+					listener.onPurchasesError();
+				}
+				else
+				{
+					listener.onPurchasesSuccess();
+				}
+			}
+		}
 	}
 
 	/***
@@ -713,15 +1457,23 @@ public class BillingProcessor extends BillingBase
 	 * obfuscated identifiers. See {@link #purchase(Activity, String, String, String)}
 	 * for a description of the identifier semantics.
 	 */
-	public boolean purchase(Activity activity, @NonNull ProductDetails productDetails,
-							@Nullable String oldProductId,
-							@Nullable String obfuscatedAccountId,
-							@Nullable String obfuscatedProfileId)
+	public boolean purchase(final Activity activity, @NonNull final ProductDetails productDetails,
+							@Nullable final String oldProductId,
+							@Nullable final String obfuscatedAccountId,
+							@Nullable final String obfuscatedProfileId)
 	{
 		if (!isConnected())
 		{
-			retryBillingClientConnection();
-			return false;
+			final String request = "Purchase of " + productDetails.getProductId();
+			final WeakReference<Activity> activityRef = new WeakReference<>(activity);
+			return deferUntilConnected(request, () ->
+			{
+				Activity liveActivity = getLiveActivity(activityRef, request);
+				if (liveActivity != null)
+				{
+					purchase(liveActivity, productDetails, oldProductId, obfuscatedAccountId, obfuscatedProfileId);
+				}
+			}, () -> { });
 		}
 		try
 		{
@@ -809,26 +1561,98 @@ public class BillingProcessor extends BillingBase
 						obfuscatedAccountId, obfuscatedProfileId);
 	}
 
+	/**
+	 * Resolves a one-time product's details ahead of {@link #purchase(Activity, String)},
+	 * typically when the paywall opens, so that the purchase launches the billing flow
+	 * without asking Play for them first. Details already in the product details cache or
+	 * the {@link BillingOptions.Builder#setProductCatalog(List, List) catalog} are used as
+	 * they are. Prepared details follow later fetches of the same product and are used for
+	 * as long as the product details cache keeps details, the
+	 * {@link BillingOptions.Builder#setProductDetailsCache(int, long) TTL} or five minutes if
+	 * it is disabled; after that the purchase fetches them again. Failures are only logged;
+	 * the purchase then fetches the details as usual.
+	 *
+	 * @param productId the product id the paywall offers
+	 */
+	public void prepareCheckout(String productId)
+	{
+		prepareCheckout(productId, Constants.PRODUCT_TYPE_MANAGED);
+	}
+
+	/**
+	 * Like {@link #prepareCheckout(String)} for a subscription, for {@link #subscribe} and
+	 * {@link #updateSubscription}. The offer that will be purchased is selected here, the
+	 * same way {@link #purchase(Activity, ProductDetails)} selects it.
+	 *
+	 * @param productId the subscription id the paywall offers
+	 */
+	public void prepareSubscriptionCheckout(String productId)
+	{
+		prepareCheckout(productId, Constants.PRODUCT_TYPE_SUBSCRIPTION);
+	}
+
+	private void prepareCheckout(final String productId, String productType)
+	{
+		if (TextUtils.isEmpty(productId))
+		{
+			return;
+		}
+		ProductDetailsCache.Entry knownDetails = getKnownProductDetails(productId, productType);
+		if (knownDetails != null)
+		{
+			storePreparedCheckout(knownDetails.details, knownDetails.fetchedAtMillis);
+			return;
+		}
+		getSingleProductDetailsAsync(productId, productType, new IProductDetailsResponseListener()
+		{
+			@Override
+			public void onProductDetailsResponse(@NonNull List<ProductDetails> products)
+			{
+				long fetchedAtMillis = SystemClock.elapsedRealtime();
+				for (ProductDetails details : products)
+				{
+					storePreparedCheckout(details, fetchedAtMillis);
+				}
+			}
+
+			@Override
+			public void onProductDetailsError(@NonNull String error)
+			{
+				Log.w(LOG_TAG, "Could not prepare checkout of " + productId + ": " + error);
+			}
+		});
+	}
+
 	private boolean purchase(Activity activity, String productId, String purchaseType)
 	{
 		return purchase(activity, null, productId, purchaseType, null, null);
 	}
 
 	private boolean purchase(final Activity activity, final String oldProductId, final String productId,
-							 String purchaseType,
+							 final String purchaseType,
 							 @Nullable final String obfuscatedAccountId,
 							 @Nullable final String obfuscatedProfileId)
 	{
-		if (!isConnected() || TextUtils.isEmpty(productId) || TextUtils.isEmpty(purchaseType))
+		if (TextUtils.isEmpty(productId) || TextUtils.isEmpty(purchaseType))
 		{
-			if (!isConnected())
-			{
-				retryBillingClientConnection();
-			}
-
 			return false;
 		}
 
+		if (!isConnected())
+		{
+			final String request = "Purchase of " + productId;
+			final WeakReference<Activity> activityRef = new WeakReference<>(activity);
+			return deferUntilConnected(request, () ->
+			{
+				Activity liveActivity = getLiveActivity(activityRef, request);
+				if (liveActivity != null)
+				{
+					purchase(liveActivity, oldProductId, productId, purchaseType,
+							 obfuscatedAccountId, obfuscatedProfileId);
+				}
+			}, () -> { });
+		}
+
 		if (TextUtils.isEmpty(productId))
 		{
 			reportBillingError(Constants.BILLING_ERROR_PRODUCT_ID_NOT_SPECIFIED, null);
@@ -844,6 +1668,21 @@ public class BillingProcessor extends BillingBase
 			}
 			savePurchasePayload(purchasePayload);
 
+			PreparedCheckout checkout = getPreparedCheckout(productId, purchaseType);
+			if (checkout != null)
+			{
+				launchPurchaseFlow(activity, checkout, oldProductId,
+								   obfuscatedAccountId, obfuscatedProfileId);
+				return true;
+			}
+			ProductDetailsCache.Entry knownDetails = getKnownProductDetails(productId, purchaseType);
+			if (knownDetails != null)
+			{
+				startPurchaseFlow(activity, knownDetails.details, oldProductId,
+								  obfuscatedAccountId, obfuscatedProfileId);
+				return true;
+			}
+
 			QueryProductDetailsParams params = QueryProductDetailsParams.newBuilder()
 					.setProductList(Collections.singletonList(
 							QueryProductDetailsParams.Product.newBuilder()
@@ -864,6 +1703,7 @@ public class BillingProcessor extends BillingBase
 							List<ProductDetails> details = result.getProductDetailsList();
 							if (details != null && !details.isEmpty())
 							{
+								cacheProductDetails(details);
 								startPurchaseFlow(activity, details.get(0), oldProductId,
 												  obfuscatedAccountId, obfuscatedProfileId);
 							}
@@ -889,45 +1729,41 @@ public class BillingProcessor extends BillingBase
 		return false;
 	}
 
-	private void startPurchaseFlow(final Activity activity,
-								   final ProductDetails productDetails,
-								   final String oldProductId,
-								   @Nullable final String obfuscatedAccountId,
-								   @Nullable final String obfuscatedProfileId)
+	private void startPurchaseFlow(Activity activity,
+								   ProductDetails productDetails,
+								   String oldProductId,
+								   @Nullable String obfuscatedAccountId,
+								   @Nullable String obfuscatedProfileId)
 	{
-		final String productId = productDetails.getProductId();
-
-		handler.post(new Runnable()
+		PreparedCheckout checkout = PreparedCheckout.of(productDetails, SystemClock.elapsedRealtime());
+		if (checkout == null)
 		{
-			@Override
-			public void run()
-			{
-				BillingFlowParams.ProductDetailsParams.Builder pdpBuilder =
-						BillingFlowParams.ProductDetailsParams.newBuilder()
-								.setProductDetails(productDetails);
+			reportBillingError(Constants.BILLING_ERROR_FAILED_TO_INITIALIZE_PURCHASE, null);
+			return;
+		}
+		launchPurchaseFlow(activity, checkout, oldProductId, obfuscatedAccountId, obfuscatedProfileId);
+	}
 
-				// Subscriptions require an offer token; one-time products must not set it.
-				if (BillingClient.ProductType.SUBS.equals(productDetails.getProductType()))
-				{
-					List<ProductDetails.SubscriptionOfferDetails> offers =
-							productDetails.getSubscriptionOfferDetails();
-					if (offers == null || offers.isEmpty())
-					{
-						reportBillingError(
-								Constants.BILLING_ERROR_FAILED_TO_INITIALIZE_PURCHASE, null);
-						return;
-					}
-					// Prefer a free trial, then an introductory offer, then the base
-					// plan -- the same order SkuDetails reports, so what the caller
-					// was shown is what actually gets purchased. Picking the base
-					// plan unconditionally charged full price even when the user was
-					// eligible for a trial, which pre-3.0 granted automatically.
-					pdpBuilder.setOfferToken(SkuDetails.pickBestOffer(offers).getOfferToken());
-				}
+	/**
+	 * Launches the billing flow right away when called on the main thread, as a tap on a buy
+	 * button is, and posts it there otherwise.
+	 */
+	private void launchPurchaseFlow(final Activity activity,
+									final PreparedCheckout checkout,
+									final String oldProductId,
+									@Nullable final String obfuscatedAccountId,
+									@Nullable final String obfuscatedProfileId)
+	{
+		final String productId = checkout.productDetails.getProductId();
 
+		Runnable launch = new Runnable()
+		{
+			@Override
+			public void run()
+			{
 				BillingFlowParams.Builder billingFlowParamsBuilder = BillingFlowParams.newBuilder()
 						.setProductDetailsParamsList(
-								Collections.singletonList(pdpBuilder.build()));
+								Collections.singletonList(checkout.toProductDetailsParams()));
 
 				if (!TextUtils.isEmpty(oldProductId))
 				{
@@ -935,7 +1771,7 @@ public class BillingProcessor extends BillingBase
 
 					if (oldProductDetails != null)
 					{
-						String oldToken = oldProductDetails.purchaseData.purchaseToken;
+						String oldToken = oldProductDetails.getPurchaseData().purchaseToken;
 						// No replacement mode set -> default WITH_TIME_PRORATION, preserving
 						// pre-8.x behavior.
 						billingFlowParamsBuilder.setSubscriptionUpdateParams(
@@ -964,7 +1800,15 @@ public class BillingProcessor extends BillingBase
 					handleItemAlreadyOwned(productId);
 				}
 			}
-		});
+		};
+		if (Looper.myLooper() == handler.getLooper())
+		{
+			launch.run();
+		}
+		else
+		{
+			handler.post(launch);
+		}
 	}
 
 	private void handleItemAlreadyOwned(final String productId)
@@ -1034,31 +1878,31 @@ public class BillingProcessor extends BillingBase
 		{
 			return true;
 		}
-		if (details == null || details.purchaseData == null
-			|| details.purchaseData.purchaseTime == null)
+		PurchaseData data = details != null ? details.getPurchaseData() : null;
+		if (data == null || data.purchaseTime == null)
 		{
 			return false; //can't verify merchant id without purchase data
 		}
-		if (details.purchaseData.purchaseTime.before(DATE_MERCHANT_LIMIT_1)) //newest format applied
+		if (data.purchaseTime.before(DATE_MERCHANT_LIMIT_1)) //newest format applied
 		{
 			return true;
 		}
-		if (details.purchaseData.purchaseTime.after(DATE_MERCHANT_LIMIT_2)) //newest format applied
+		if (data.purchaseTime.after(DATE_MERCHANT_LIMIT_2)) //newest format applied
 		{
 			return true;
 		}
-		if (details.purchaseData.orderId == null ||
-			details.purchaseData.orderId.trim().length() == 0)
+		if (data.orderId == null ||
+			data.orderId.trim().length() == 0)
 		{
 			return false;
 		}
-		int index = details.purchaseData.orderId.indexOf('.');
+		int index = data.orderId.indexOf('.');
 		if (index <= 0)
 		{
 			return false; //protect on missing merchant id
 		}
 		//extract merchant id
-		String merchantId = details.purchaseData.orderId.substring(0, index);
+		String merchantId = data.orderId.substring(0, index);
 		return merchantId.compareTo(developerMerchantId) == 0;
 	}
 
@@ -1082,12 +1926,13 @@ public class BillingProcessor extends BillingBase
 
 		try
 		{
-			PurchaseInfo purchaseInfo = getPurchaseInfo(productId, cachedProducts);
-			if (purchaseInfo != null && !TextUtils.isEmpty(purchaseInfo.purchaseData.purchaseToken))
+			PurchaseInfo purchaseInfo = getPurchaseInfo(productId, products());
+			PurchaseData purchaseData = purchaseInfo != null ? purchaseInfo.getPurchaseData() : null;
+			if (purchaseData != null && !TextUtils.isEmpty(purchaseData.purchaseToken))
 			{
 				ConsumeParams consumeParams =
 						ConsumeParams.newBuilder()
-									 .setPurchaseToken(purchaseInfo.purchaseData.purchaseToken)
+									 .setPurchaseToken(purchaseData.purchaseToken)
 									 .build();
 
 				billingService.consumeAsync(consumeParams, new ConsumeResponseListener()
@@ -1098,7 +1943,7 @@ public class BillingProcessor extends BillingBase
 					{
 						if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK)
 						{
-							cachedProducts.remove(productId);
+							products().remove(productId);
 							Log.d(LOG_TAG, "Successfully consumed " + productId + " purchase.");
 
 							reportPurchasesSuccess(listener);
@@ -1152,76 +1997,263 @@ public class BillingProcessor extends BillingBase
 	private void getProductDetailsAsync(final List<String> productIdList, final String purchaseType,
 										final IProductDetailsResponseListener listener)
 	{
-		if (billingService == null || !billingService.isReady())
-		{
-			reportProductDetailsErrorCaller(
-					"Failed to call queryProductDetails. Service may not be connected", listener);
-			return;
-		}
 		if (productIdList == null || productIdList.isEmpty())
 		{
 			reportProductDetailsErrorCaller("Empty products list", listener);
 			return;
 		}
 
-		try
+		// Only what is not cached, or no longer fresh, goes to Play.
+		final HashMap<String, ProductDetails> cached = new HashMap<>();
+		final List<String> queryIds;
+		if (productDetailsCache != null)
 		{
-			List<QueryProductDetailsParams.Product> productList = new ArrayList<>(productIdList.size());
+			queryIds = new ArrayList<>();
 			for (String id : productIdList)
 			{
-				productList.add(QueryProductDetailsParams.Product.newBuilder()
-						.setProductId(id)
-						.setProductType(purchaseType)
-						.build());
+				ProductDetails details = productDetailsCache.get(id, purchaseType);
+				if (details != null)
+				{
+					cached.put(id, details);
+				}
+				else
+				{
+					queryIds.add(id);
+				}
+			}
+			if (queryIds.isEmpty())
+			{
+				reportProductDetailsResponseCaller(
+						mergeProductDetails(productIdList, cached, Collections.<ProductDetails>emptyList()),
+						listener);
+				return;
 			}
-			QueryProductDetailsParams queryParams = QueryProductDetailsParams.newBuilder()
-					.setProductList(productList)
-					.build();
+		}
+		else
+		{
+			queryIds = productIdList;
+		}
 
-			billingService.queryProductDetailsAsync(
-					queryParams,
-					new ProductDetailsResponseListener()
+		if (billingService == null || !billingService.isReady())
+		{
+			if (billingService == null
+				|| !deferUntilConnected("Product details query",
+										() -> getProductDetailsAsync(productIdList, purchaseType, listener),
+										() -> reportProductDetailsErrorCaller(
+												"Timed out waiting for the billing service to connect", listener)))
+			{
+				reportProductDetailsErrorCaller(
+						"Failed to call queryProductDetails. Service may not be connected", listener);
+			}
+			return;
+		}
+
+		ProductDetailsFetcher.Query query = this::queryProductDetailsChunk;
+		productDetailsFetcher.fetch(queryIds, purchaseType, query, new ProductDetailsFetcher.Listener()
+		{
+			@Override
+			public void onChunkFetched(List<ProductDetails> details)
+			{
+				// Kept even if a later chunk fails, so asking again only sends the rest.
+				cacheProductDetails(details);
+			}
+
+			@Override
+			public void onFetched(List<ProductDetails> details, List<UnfetchedProduct> unfetched)
+			{
+				if (!unfetched.isEmpty())
+				{
+					Log.w(LOG_TAG, String.format(Locale.US, "Play did not return %d of %d products",
+												 unfetched.size(), queryIds.size()));
+					reportProductDetailsUnfetched(unfetched, listener);
+				}
+				reportProductDetailsResponseCaller(mergeProductDetails(productIdList, cached, details), listener);
+			}
+
+			@Override
+			public void onFailed(int responseCode, @Nullable RuntimeException error)
+			{
+				if (error != null)
+				{
+					Log.e(LOG_TAG, "Failed to call queryProductDetails", error);
+					reportBillingError(Constants.BILLING_ERROR_SKUDETAILS_FAILED, error);
+
+					String msg = error.getLocalizedMessage();
+					reportProductDetailsErrorCaller(msg != null ? msg : "Unknown error", listener);
+					return;
+				}
+				reportBillingError(responseCode, null);
+				String errorMessage = String.format(Locale.US,
+													"Failed to retrieve info for %d products, %d",
+													queryIds.size(), responseCode);
+				Log.e(LOG_TAG, errorMessage);
+
+				reportProductDetailsErrorCaller(errorMessage, listener);
+			}
+		});
+	}
+
+	/**
+	 * Sends one chunk of a {@link ProductDetailsFetcher} fetch to Play.
+	 */
+	private void queryProductDetailsChunk(List<String> productIds, String productType,
+										  final ProductDetailsFetcher.ChunkCallback callback)
+	{
+		List<QueryProductDetailsParams.Product> productList = new ArrayList<>(productIds.size());
+		for (String id : productIds)
+		{
+			productList.add(QueryProductDetailsParams.Product.newBuilder()
+					.setProductId(id)
+					.setProductType(productType)
+					.build());
+		}
+		QueryProductDetailsParams queryParams = QueryProductDetailsParams.newBuilder()
+				.setProductList(productList)
+				.build();
+
+		billingService.queryProductDetailsAsync(
+				queryParams,
+				new ProductDetailsResponseListener()
+				{
+					@Override
+					public void onProductDetailsResponse(
+							@NonNull BillingResult billingResult,
+							@NonNull QueryProductDetailsResult result)
 					{
-						@Override
-						public void onProductDetailsResponse(
-								@NonNull BillingResult billingResult,
-								@NonNull QueryProductDetailsResult result)
-						{
-							int response = billingResult.getResponseCode();
-							if (response == BillingClient.BillingResponseCode.OK)
-							{
-								List<ProductDetails> detailsList = result.getProductDetailsList();
-								reportProductDetailsResponseCaller(
-										detailsList != null ? detailsList : Collections.emptyList(),
-										listener);
-							}
-							else
-							{
-								reportBillingError(response, null);
-								String errorMessage = String.format(Locale.US,
-																	"Failed to retrieve info for %d products, %d",
-																	productIdList.size(), response);
-								Log.e(LOG_TAG, errorMessage);
+						callback.onChunkResult(billingResult.getResponseCode(),
+											   result.getProductDetailsList(),
+											   result.getUnfetchedProductList());
+					}
+				});
+	}
 
-								reportProductDetailsErrorCaller(errorMessage, listener);
-							}
-						}
-					});
+	/**
+	 * The details for {@code productIds}, in that order and without repeats, taken from
+	 * {@code cached} or else {@code fetched}. Ids found in neither are left out, as Play
+	 * leaves out ids it does not know.
+	 */
+	private static List<ProductDetails> mergeProductDetails(List<String> productIds,
+															HashMap<String, ProductDetails> cached,
+															List<ProductDetails> fetched)
+	{
+		HashMap<String, ProductDetails> byId = new HashMap<>(cached);
+		for (ProductDetails details : fetched)
+		{
+			byId.put(details.getProductId(), details);
 		}
-		catch (Exception e)
+		List<ProductDetails> merged = new ArrayList<>(productIds.size());
+		for (String id : productIds)
+		{
+			ProductDetails details = byId.remove(id);
+			if (details != null)
+			{
+				merged.add(details);
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Details fetched less than {@link #purchaseDetailsMaxAgeMillis} ago, from the cache or
+	 * else the catalog.
+	 */
+	@Nullable
+	private ProductDetailsCache.Entry getKnownProductDetails(String productId, String productType)
+	{
+		ProductDetailsCache.Entry entry = productDetailsCache != null
+				? productDetailsCache.getEntry(productId, productType)
+				: null;
+		if (entry == null && productCatalog != null)
+		{
+			entry = productCatalog.getEntry(productId);
+			if (entry != null && (!productType.equals(entry.details.getProductType())
+								  || entry.isOlderThan(purchaseDetailsMaxAgeMillis)))
+			{
+				entry = null;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * @return the prepared checkout, unless it is older than
+	 * {@link #purchaseDetailsMaxAgeMillis}, in which case it is dropped
+	 */
+	@Nullable
+	private PreparedCheckout getPreparedCheckout(String productId, String productType)
+	{
+		String key = ProductDetailsCache.key(productId, productType);
+		PreparedCheckout checkout = preparedCheckouts.get(key);
+		if (checkout != null && checkout.isOlderThan(purchaseDetailsMaxAgeMillis))
+		{
+			// Conditional, so a fresher checkout stored meanwhile stays.
+			preparedCheckouts.remove(key, checkout);
+			return null;
+		}
+		return checkout;
+	}
+
+	private void storePreparedCheckout(ProductDetails details, long fetchedAtMillis)
+	{
+		String key = ProductDetailsCache.key(details.getProductId(), details.getProductType());
+		PreparedCheckout checkout = PreparedCheckout.of(details, fetchedAtMillis);
+		if (checkout != null)
 		{
-			Log.e(LOG_TAG, "Failed to call queryProductDetails", e);
-			reportBillingError(Constants.BILLING_ERROR_SKUDETAILS_FAILED, e);
+			preparedCheckouts.put(key, checkout);
+		}
+		else
+		{
+			preparedCheckouts.remove(key);
+		}
+	}
 
-			String msg = e.getLocalizedMessage();
-			reportProductDetailsErrorCaller(msg != null ? msg : "Unknown error", listener);
+	private void cacheProductDetails(List<ProductDetails> detailsList)
+	{
+		if (productDetailsCache != null)
+		{
+			for (ProductDetails details : detailsList)
+			{
+				productDetailsCache.put(details);
+			}
+		}
+		if (productDetailsSnapshot != null && !detailsList.isEmpty())
+		{
+			productDetailsSnapshot.update(detailsList, executor);
+		}
+		if (!preparedCheckouts.isEmpty())
+		{
+			// Keep prepared checkouts on the newest details Play returned.
+			long fetchedAtMillis = SystemClock.elapsedRealtime();
+			for (ProductDetails details : detailsList)
+			{
+				if (preparedCheckouts.containsKey(ProductDetailsCache.key(details.getProductId(),
+																		  details.getProductType())))
+				{
+					storePreparedCheckout(details, fetchedAtMillis);
+				}
+			}
 		}
 	}
 
+	/**
+	 * Hit and miss counts of the in-memory {@link ProductDetails} cache that answers
+	 * purchases and product details queries. All zero if
+	 * {@link BillingOptions.Builder#setProductDetailsCache(int, long)} disabled it.
+	 */
+	public CacheStats getProductDetailsCacheStats()
+	{
+		return productDetailsCache != null ? productDetailsCache.stats() : new CacheStats(0, 0, 0, 0);
+	}
+
 	@SuppressWarnings("deprecation")
 	private void getSkuDetailsAsync(final ArrayList<String> productIdList, String purchaseType,
 									final ISkuDetailsResponseListener listener)
 	{
+		if (productDetailsSnapshot != null && productIdList != null && !productIdList.isEmpty()
+			&& answerFromSnapshot(productIdList, purchaseType, listener))
+		{
+			return;
+		}
 		// Legacy path: query ProductDetails via the shared helper and translate to the
 		// deprecated SkuDetails shape on the way out.
 		getProductDetailsAsync(productIdList, purchaseType, new IProductDetailsResponseListener()
@@ -1229,25 +2261,11 @@ public class BillingProcessor extends BillingBase
 			@Override
 			public void onProductDetailsResponse(@NonNull List<ProductDetails> products)
 			{
-				ArrayList<SkuDetails> translated = new ArrayList<>();
-				for (ProductDetails pd : products)
+				ArrayList<SkuDetails> translated = translateSkuDetails(products, listener);
+				if (translated != null)
 				{
-					try
-					{
-						translated.add(SkuDetails.fromProductDetails(pd));
-					}
-					catch (JSONException jsonException)
-					{
-						// A partial list would silently render missing or wrong pricing.
-						// Fail the whole callback instead so callers can react.
-						String error = "Failed to translate ProductDetails to legacy SkuDetails for product: "
-								+ pd.getProductId();
-						Log.e(LOG_TAG, error, jsonException);
-						reportSkuDetailsErrorCaller(error, listener);
-						return;
-					}
+					reportSkuDetailsResponseCaller(translated, listener);
 				}
-				reportSkuDetailsResponseCaller(translated, listener);
 			}
 
 			@Override
@@ -1258,6 +2276,134 @@ public class BillingProcessor extends BillingBase
 		});
 	}
 
+	/**
+	 * @return the translated details, or null after reporting the first product that could
+	 * not be translated to {@code listener}
+	 */
+	@Nullable
+	@SuppressWarnings("deprecation")
+	private ArrayList<SkuDetails> translateSkuDetails(List<ProductDetails> products,
+													  ISkuDetailsResponseListener listener)
+	{
+		ArrayList<SkuDetails> translated = new ArrayList<>();
+		for (ProductDetails pd : products)
+		{
+			try
+			{
+				translated.add(SkuDetails.fromProductDetails(pd));
+			}
+			catch (JSONException jsonException)
+			{
+				// A partial list would silently render missing or wrong pricing.
+				// Fail the whole callback instead so callers can react.
+				String error = "Failed to translate ProductDetails to legacy SkuDetails for product: "
+						+ pd.getProductId();
+				Log.e(LOG_TAG, error, jsonException);
+				reportSkuDetailsErrorCaller(error, listener);
+				return null;
+			}
+		}
+		return translated;
+	}
+
+	/**
+	 * Reports the snapshot's details of {@code productIdList} if it has all of them from an
+	 * earlier launch, then fetches them again, now or once connected, and reports the fresh
+	 * details too if a price changed.
+	 *
+	 * @return false if the snapshot could not answer and the caller must query Play
+	 */
+	@SuppressWarnings("deprecation")
+	private boolean answerFromSnapshot(final ArrayList<String> productIdList, final String purchaseType,
+									   final ISkuDetailsResponseListener listener)
+	{
+		final List<ProductDetailsSnapshot.Record> served =
+				productDetailsSnapshot.getStale(productIdList, purchaseType);
+		if (served == null)
+		{
+			return false;
+		}
+		ArrayList<SkuDetails> stale = new ArrayList<>(served.size());
+		try
+		{
+			for (ProductDetailsSnapshot.Record record : served)
+			{
+				stale.add(record.toSkuDetails());
+			}
+		}
+		catch (JSONException e)
+		{
+			Log.w(LOG_TAG, "Product details snapshot is unreadable, querying Play", e);
+			return false;
+		}
+		reportSkuDetailsResponseCaller(stale, listener);
+
+		Runnable refresh = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				getProductDetailsAsync(productIdList, purchaseType, new IProductDetailsResponseListener()
+				{
+					@Override
+					public void onProductDetailsResponse(@NonNull List<ProductDetails> products)
+					{
+						if (!ProductDetailsSnapshot.pricesChanged(served, products))
+						{
+							return;
+						}
+						ArrayList<SkuDetails> translated = translateSkuDetails(products, listener);
+						if (translated != null)
+						{
+							reportSkuDetailsResponseCaller(translated, listener);
+						}
+					}
+
+					@Override
+					public void onProductDetailsError(@NonNull String error)
+					{
+						// The caller already has details to show; keep them.
+						Log.w(LOG_TAG, "Failed to refresh product details served from the snapshot: " + error);
+					}
+				});
+			}
+		};
+		if (billingService != null && billingService.isReady())
+		{
+			refresh.run();
+		}
+		else
+		{
+			synchronized (snapshotRefreshes)
+			{
+				snapshotRefreshes.add(refresh);
+			}
+			if (billingService != null)
+			{
+				retryBillingClientConnection();
+			}
+		}
+		return true;
+	}
+
+	private void runSnapshotRefreshes()
+	{
+		ArrayList<Runnable> refreshes;
+		synchronized (snapshotRefreshes)
+		{
+			if (snapshotRefreshes.isEmpty())
+			{
+				return;
+			}
+			refreshes = new ArrayList<>(snapshotRefreshes);
+			snapshotRefreshes.clear();
+		}
+		for (Runnable refresh : refreshes)
+		{
+			refresh.run();
+		}
+	}
+
 	/**
 	 * @deprecated use {@link #getPurchaseProductDetailsAsync(String, IProductDetailsResponseListener)}
 	 *     which returns the full Billing Library 9 {@link ProductDetails}.
@@ -1301,6 +2447,24 @@ public class BillingProcessor extends BillingBase
 		getSkuDetailsAsync(productIds, Constants.PRODUCT_TYPE_SUBSCRIPTION, listener);
 	}
 
+	/**
+	 * Joins the next batch if {@link BillingOptions.Builder#setProductDetailsBatchWindow(long)}
+	 * enabled batching and the details are not cached already.
+	 */
+	private void getSingleProductDetailsAsync(String productId, String productType,
+											  IProductDetailsResponseListener listener)
+	{
+		if (productDetailsBatcher != null && !TextUtils.isEmpty(productId)
+			&& (productDetailsCache == null || !productDetailsCache.contains(productId, productType)))
+		{
+			productDetailsBatcher.load(productId, productType, listener);
+		}
+		else
+		{
+			getProductDetailsAsync(Collections.singletonList(productId), productType, listener);
+		}
+	}
+
 	/**
 	 * Fetch one managed (one-time) product's {@link ProductDetails}. The listener receives
 	 * Billing Library 9's native type with access to the full one-time offer details.
@@ -1308,8 +2472,7 @@ public class BillingProcessor extends BillingBase
 	public void getPurchaseProductDetailsAsync(String productId,
 											   IProductDetailsResponseListener listener)
 	{
-		getProductDetailsAsync(Collections.singletonList(productId),
-				Constants.PRODUCT_TYPE_MANAGED, listener);
+		getSingleProductDetailsAsync(productId, Constants.PRODUCT_TYPE_MANAGED, listener);
 	}
 
 	/**
@@ -1330,8 +2493,7 @@ public class BillingProcessor extends BillingBase
 	public void getSubscriptionProductDetailsAsync(String productId,
 												   IProductDetailsResponseListener listener)
 	{
-		getProductDetailsAsync(Collections.singletonList(productId),
-				Constants.PRODUCT_TYPE_SUBSCRIPTION, listener);
+		getSingleProductDetailsAsync(productId, Constants.PRODUCT_TYPE_SUBSCRIPTION, listener);
 	}
 
 	/**
@@ -1346,16 +2508,32 @@ public class BillingProcessor extends BillingBase
 	@Nullable
 	public PurchaseInfo getPurchaseInfo(String productId)
 	{
-		return getPurchaseInfo(productId, cachedProducts);
+		return getPurchaseInfo(productId, products());
 	}
 
 	@Nullable
 	public PurchaseInfo getSubscriptionPurchaseInfo(String productId)
 	{
-		return getPurchaseInfo(productId, cachedSubscriptions);
+		return getPurchaseInfo(productId, subscriptions());
+	}
+
+	/**
+	 * Decodes {@code purchase} once; the result carries it through verification, caching
+	 * and callbacks.
+	 *
+	 * @throws IOException if the purchase JSON is not a valid purchase
+	 */
+	private static ParsedPurchase parsePurchase(Purchase purchase) throws IOException
+	{
+		ParsedPurchase parsed = PurchaseJsonParser.parse(purchase.getOriginalJson(), purchase.getSignature());
+		if (TextUtils.isEmpty(parsed.productId))
+		{
+			throw new IOException("Purchase JSON has no " + Constants.RESPONSE_PRODUCT_ID);
+		}
+		return parsed;
 	}
 
-	private String detectPurchaseTypeFromPurchaseResponseData(JSONObject purchase)
+	private String detectPurchaseTypeFromPurchaseResponseData(ParsedPurchase purchase)
 	{
 		String purchasePayload = getPurchasePayload();
 		// regular flow, based on developer payload
@@ -1364,7 +2542,7 @@ public class BillingProcessor extends BillingBase
 			return Constants.PRODUCT_TYPE_SUBSCRIPTION;
 		}
 		// backup check for the promo codes (no payload available)
-		if (purchase != null && purchase.has(Constants.RESPONSE_AUTO_RENEWING))
+		if (purchase != null && purchase.hasAutoRenewing)
 		{
 			return Constants.PRODUCT_TYPE_SUBSCRIPTION;
 		}
@@ -1373,25 +2551,20 @@ public class BillingProcessor extends BillingBase
 
 	private void verifyAndCachePurchase(Purchase purchase)
 	{
-		String purchaseData = purchase.getOriginalJson();
-		String dataSignature = purchase.getSignature();
 		try
 		{
-			JSONObject purchaseJsonObject = new JSONObject(purchaseData);
-			String productId = purchaseJsonObject.getString(Constants.RESPONSE_PRODUCT_ID);
-			if (verifyPurchaseSignature(productId, purchaseData, dataSignature))
+			ParsedPurchase parsed = parsePurchase(purchase);
+			String productId = parsed.productId;
+			if (verifyPurchaseSignature(productId, parsed.json, parsed.signature))
 			{
 				String purchaseType =
-						detectPurchaseTypeFromPurchaseResponseData(purchaseJsonObject);
+						detectPurchaseTypeFromPurchaseResponseData(parsed);
 				BillingCache cache = purchaseType.equals(Constants.PRODUCT_TYPE_SUBSCRIPTION)
-						? cachedSubscriptions : cachedProducts;
-				cache.put(productId, purchaseData, dataSignature);
+						? subscriptions() : products();
+				cache.put(productId, parsed.toPurchaseInfo(""));
 				if (eventHandler != null)
 				{
-					PurchaseInfo purchaseInfo = new PurchaseInfo(purchaseData,
-																 dataSignature,
-																 getPurchasePayload());
-					reportProductPurchased(productId, purchaseInfo);
+					reportProductPurchased(productId, parsed.toPurchaseInfo(getPurchasePayload()));
 				}
 			}
 			else
@@ -1417,7 +2590,7 @@ public class BillingProcessor extends BillingBase
              * continue the purchase flow
              */
 			return TextUtils.isEmpty(signatureBase64) ||
-				   Security.verifyPurchase(productId, signatureBase64, purchaseData, dataSignature);
+				   verificationCache.verifyPurchase(productId, signatureBase64, purchaseData, dataSignature);
 		}
 		catch (Exception e)
 		{
@@ -1425,14 +2598,28 @@ public class BillingProcessor extends BillingBase
 		}
 	}
 
+	/**
+	 * Checks the purchase signature against the license key and, if a merchant id was
+	 * given, the order's merchant. Signature results are remembered, so repeated checks of
+	 * the same purchase skip the RSA verification; see {@link #getVerificationCacheStats()}.
+	 */
 	public boolean isValidPurchaseInfo(PurchaseInfo purchaseInfo)
 	{
-		return verifyPurchaseSignature(purchaseInfo.purchaseData.productId,
+		return verifyPurchaseSignature(purchaseInfo.getPurchaseData().productId,
 									   purchaseInfo.responseData,
 									   purchaseInfo.signature) &&
 			   checkMerchant(purchaseInfo);
 	}
 
+	/**
+	 * Hit and miss counts of the remembered signature checks behind
+	 * {@link #isValidPurchaseInfo(PurchaseInfo)} and incoming purchases.
+	 */
+	public CacheStats getVerificationCacheStats()
+	{
+		return verificationCache.stats();
+	}
+
 	private boolean isPurchaseHistoryRestored()
 	{
 		return loadBoolean(getPreferencesBaseKey() + RESTORE_KEY, false);
@@ -1461,6 +2648,21 @@ public class BillingProcessor extends BillingBase
 		}
 	}
 
+	private void reportCachesLoaded(final ICachesReadyListener listener, @Nullable final Throwable failure)
+	{
+		if (handler != null)
+		{
+			if (failure != null)
+			{
+				handler.post(() -> listener.onCachesLoadFailed(failure));
+			}
+			else
+			{
+				handler.post(() -> listener.onCachesReady());
+			}
+		}
+	}
+
 	private void reportPurchasesSuccess(final IPurchasesResponseListener listener)
 	{
 		if (listener != null && handler != null)
@@ -1503,6 +2705,15 @@ public class BillingProcessor extends BillingBase
 		}
 	}
 
+	private void reportProductDetailsUnfetched(@NonNull final List<UnfetchedProduct> unfetched,
+											   final IProductDetailsResponseListener listener)
+	{
+		if (listener != null && handler != null)
+		{
+			handler.post(() -> listener.onProductDetailsUnfetched(unfetched));
+		}
+	}
+
 	private void reportProductDetailsResponseCaller(@NonNull final List<ProductDetails> products,
 													final IProductDetailsResponseListener listener)
 	{
@@ -1580,21 +2791,17 @@ public class BillingProcessor extends BillingBase
 		{
 			return;
 		}
-		String purchaseData = purchase.getOriginalJson();
-		String dataSignature = purchase.getSignature();
 		try
 		{
-			JSONObject purchaseJsonObject = new JSONObject(purchaseData);
-			String productId = purchaseJsonObject.getString(Constants.RESPONSE_PRODUCT_ID);
-			if (!verifyPurchaseSignature(productId, purchaseData, dataSignature))
+			ParsedPurchase parsed = parsePurchase(purchase);
+			final String productId = parsed.productId;
+			if (!verifyPurchaseSignature(productId, parsed.json, parsed.signature))
 			{
 				Log.e(LOG_TAG, "Public key signature doesn't match!");
 				reportBillingError(Constants.BILLING_ERROR_INVALID_SIGNATURE, null);
 				return;
 			}
-			final PurchaseInfo purchaseInfo = new PurchaseInfo(purchaseData,
-															   dataSignature,
-															   getPurchasePayload());
+			final PurchaseInfo purchaseInfo = parsed.toPurchaseInfo(getPurchasePayload());
 			// The eventHandler callback must run on the main thread for
 			// parity with onProductPurchased; Billing 9's listener callbacks
 			// are already main-thread, but post explicitly for consistency.
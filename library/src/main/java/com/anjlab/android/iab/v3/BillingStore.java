@@ -0,0 +1,71 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Key-value storage behind the purchase caches and the library's bookkeeping flags.
+ * Select an implementation with {@link BillingOptions.Builder#setStore(BillingStore)}:
+ * <ul>
+ *     <li>{@link SharedPreferencesBillingStore} &mdash; the default;</li>
+ *     <li>{@link FileBillingStore} &mdash; everything in one atomically replaced file;</li>
+ *     <li>{@link SqliteBillingStore} &mdash; one row per key in a private database;</li>
+ *     <li>{@link InMemoryBillingStore} &mdash; nothing touches the disk, for tests and
+ *     benchmarks.</li>
+ * </ul>
+ * Implementations must be safe to call from any thread.
+ */
+public interface BillingStore
+{
+	@Nullable
+	String getString(String key, @Nullable String defValue);
+
+	boolean getBoolean(String key, boolean defValue);
+
+	@Nullable
+	byte[] getBytes(String key);
+
+	/**
+	 * Starts a batch of changes; none of them is visible until {@link Editor#commit()}.
+	 */
+	Editor edit();
+
+	interface Editor
+	{
+		/**
+		 * A {@code null} value removes the key, the same way
+		 * {@link android.content.SharedPreferences.Editor#putString} does.
+		 */
+		Editor putString(String key, @Nullable String value);
+
+		Editor putBoolean(String key, boolean value);
+
+		/**
+		 * A {@code null} value removes the key.
+		 */
+		Editor putBytes(String key, @Nullable byte[] value);
+
+		Editor remove(String key);
+
+		/**
+		 * Applies the batch synchronously.
+		 *
+		 * @return {@code true} if the changes reached the backing storage
+		 */
+		boolean commit();
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.util.Locale;
+
+/**
+ * Point-in-time counters of one of the library's in-memory caches. Counters accumulate
+ * from the moment the owning {@link BillingProcessor} was created.
+ */
+public final class CacheStats
+{
+	private final long hitCount;
+	private final long missCount;
+	private final long evictionCount;
+	private final int size;
+
+	CacheStats(long hitCount, long missCount, long evictionCount, int size)
+	{
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+		this.evictionCount = evictionCount;
+		this.size = size;
+	}
+
+	/**
+	 * Lookups answered from the cache.
+	 */
+	public long getHitCount()
+	{
+		return hitCount;
+	}
+
+	/**
+	 * Lookups that had to do the real work.
+	 */
+	public long getMissCount()
+	{
+		return missCount;
+	}
+
+	/**
+	 * Hits as a fraction of all lookups, or 0 before the first lookup.
+	 */
+	public double getHitRate()
+	{
+		long lookups = hitCount + missCount;
+		return lookups == 0 ? 0 : (double) hitCount / lookups;
+	}
+
+	/**
+	 * Entries dropped to stay within the cache's bound.
+	 */
+	public long getEvictionCount()
+	{
+		return evictionCount;
+	}
+
+	/**
+	 * Entries currently held.
+	 */
+	public int getSize()
+	{
+		return size;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(Locale.US, "CacheStats{hits=%d, misses=%d, evictions=%d, size=%d}",
+							 hitCount, missCount, evictionCount, size);
+	}
+}
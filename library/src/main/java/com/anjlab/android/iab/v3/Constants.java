@@ -45,6 +45,8 @@ public class Constants
 	public static final int BILLING_ERROR_INVALID_SIGNATURE = 102;
 	public static final int BILLING_ERROR_INVALID_MERCHANT_ID = 104;
 	public static final int BILLING_ERROR_FAILED_TO_ACKNOWLEDGE_PURCHASE = 115;
+	public static final int BILLING_ERROR_CONNECTION_TIMEOUT = 116;
+	public static final int BILLING_ERROR_ACTIVITY_GONE = 117;
 
 	@Deprecated
 	public static final int BILLING_ERROR_LOST_CONTEXT = 103;
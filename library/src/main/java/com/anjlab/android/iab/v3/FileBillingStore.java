@@ -0,0 +1,204 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * {@link BillingStore} that keeps every key in a single file. The file is read once, on
+ * first access, and every commit replaces it atomically, so a crash mid-write leaves the
+ * previous version in place.
+ *
+ * <pre>
+ * int    magic ("IABS")
+ * int    format version
+ * int    entry count
+ * entry  key, type byte, value; strings and byte arrays are int-length prefixed
+ * long   CRC32 of everything above
+ * </pre>
+ */
+public class FileBillingStore extends MapBillingStore
+{
+	private static final String LOG_TAG = "iabv3.fileStore";
+	private static final String DEFAULT_FILE_NAME = "iabv3.store";
+
+	private static final int MAGIC = 0x49414253;
+	private static final int VERSION = 1;
+	private static final int CHECKSUM_SIZE = 8;
+
+	private static final byte TYPE_STRING = 0;
+	private static final byte TYPE_BOOLEAN = 1;
+	private static final byte TYPE_BYTES = 2;
+
+	private final AtomicFile file;
+
+	/**
+	 * Stores everything in {@code iabv3.store} under {@link Context#getNoBackupFilesDir()}.
+	 */
+	public FileBillingStore(Context context)
+	{
+		this(new File(context.getNoBackupFilesDir(), DEFAULT_FILE_NAME));
+	}
+
+	public FileBillingStore(File file)
+	{
+		this.file = new AtomicFile(file);
+	}
+
+	@Override
+	Map<String, Object> load()
+	{
+		try
+		{
+			return decode(file.readFully());
+		}
+		catch (FileNotFoundException e)
+		{
+			return new HashMap<>();
+		}
+		catch (IOException e)
+		{
+			Log.e(LOG_TAG, "Failed to read " + file.getBaseFile(), e);
+			return new HashMap<>();
+		}
+	}
+
+	@Override
+	boolean persist(Map<String, Object> values)
+	{
+		FileOutputStream out = null;
+		try
+		{
+			byte[] bytes = encode(values);
+			out = file.startWrite();
+			out.write(bytes);
+			file.finishWrite(out);
+			return true;
+		}
+		catch (IOException e)
+		{
+			Log.e(LOG_TAG, "Failed to write " + file.getBaseFile(), e);
+			if (out != null)
+			{
+				file.failWrite(out);
+			}
+			return false;
+		}
+	}
+
+	private static byte[] encode(Map<String, Object> values) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(values.size());
+		for (Map.Entry<String, Object> entry : values.entrySet())
+		{
+			BillingCacheFormat.writeString(out, entry.getKey());
+			Object value = entry.getValue();
+			if (value instanceof Boolean)
+			{
+				out.writeByte(TYPE_BOOLEAN);
+				out.writeBoolean((Boolean) value);
+			}
+			else if (value instanceof byte[])
+			{
+				out.writeByte(TYPE_BYTES);
+				out.writeInt(((byte[]) value).length);
+				out.write((byte[]) value);
+			}
+			else
+			{
+				out.writeByte(TYPE_STRING);
+				BillingCacheFormat.writeString(out, (String) value);
+			}
+		}
+		out.flush();
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeLong(crc.getValue());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static Map<String, Object> decode(byte[] data) throws IOException
+	{
+		int bodyLength = data.length - CHECKSUM_SIZE;
+		if (bodyLength < 12)
+		{
+			throw new IOException("Store file is truncated");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, bodyLength);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		in.skipBytes(bodyLength);
+		if (in.readLong() != crc.getValue())
+		{
+			throw new IOException("Store file checksum mismatch");
+		}
+
+		in = new DataInputStream(new ByteArrayInputStream(data, 0, bodyLength));
+		if (in.readInt() != MAGIC || in.readInt() != VERSION)
+		{
+			throw new IOException("Unsupported store file");
+		}
+		int count = in.readInt();
+		HashMap<String, Object> values = new HashMap<>();
+		for (int i = 0; i < count; i++)
+		{
+			String key = BillingCacheFormat.readString(in);
+			byte type = in.readByte();
+			switch (type)
+			{
+				case TYPE_BOOLEAN:
+					values.put(key, in.readBoolean());
+					break;
+				case TYPE_BYTES:
+					int length = in.readInt();
+					if (length < 0 || length > in.available())
+					{
+						throw new IOException("Value length " + length + " exceeds store file size");
+					}
+					byte[] value = new byte[length];
+					in.readFully(value);
+					values.put(key, value);
+					break;
+				case TYPE_STRING:
+					values.put(key, BillingCacheFormat.readString(in));
+					break;
+				default:
+					throw new IOException("Unknown value type " + type);
+			}
+		}
+		return values;
+	}
+}
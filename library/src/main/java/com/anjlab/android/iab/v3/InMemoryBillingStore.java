@@ -0,0 +1,39 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * {@link BillingStore} that never touches the disk. Everything is lost with the process,
+ * so the owned-purchases caches are only as fresh as the last refresh from Google. Meant
+ * for tests and benchmarks.
+ */
+public class InMemoryBillingStore extends MapBillingStore
+{
+	@Override
+	Map<String, Object> load()
+	{
+		return Collections.emptyMap();
+	}
+
+	@Override
+	boolean persist(Map<String, Object> values)
+	{
+		return true;
+	}
+}
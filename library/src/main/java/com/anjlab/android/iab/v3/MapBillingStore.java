@@ -0,0 +1,145 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shared implementation of the stores that keep every value in a map in memory.
+ * Subclasses decide what, if anything, happens to the map after a commit.
+ */
+abstract class MapBillingStore implements BillingStore
+{
+	private static final Object REMOVED = new Object();
+
+	private HashMap<String, Object> values;
+
+	/**
+	 * Called once, on first access, to populate the map.
+	 */
+	abstract Map<String, Object> load();
+
+	/**
+	 * Called under the store lock with the values a batch would leave. They only become
+	 * visible if this returns true.
+	 */
+	abstract boolean persist(Map<String, Object> values);
+
+	private Map<String, Object> values()
+	{
+		if (values == null)
+		{
+			values = new HashMap<>(load());
+		}
+		return values;
+	}
+
+	@Nullable
+	@Override
+	public synchronized String getString(String key, @Nullable String defValue)
+	{
+		Object value = values().get(key);
+		return value instanceof String ? (String) value : defValue;
+	}
+
+	@Override
+	public synchronized boolean getBoolean(String key, boolean defValue)
+	{
+		Object value = values().get(key);
+		return value instanceof Boolean ? (Boolean) value : defValue;
+	}
+
+	@Nullable
+	@Override
+	public synchronized byte[] getBytes(String key)
+	{
+		Object value = values().get(key);
+		return value instanceof byte[] ? ((byte[]) value).clone() : null;
+	}
+
+	@Override
+	public Editor edit()
+	{
+		return new MapEditor();
+	}
+
+	private synchronized boolean apply(Map<String, Object> changes)
+	{
+		// Changed on a copy, so that a batch the subclass fails to persist leaves memory
+		// matching what it has.
+		HashMap<String, Object> updated = new HashMap<>(values());
+		for (Map.Entry<String, Object> change : changes.entrySet())
+		{
+			if (change.getValue() == REMOVED)
+			{
+				updated.remove(change.getKey());
+			}
+			else
+			{
+				updated.put(change.getKey(), change.getValue());
+			}
+		}
+		if (!persist(updated))
+		{
+			return false;
+		}
+		values = updated;
+		return true;
+	}
+
+	private class MapEditor implements Editor
+	{
+		private final LinkedHashMap<String, Object> changes = new LinkedHashMap<>();
+
+		@Override
+		public Editor putString(String key, @Nullable String value)
+		{
+			changes.put(key, value != null ? value : REMOVED);
+			return this;
+		}
+
+		@Override
+		public Editor putBoolean(String key, boolean value)
+		{
+			changes.put(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor putBytes(String key, @Nullable byte[] value)
+		{
+			changes.put(key, value != null ? value.clone() : REMOVED);
+			return this;
+		}
+
+		@Override
+		public Editor remove(String key)
+		{
+			changes.put(key, REMOVED);
+			return this;
+		}
+
+		@Override
+		public boolean commit()
+		{
+			return apply(changes);
+		}
+	}
+}
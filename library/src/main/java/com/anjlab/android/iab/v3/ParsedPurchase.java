@@ -0,0 +1,80 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import androidx.annotation.Nullable;
+
+import java.util.Date;
+
+/**
+ * A purchase JSON together with its signature and the fields decoded from it. Built once,
+ * by {@link PurchaseJsonParser} or from a cache record, and handed along from there, so
+ * signature checks, type detection, caching and callbacks share a single decode.
+ *
+ * <p>Immutable. {@link PurchaseData} is mutable and public, so each caller gets a fresh
+ * copy from {@link #toPurchaseData(String)} rather than a shared instance.
+ */
+final class ParsedPurchase
+{
+	final String json;
+	@Nullable
+	final String signature;
+	final String orderId;
+	final String packageName;
+	final String productId;
+	// 0 when the JSON has no purchase time.
+	final long purchaseTimeMillis;
+	final PurchaseState purchaseState;
+	final String purchaseToken;
+	final boolean autoRenewing;
+	// Whether autoRenewing was present at all, which only subscriptions do.
+	final boolean hasAutoRenewing;
+
+	ParsedPurchase(String json, @Nullable String signature, String orderId, String packageName,
+				   String productId, long purchaseTimeMillis, PurchaseState purchaseState,
+				   String purchaseToken, boolean autoRenewing, boolean hasAutoRenewing)
+	{
+		this.json = json;
+		this.signature = signature;
+		this.orderId = orderId;
+		this.packageName = packageName;
+		this.productId = productId;
+		this.purchaseTimeMillis = purchaseTimeMillis;
+		this.purchaseState = purchaseState;
+		this.purchaseToken = purchaseToken;
+		this.autoRenewing = autoRenewing;
+		this.hasAutoRenewing = hasAutoRenewing;
+	}
+
+	PurchaseData toPurchaseData(String developerPayload)
+	{
+		PurchaseData data = new PurchaseData();
+		data.orderId = orderId;
+		data.packageName = packageName;
+		data.productId = productId;
+		data.purchaseTime = purchaseTimeMillis != 0 ? new Date(purchaseTimeMillis) : null;
+		data.purchaseState = purchaseState;
+		data.developerPayload = developerPayload;
+		data.purchaseToken = purchaseToken;
+		data.autoRenewing = autoRenewing;
+		return data;
+	}
+
+	PurchaseInfo toPurchaseInfo(String developerPayload)
+	{
+		return new PurchaseInfo(this, developerPayload);
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.os.Handler;
+
+import java.util.ArrayDeque;
+
+/**
+ * Requests that arrived while the billing client was not connected, held until
+ * {@link #drain()} replays them in arrival order. The queue is bounded. Each request also
+ * has a deadline, posted to {@code handler}: a request still queued when its deadline
+ * passes is removed and its expiry callback runs on the handler's thread.
+ */
+final class PendingRequestQueue
+{
+	private final Handler handler;
+	private final int capacity;
+	private final long deadlineMillis;
+	// Guarded by this.
+	private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+	/**
+	 * Posted as the request's deadline.
+	 */
+	private final class Entry implements Runnable
+	{
+		final Runnable replay;
+		final Runnable onExpired;
+
+		Entry(Runnable replay, Runnable onExpired)
+		{
+			this.replay = replay;
+			this.onExpired = onExpired;
+		}
+
+		@Override
+		public void run()
+		{
+			boolean expired;
+			synchronized (PendingRequestQueue.this)
+			{
+				expired = entries.remove(this);
+			}
+			if (expired)
+			{
+				onExpired.run();
+			}
+		}
+	}
+
+	PendingRequestQueue(Handler handler, int capacity, long deadlineMillis)
+	{
+		this.handler = handler;
+		this.capacity = capacity;
+		this.deadlineMillis = deadlineMillis;
+	}
+
+	/**
+	 * @return false, queueing nothing, if the queue is full
+	 */
+	synchronized boolean offer(Runnable replay, Runnable onExpired)
+	{
+		if (entries.size() >= capacity)
+		{
+			return false;
+		}
+		Entry entry = new Entry(replay, onExpired);
+		entries.add(entry);
+		handler.postDelayed(entry, deadlineMillis);
+		return true;
+	}
+
+	/**
+	 * Replays every queued request on the calling thread, oldest first. A replayed request
+	 * that finds the client disconnected again may queue itself anew, with a new deadline.
+	 */
+	void drain()
+	{
+		for (Entry entry : takeAll())
+		{
+			entry.replay.run();
+		}
+	}
+
+	/**
+	 * Fails every queued request now, as if its deadline had passed.
+	 */
+	void expireAll()
+	{
+		for (Entry entry : takeAll())
+		{
+			entry.onExpired.run();
+		}
+	}
+
+	synchronized int size()
+	{
+		return entries.size();
+	}
+
+	private Entry[] takeAll()
+	{
+		Entry[] taken;
+		synchronized (this)
+		{
+			taken = entries.toArray(new Entry[0]);
+			entries.clear();
+		}
+		for (Entry entry : taken)
+		{
+			handler.removeCallbacks(entry);
+		}
+		return taken;
+	}
+}
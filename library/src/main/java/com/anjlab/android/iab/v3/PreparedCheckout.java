@@ -0,0 +1,87 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.os.SystemClock;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.ProductDetails;
+
+import java.util.List;
+
+/**
+ * A product's details together with the offer the billing flow will use, resolved ahead of
+ * the purchase so that launching the flow does no lookups.
+ */
+final class PreparedCheckout
+{
+	final ProductDetails productDetails;
+	// Null for one-time products, which must not set one.
+	@Nullable
+	final String offerToken;
+	// When Play returned productDetails, in SystemClock.elapsedRealtime() time.
+	final long fetchedAtMillis;
+
+	private PreparedCheckout(ProductDetails productDetails, @Nullable String offerToken, long fetchedAtMillis)
+	{
+		this.productDetails = productDetails;
+		this.offerToken = offerToken;
+		this.fetchedAtMillis = fetchedAtMillis;
+	}
+
+	/**
+	 * @param fetchedAtMillis when Play returned the details, in
+	 *                        {@link SystemClock#elapsedRealtime()} time
+	 * @return null for a subscription without offers, which cannot be purchased
+	 */
+	@Nullable
+	static PreparedCheckout of(ProductDetails productDetails, long fetchedAtMillis)
+	{
+		if (!BillingClient.ProductType.SUBS.equals(productDetails.getProductType()))
+		{
+			return new PreparedCheckout(productDetails, null, fetchedAtMillis);
+		}
+		List<ProductDetails.SubscriptionOfferDetails> offers = productDetails.getSubscriptionOfferDetails();
+		if (offers == null || offers.isEmpty())
+		{
+			return null;
+		}
+		// Prefer a free trial, then an introductory offer, then the base plan -- the same
+		// order SkuDetails reports, so what the caller was shown is what actually gets
+		// purchased. Picking the base plan unconditionally charged full price even when
+		// the user was eligible for a trial, which pre-3.0 granted automatically.
+		return new PreparedCheckout(productDetails, SkuDetails.pickBestOffer(offers).getOfferToken(),
+									fetchedAtMillis);
+	}
+
+	boolean isOlderThan(long maxAgeMillis)
+	{
+		return SystemClock.elapsedRealtime() - fetchedAtMillis >= maxAgeMillis;
+	}
+
+	BillingFlowParams.ProductDetailsParams toProductDetailsParams()
+	{
+		BillingFlowParams.ProductDetailsParams.Builder builder =
+				BillingFlowParams.ProductDetailsParams.newBuilder().setProductDetails(productDetails);
+		if (offerToken != null)
+		{
+			builder.setOfferToken(offerToken);
+		}
+		return builder.build();
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.os.SystemClock;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.ProductDetails;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The products an app declared up front with
+ * {@link BillingOptions.Builder#setProductCatalog(List, List)}, and their details once
+ * fetched. Unlike {@link ProductDetailsCache} entries, fetched details are not dropped
+ * when they get old; each successful fetch replaces them.
+ */
+final class ProductCatalog
+{
+	final List<String> inAppProductIds;
+	final List<String> subscriptionIds;
+
+	// Replaced as a whole, so lookups need no lock.
+	private volatile Map<String, ProductDetailsCache.Entry> details = Collections.emptyMap();
+	// Guarded by this.
+	private boolean fetching;
+	private boolean ready;
+	private final ArrayList<Runnable> readyListeners = new ArrayList<>();
+
+	ProductCatalog(List<String> inAppProductIds, List<String> subscriptionIds)
+	{
+		this.inAppProductIds = Collections.unmodifiableList(new ArrayList<>(inAppProductIds));
+		this.subscriptionIds = Collections.unmodifiableList(new ArrayList<>(subscriptionIds));
+	}
+
+	/**
+	 * @return false if a fetch is already running
+	 */
+	synchronized boolean beginFetch()
+	{
+		if (fetching)
+		{
+			return false;
+		}
+		fetching = true;
+		return true;
+	}
+
+	/**
+	 * Ends a fetch that did not get every product type. Details from an earlier fetch, if
+	 * any, are kept.
+	 */
+	synchronized void fetchFailed()
+	{
+		fetching = false;
+	}
+
+	/**
+	 * Ends a fetch, publishing {@code fetched} and marking the catalog ready.
+	 *
+	 * @return the listeners waiting for the first fetch, which the caller must run
+	 */
+	List<Runnable> fetchSucceeded(List<ProductDetails> fetched)
+	{
+		long fetchedAtMillis = SystemClock.elapsedRealtime();
+		HashMap<String, ProductDetailsCache.Entry> byId = new HashMap<>();
+		for (ProductDetails productDetails : fetched)
+		{
+			byId.put(productDetails.getProductId(), new ProductDetailsCache.Entry(productDetails, fetchedAtMillis));
+		}
+		details = Collections.unmodifiableMap(byId);
+		synchronized (this)
+		{
+			fetching = false;
+			ready = true;
+			List<Runnable> listeners = new ArrayList<>(readyListeners);
+			readyListeners.clear();
+			return listeners;
+		}
+	}
+
+	/**
+	 * @return true if the catalog is already ready, in which case {@code listener} was not
+	 * kept and the caller must run it
+	 */
+	synchronized boolean addReadyListener(Runnable listener)
+	{
+		if (!ready)
+		{
+			readyListeners.add(listener);
+		}
+		return ready;
+	}
+
+	synchronized boolean isReady()
+	{
+		return ready;
+	}
+
+	@Nullable
+	ProductDetails get(String productId)
+	{
+		ProductDetailsCache.Entry entry = details.get(productId);
+		return entry != null ? entry.details : null;
+	}
+
+	/**
+	 * Like {@link #get}, also telling when the last successful fetch returned the details.
+	 */
+	@Nullable
+	ProductDetailsCache.Entry getEntry(String productId)
+	{
+		return details.get(productId);
+	}
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.os.Handler;
+import android.os.MessageQueue;
+
+import androidx.annotation.NonNull;
+
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.UnfetchedProduct;
+import com.anjlab.android.iab.v3.BillingProcessor.IProductDetailsResponseListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects single-product details lookups and sends them as one query per product type,
+ * so lookups made by different screens in the same frame cost one round trip to Play.
+ * A batch is sent {@code windowMillis} after its first lookup, or, with a window of 0,
+ * once the handler's looper next runs out of messages. Repeated ids are queried once and
+ * every caller gets the answer.
+ */
+final class ProductDetailsBatcher
+{
+	/**
+	 * Sends a batch, e.g. {@code BillingProcessor#getProductDetailsAsync}.
+	 */
+	interface Loader
+	{
+		void load(List<String> productIds, String productType, IProductDetailsResponseListener listener);
+	}
+
+	private final Handler handler;
+	private final long windowMillis;
+	private final Loader loader;
+
+	// Guarded by this. Product type to product id to the callers waiting for it, in the
+	// order the ids were first asked for.
+	private HashMap<String, LinkedHashMap<String, List<IProductDetailsResponseListener>>> pending = new HashMap<>();
+	private boolean scheduled;
+
+	private final Runnable flush = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			flush();
+		}
+	};
+
+	ProductDetailsBatcher(Handler handler, long windowMillis, Loader loader)
+	{
+		this.handler = handler;
+		this.windowMillis = windowMillis;
+		this.loader = loader;
+	}
+
+	void load(String productId, String productType, IProductDetailsResponseListener listener)
+	{
+		synchronized (this)
+		{
+			LinkedHashMap<String, List<IProductDetailsResponseListener>> ofType = pending.get(productType);
+			if (ofType == null)
+			{
+				ofType = new LinkedHashMap<>();
+				pending.put(productType, ofType);
+			}
+			List<IProductDetailsResponseListener> waiting = ofType.get(productId);
+			if (waiting == null)
+			{
+				waiting = new ArrayList<>(1);
+				ofType.put(productId, waiting);
+			}
+			waiting.add(listener);
+			if (scheduled)
+			{
+				return;
+			}
+			scheduled = true;
+		}
+		if (windowMillis > 0)
+		{
+			handler.postDelayed(flush, windowMillis);
+		}
+		else
+		{
+			// Posting first wakes a looper that is already idle; an idle handler added
+			// from outside would not run until something else arrived.
+			handler.post(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					handler.getLooper().getQueue().addIdleHandler(new MessageQueue.IdleHandler()
+					{
+						@Override
+						public boolean queueIdle()
+						{
+							flush();
+							return false;
+						}
+					});
+				}
+			});
+		}
+	}
+
+	void flush()
+	{
+		HashMap<String, LinkedHashMap<String, List<IProductDetailsResponseListener>>> batch;
+		synchronized (this)
+		{
+			batch = pending;
+			pending = new HashMap<>();
+			scheduled = false;
+		}
+		for (Map.Entry<String, LinkedHashMap<String, List<IProductDetailsResponseListener>>> entry : batch.entrySet())
+		{
+			LinkedHashMap<String, List<IProductDetailsResponseListener>> callers = entry.getValue();
+			loader.load(new ArrayList<>(callers.keySet()), entry.getKey(), new FanOut(callers));
+		}
+	}
+
+	/**
+	 * Hands each caller the part of a batch answer for the id it asked for.
+	 */
+	private static final class FanOut implements IProductDetailsResponseListener
+	{
+		private final Map<String, List<IProductDetailsResponseListener>> callers;
+
+		FanOut(Map<String, List<IProductDetailsResponseListener>> callers)
+		{
+			this.callers = callers;
+		}
+
+		@Override
+		public void onProductDetailsResponse(@NonNull List<ProductDetails> products)
+		{
+			HashMap<String, ProductDetails> byId = new HashMap<>();
+			for (ProductDetails details : products)
+			{
+				byId.put(details.getProductId(), details);
+			}
+			for (Map.Entry<String, List<IProductDetailsResponseListener>> entry : callers.entrySet())
+			{
+				ProductDetails details = byId.get(entry.getKey());
+				List<ProductDetails> answer = details != null
+						? Collections.singletonList(details)
+						: Collections.<ProductDetails>emptyList();
+				for (IProductDetailsResponseListener listener : entry.getValue())
+				{
+					listener.onProductDetailsResponse(answer);
+				}
+			}
+		}
+
+		@Override
+		public void onProductDetailsError(@NonNull String error)
+		{
+			for (List<IProductDetailsResponseListener> listeners : callers.values())
+			{
+				for (IProductDetailsResponseListener listener : listeners)
+				{
+					listener.onProductDetailsError(error);
+				}
+			}
+		}
+
+		@Override
+		public void onProductDetailsUnfetched(@NonNull List<UnfetchedProduct> unfetched)
+		{
+			for (UnfetchedProduct product : unfetched)
+			{
+				List<IProductDetailsResponseListener> listeners = callers.get(product.getProductId());
+				if (listeners != null)
+				{
+					for (IProductDetailsResponseListener listener : listeners)
+					{
+						listener.onProductDetailsUnfetched(Collections.singletonList(product));
+					}
+				}
+			}
+		}
+	}
+}
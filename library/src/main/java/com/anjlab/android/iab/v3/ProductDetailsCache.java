@@ -0,0 +1,126 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.os.SystemClock;
+import android.util.LruCache;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.ProductDetails;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ProductDetails} recently returned by Play, keyed by product type and id. An
+ * entry is served for {@code ttlMillis} after it was fetched and dropped on the first
+ * lookup after that. At most {@code maxEntries} are kept, evicting the least recently
+ * used.
+ */
+final class ProductDetailsCache
+{
+	static final int DEFAULT_MAX_ENTRIES = 100;
+	static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	/**
+	 * Details together with when Play returned them, in {@link SystemClock#elapsedRealtime()}
+	 * time.
+	 */
+	static final class Entry
+	{
+		final ProductDetails details;
+		final long fetchedAtMillis;
+
+		Entry(ProductDetails details, long fetchedAtMillis)
+		{
+			this.details = details;
+			this.fetchedAtMillis = fetchedAtMillis;
+		}
+
+		boolean isOlderThan(long maxAgeMillis)
+		{
+			return SystemClock.elapsedRealtime() - fetchedAtMillis >= maxAgeMillis;
+		}
+	}
+
+	private final LruCache<String, Entry> entries;
+	private final long ttlMillis;
+	// LruCache counts a hit on an expired entry, so fresh hits are counted here.
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	ProductDetailsCache(int maxEntries, long ttlMillis)
+	{
+		entries = new LruCache<>(maxEntries);
+		this.ttlMillis = ttlMillis;
+	}
+
+	static String key(String productId, String productType)
+	{
+		return productType + ':' + productId;
+	}
+
+	/**
+	 * @return the details if they were fetched less than the TTL ago, null otherwise
+	 */
+	@Nullable
+	ProductDetails get(String productId, String productType)
+	{
+		Entry entry = getEntry(productId, productType);
+		return entry != null ? entry.details : null;
+	}
+
+	/**
+	 * Like {@link #get}, also telling when the details were fetched.
+	 */
+	@Nullable
+	Entry getEntry(String productId, String productType)
+	{
+		String key = key(productId, productType);
+		Entry entry = entries.get(key);
+		if (entry != null)
+		{
+			if (!entry.isOlderThan(ttlMillis))
+			{
+				hits.incrementAndGet();
+				return entry;
+			}
+			entries.remove(key);
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Like {@link #get} returning non-null, without counting a hit or a miss.
+	 */
+	boolean contains(String productId, String productType)
+	{
+		Entry entry = entries.get(key(productId, productType));
+		return entry != null && !entry.isOlderThan(ttlMillis);
+	}
+
+	void put(ProductDetails details)
+	{
+		entries.put(key(details.getProductId(), details.getProductType()),
+					new Entry(details, SystemClock.elapsedRealtime()));
+	}
+
+	CacheStats stats()
+	{
+		return new CacheStats(hits.get(), misses.get(), entries.evictionCount(), entries.size());
+	}
+}
@@ -0,0 +1,297 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.os.Handler;
+
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.UnfetchedProduct;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a product details query into chunks of at most {@code chunkSize} ids and keeps at
+ * most {@code maxInFlight} of them outstanding, so a large catalog is not one slow query
+ * that fails as a whole. A chunk that fails with a transient response code is sent again,
+ * up to {@value #MAX_ATTEMPTS} times in all, without repeating the chunks that succeeded.
+ * Retries wait {@value #FIRST_RETRY_DELAY_MILLIS} ms, doubling with every attempt, so they
+ * do not all land in the same outage. Any other failure, or running out of attempts,
+ * fails the fetch.
+ */
+final class ProductDetailsFetcher
+{
+	static final int DEFAULT_CHUNK_SIZE = 20;
+	static final int DEFAULT_MAX_IN_FLIGHT = 3;
+	static final int MAX_ATTEMPTS = 3;
+	static final long FIRST_RETRY_DELAY_MILLIS = 500L;
+
+	/**
+	 * Sends one chunk to Play.
+	 */
+	interface Query
+	{
+		void query(List<String> productIds, String productType, ChunkCallback callback);
+	}
+
+	interface ChunkCallback
+	{
+		void onChunkResult(int responseCode, @Nullable List<ProductDetails> details,
+						   @Nullable List<UnfetchedProduct> unfetched);
+	}
+
+	interface Listener
+	{
+		/**
+		 * Called for every chunk Play answered, as it arrives.
+		 */
+		void onChunkFetched(List<ProductDetails> details);
+
+		/**
+		 * Called once every chunk arrived, with their details in chunk order and the
+		 * products Play reported as unfetched.
+		 */
+		void onFetched(List<ProductDetails> details, List<UnfetchedProduct> unfetched);
+
+		/**
+		 * Called at most once, instead of {@link #onFetched}.
+		 *
+		 * @param error what {@link Query#query} threw, or null if Play answered
+		 *              {@code responseCode}
+		 */
+		void onFailed(int responseCode, @Nullable RuntimeException error);
+	}
+
+	private final int chunkSize;
+	private final int maxInFlight;
+	// Runs the delayed retries.
+	private final Handler handler;
+
+	ProductDetailsFetcher(int chunkSize, int maxInFlight, Handler handler)
+	{
+		this.chunkSize = chunkSize;
+		this.maxInFlight = maxInFlight;
+		this.handler = handler;
+	}
+
+	void fetch(List<String> productIds, String productType, Query query, Listener listener)
+	{
+		List<List<String>> chunks = new ArrayList<>((productIds.size() + chunkSize - 1) / chunkSize);
+		for (int start = 0; start < productIds.size(); start += chunkSize)
+		{
+			chunks.add(new ArrayList<>(productIds.subList(start, Math.min(start + chunkSize, productIds.size()))));
+		}
+		if (chunks.isEmpty())
+		{
+			listener.onFetched(new ArrayList<ProductDetails>(), new ArrayList<UnfetchedProduct>());
+			return;
+		}
+		new Fetch(chunks, productType, query, listener).pump();
+	}
+
+	static boolean isTransient(int responseCode)
+	{
+		return responseCode == BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE
+			   || responseCode == BillingClient.BillingResponseCode.SERVICE_DISCONNECTED
+			   || responseCode == BillingClient.BillingResponseCode.NETWORK_ERROR
+			   || responseCode == BillingClient.BillingResponseCode.ERROR;
+	}
+
+	/**
+	 * @param attempts how often the chunk has been sent so far
+	 */
+	static long retryDelayMillis(int attempts)
+	{
+		return FIRST_RETRY_DELAY_MILLIS << (attempts - 1);
+	}
+
+	private final class Fetch
+	{
+		private final List<List<String>> chunks;
+		private final String productType;
+		private final Query query;
+		private final Listener listener;
+
+		// Guarded by this.
+		private final List<List<ProductDetails>> results;
+		private final ArrayList<UnfetchedProduct> unfetched = new ArrayList<>();
+		private final int[] attempts;
+		private final ArrayDeque<Integer> retries = new ArrayDeque<>();
+		private int next;
+		private int inFlight;
+		private int remaining;
+		private boolean finished;
+
+		Fetch(List<List<String>> chunks, String productType, Query query, Listener listener)
+		{
+			this.chunks = chunks;
+			this.productType = productType;
+			this.query = query;
+			this.listener = listener;
+			results = new ArrayList<>(chunks.size());
+			for (int i = 0; i < chunks.size(); i++)
+			{
+				results.add(null);
+			}
+			attempts = new int[chunks.size()];
+			remaining = chunks.size();
+		}
+
+		/**
+		 * Sends chunks until {@code maxInFlight} are outstanding or none is left to send.
+		 * Answers may arrive on the sending thread, so nothing is sent under the lock.
+		 */
+		void pump()
+		{
+			while (true)
+			{
+				final int chunk;
+				synchronized (this)
+				{
+					if (finished || inFlight >= maxInFlight)
+					{
+						return;
+					}
+					if (!retries.isEmpty())
+					{
+						chunk = retries.poll();
+					}
+					else if (next < chunks.size())
+					{
+						chunk = next++;
+					}
+					else
+					{
+						return;
+					}
+					inFlight++;
+					attempts[chunk]++;
+				}
+				try
+				{
+					query.query(chunks.get(chunk), productType, new ChunkCallback()
+					{
+						@Override
+						public void onChunkResult(int responseCode, @Nullable List<ProductDetails> details,
+												  @Nullable List<UnfetchedProduct> unfetched)
+						{
+							onResult(chunk, responseCode, details, unfetched);
+						}
+					});
+				}
+				catch (RuntimeException e)
+				{
+					synchronized (this)
+					{
+						if (finished)
+						{
+							return;
+						}
+						finished = true;
+					}
+					listener.onFailed(Constants.BILLING_ERROR_SKUDETAILS_FAILED, e);
+					return;
+				}
+			}
+		}
+
+		private void onResult(int chunk, int responseCode, @Nullable List<ProductDetails> details,
+							  @Nullable List<UnfetchedProduct> chunkUnfetched)
+		{
+			List<ProductDetails> fetched = details != null ? details : new ArrayList<ProductDetails>();
+			boolean ok = responseCode == BillingClient.BillingResponseCode.OK;
+			boolean done = false;
+			boolean failed = false;
+			int retryAttempts = 0;
+			synchronized (this)
+			{
+				if (finished)
+				{
+					return;
+				}
+				inFlight--;
+				if (ok)
+				{
+					results.set(chunk, fetched);
+					if (chunkUnfetched != null)
+					{
+						unfetched.addAll(chunkUnfetched);
+					}
+					done = --remaining == 0;
+					finished = done;
+				}
+				else if (isTransient(responseCode) && attempts[chunk] < MAX_ATTEMPTS)
+				{
+					retryAttempts = attempts[chunk];
+				}
+				else
+				{
+					finished = true;
+					failed = true;
+				}
+			}
+
+			if (ok)
+			{
+				listener.onChunkFetched(fetched);
+			}
+			else if (failed)
+			{
+				listener.onFailed(responseCode, null);
+				return;
+			}
+			if (done)
+			{
+				List<ProductDetails> all = new ArrayList<>();
+				for (List<ProductDetails> result : results)
+				{
+					all.addAll(result);
+				}
+				listener.onFetched(all, unfetched);
+				return;
+			}
+			if (retryAttempts > 0)
+			{
+				scheduleRetry(chunk, retryDelayMillis(retryAttempts));
+			}
+			pump();
+		}
+
+		private void scheduleRetry(final int chunk, long delayMillis)
+		{
+			handler.postDelayed(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					synchronized (Fetch.this)
+					{
+						if (finished)
+						{
+							return;
+						}
+						retries.add(chunk);
+					}
+					pump();
+				}
+			}, delayMillis);
+		}
+	}
+}
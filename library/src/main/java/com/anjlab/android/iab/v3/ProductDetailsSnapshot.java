@@ -0,0 +1,500 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.ProductDetails;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * The last product details Play returned, persisted through a {@link BillingStore} so the
+ * legacy listing queries can answer on the next launch, before the billing client
+ * connects. A record keeps what {@link SkuDetails#fromProductDetails(ProductDetails)}
+ * extracts, plus the price of every offer and pricing phase, so that a refresh can tell
+ * whether prices moved.
+ *
+ * <p>Records loaded from the store count as possibly stale until the same product is
+ * fetched again in this process. At most {@value #MAX_RECORDS} records are kept; the ones
+ * fetched longest ago go first.
+ *
+ * <pre>
+ * int    magic ("IABP")
+ * int    format version
+ * int    record count
+ * record productId, productType, legacy SkuDetails JSON, offer token, each as a string
+ *        in {@link BillingCacheFormat}'s encoding, then
+ *        int    offer count, and per offer:
+ *               basePlanId, offerId as strings
+ *               int    phase count, and per phase:
+ *                      formattedPrice, currency, billingPeriod as strings
+ *                      long   price in micros
+ *                      int    billing cycle count
+ *                      int    recurrence mode
+ * long   CRC32 of everything above
+ * </pre>
+ *
+ * A one-time product has a single offer with null ids and one non-recurring phase.
+ */
+final class ProductDetailsSnapshot
+{
+	private static final String LOG_TAG = "iabv3.snapshot";
+
+	static final int MAGIC = 0x49414250;
+	static final int VERSION = 1;
+	static final int MAX_RECORDS = 100;
+
+	private static final int HEADER_SIZE = 12;
+	private static final int CHECKSUM_SIZE = 8;
+
+	private final BillingStore store;
+	private final String key;
+	private final AtomicBoolean writeScheduled = new AtomicBoolean();
+	// Held from encoding until the commit returns, so that writes reach the store in the
+	// order they read the records and an older snapshot never lands last.
+	private final Object writeLock = new Object();
+
+	// Guarded by this. Keyed by type and id, least recently fetched first; null until
+	// load() has read the store.
+	private LinkedHashMap<String, Record> records;
+	// Keys fetched in this process, which are no longer stale.
+	private final HashSet<String> refreshed = new HashSet<>();
+
+	static final class Record
+	{
+		final String productId;
+		final String productType;
+		final String skuDetailsJson;
+		@Nullable
+		final String offerToken;
+		final List<Offer> offers;
+
+		Record(String productId, String productType, String skuDetailsJson, @Nullable String offerToken,
+			   List<Offer> offers)
+		{
+			this.productId = productId;
+			this.productType = productType;
+			this.skuDetailsJson = skuDetailsJson;
+			this.offerToken = offerToken;
+			this.offers = offers;
+		}
+
+		static Record from(ProductDetails details) throws JSONException
+		{
+			SkuDetails skuDetails = SkuDetails.fromProductDetails(details);
+			return new Record(details.getProductId(), details.getProductType(), skuDetails.responseData,
+							  skuDetails.offerToken, offersOf(details));
+		}
+
+		@SuppressWarnings("deprecation")
+		SkuDetails toSkuDetails() throws JSONException
+		{
+			SkuDetails skuDetails = new SkuDetails(new JSONObject(skuDetailsJson));
+			skuDetails.offerToken = offerToken;
+			skuDetails.possiblyStale = true;
+			return skuDetails;
+		}
+	}
+
+	static final class Offer
+	{
+		@Nullable
+		final String basePlanId;
+		@Nullable
+		final String offerId;
+		final List<Phase> phases;
+
+		Offer(@Nullable String basePlanId, @Nullable String offerId, List<Phase> phases)
+		{
+			this.basePlanId = basePlanId;
+			this.offerId = offerId;
+			this.phases = phases;
+		}
+
+		boolean samePrices(Offer other)
+		{
+			if (!equal(basePlanId, other.basePlanId) || !equal(offerId, other.offerId)
+				|| phases.size() != other.phases.size())
+			{
+				return false;
+			}
+			for (int i = 0; i < phases.size(); i++)
+			{
+				if (!phases.get(i).samePrice(other.phases.get(i)))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	static final class Phase
+	{
+		final String formattedPrice;
+		final String currency;
+		final String billingPeriod;
+		final long priceMicros;
+		final int billingCycleCount;
+		final int recurrenceMode;
+
+		Phase(String formattedPrice, String currency, String billingPeriod, long priceMicros,
+			  int billingCycleCount, int recurrenceMode)
+		{
+			this.formattedPrice = formattedPrice;
+			this.currency = currency;
+			this.billingPeriod = billingPeriod;
+			this.priceMicros = priceMicros;
+			this.billingCycleCount = billingCycleCount;
+			this.recurrenceMode = recurrenceMode;
+		}
+
+		/**
+		 * Compares what is charged, not how it is displayed: a new formatting locale alone
+		 * is not a price change.
+		 */
+		boolean samePrice(Phase other)
+		{
+			return priceMicros == other.priceMicros
+				   && billingCycleCount == other.billingCycleCount
+				   && recurrenceMode == other.recurrenceMode
+				   && equal(currency, other.currency)
+				   && equal(billingPeriod, other.billingPeriod);
+		}
+	}
+
+	ProductDetailsSnapshot(BillingStore store, String key)
+	{
+		this.store = store;
+		this.key = key;
+	}
+
+	/**
+	 * Reads the records from the store, unless that was already done. A record that cannot
+	 * be read is dropped; the next fetch writes a new one.
+	 */
+	synchronized void load()
+	{
+		if (records != null)
+		{
+			return;
+		}
+		records = new LinkedHashMap<>();
+		byte[] data = store.getBytes(key);
+		if (data == null)
+		{
+			return;
+		}
+		try
+		{
+			for (Record record : decode(data))
+			{
+				records.put(recordKey(record.productId, record.productType), record);
+			}
+		}
+		catch (IOException e)
+		{
+			Log.w(LOG_TAG, "Discarding unreadable product details snapshot", e);
+			records.clear();
+		}
+	}
+
+	/**
+	 * The stored records of {@code productIds}, in that order, if every one of them is
+	 * still stale; null if any is missing or has been fetched in this process.
+	 */
+	@Nullable
+	synchronized List<Record> getStale(List<String> productIds, String productType)
+	{
+		load();
+		List<Record> stale = new ArrayList<>(productIds.size());
+		for (String productId : productIds)
+		{
+			String recordKey = recordKey(productId, productType);
+			Record record = records.get(recordKey);
+			if (record == null || refreshed.contains(recordKey))
+			{
+				return null;
+			}
+			stale.add(record);
+		}
+		return stale;
+	}
+
+	/**
+	 * Replaces the records of {@code detailsList} and persists them on {@code executor}.
+	 * Updates that arrive while a write is queued are folded into it.
+	 */
+	void update(List<ProductDetails> detailsList, Executor executor)
+	{
+		List<Record> fetched = new ArrayList<>(detailsList.size());
+		for (ProductDetails details : detailsList)
+		{
+			try
+			{
+				fetched.add(Record.from(details));
+			}
+			catch (JSONException e)
+			{
+				Log.w(LOG_TAG, "Not persisting details of " + details.getProductId(), e);
+			}
+		}
+		synchronized (this)
+		{
+			load();
+			for (Record record : fetched)
+			{
+				String recordKey = recordKey(record.productId, record.productType);
+				// Re-inserting moves the record to the end of the eviction order.
+				records.remove(recordKey);
+				records.put(recordKey, record);
+				refreshed.add(recordKey);
+			}
+			Iterator<String> eldest = records.keySet().iterator();
+			while (records.size() > MAX_RECORDS)
+			{
+				eldest.next();
+				eldest.remove();
+			}
+		}
+		if (writeScheduled.compareAndSet(false, true))
+		{
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					writeScheduled.set(false);
+					write();
+				}
+			});
+		}
+	}
+
+	private void write()
+	{
+		synchronized (writeLock)
+		{
+			byte[] data;
+			synchronized (this)
+			{
+				try
+				{
+					data = encode(records.values());
+				}
+				catch (IOException e)
+				{
+					Log.e(LOG_TAG, "Failed to encode product details snapshot", e);
+					return;
+				}
+			}
+			if (!store.edit().putBytes(key, data).commit())
+			{
+				Log.w(LOG_TAG, "Failed to persist product details snapshot");
+			}
+		}
+	}
+
+	/**
+	 * Whether {@code fetched} charges differently from {@code served}: a price, currency,
+	 * period or offer changed, or a served product is gone.
+	 */
+	static boolean pricesChanged(List<Record> served, List<ProductDetails> fetched)
+	{
+		HashMap<String, List<Offer>> fetchedOffers = new HashMap<>();
+		for (ProductDetails details : fetched)
+		{
+			fetchedOffers.put(details.getProductId(), offersOf(details));
+		}
+		for (Record record : served)
+		{
+			List<Offer> offers = fetchedOffers.get(record.productId);
+			if (offers == null || offers.size() != record.offers.size())
+			{
+				return true;
+			}
+			for (int i = 0; i < offers.size(); i++)
+			{
+				if (!offers.get(i).samePrices(record.offers.get(i)))
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	static List<Offer> offersOf(ProductDetails details)
+	{
+		List<Offer> offers = new ArrayList<>();
+		ProductDetails.OneTimePurchaseOfferDetails oneTime = details.getOneTimePurchaseOfferDetails();
+		if (oneTime != null)
+		{
+			offers.add(new Offer(null, null, Collections.singletonList(
+					new Phase(oneTime.getFormattedPrice(), oneTime.getPriceCurrencyCode(), "",
+							  oneTime.getPriceAmountMicros(), 0, ProductDetails.RecurrenceMode.NON_RECURRING))));
+		}
+		List<ProductDetails.SubscriptionOfferDetails> subscriptionOffers = details.getSubscriptionOfferDetails();
+		if (subscriptionOffers != null)
+		{
+			for (ProductDetails.SubscriptionOfferDetails offer : subscriptionOffers)
+			{
+				List<Phase> phases = new ArrayList<>();
+				for (ProductDetails.PricingPhase phase : offer.getPricingPhases().getPricingPhaseList())
+				{
+					phases.add(new Phase(phase.getFormattedPrice(), phase.getPriceCurrencyCode(),
+										 phase.getBillingPeriod(), phase.getPriceAmountMicros(),
+										 phase.getBillingCycleCount(), phase.getRecurrenceMode()));
+				}
+				offers.add(new Offer(offer.getBasePlanId(), offer.getOfferId(), phases));
+			}
+		}
+		return offers;
+	}
+
+	static byte[] encode(Collection<Record> records) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + records.size() * 512);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(records.size());
+		for (Record record : records)
+		{
+			BillingCacheFormat.writeString(out, record.productId);
+			BillingCacheFormat.writeString(out, record.productType);
+			BillingCacheFormat.writeString(out, record.skuDetailsJson);
+			BillingCacheFormat.writeString(out, record.offerToken);
+			out.writeInt(record.offers.size());
+			for (Offer offer : record.offers)
+			{
+				BillingCacheFormat.writeString(out, offer.basePlanId);
+				BillingCacheFormat.writeString(out, offer.offerId);
+				out.writeInt(offer.phases.size());
+				for (Phase phase : offer.phases)
+				{
+					BillingCacheFormat.writeString(out, phase.formattedPrice);
+					BillingCacheFormat.writeString(out, phase.currency);
+					BillingCacheFormat.writeString(out, phase.billingPeriod);
+					out.writeLong(phase.priceMicros);
+					out.writeInt(phase.billingCycleCount);
+					out.writeInt(phase.recurrenceMode);
+				}
+			}
+		}
+		out.flush();
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeLong(crc.getValue());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @throws IOException if {@code data} is truncated, fails the checksum or was written by
+	 *                     an unknown format version
+	 */
+	static List<Record> decode(byte[] data) throws IOException
+	{
+		if (data.length < HEADER_SIZE + CHECKSUM_SIZE)
+		{
+			throw new IOException("Snapshot record is truncated");
+		}
+		int bodyLength = data.length - CHECKSUM_SIZE;
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, bodyLength);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		in.skipBytes(bodyLength);
+		if (in.readLong() != crc.getValue())
+		{
+			throw new IOException("Snapshot record checksum mismatch");
+		}
+
+		in = new DataInputStream(new ByteArrayInputStream(data, 0, bodyLength));
+		if (in.readInt() != MAGIC)
+		{
+			throw new IOException("Not a product details snapshot");
+		}
+		int version = in.readInt();
+		if (version != VERSION)
+		{
+			throw new IOException("Unsupported snapshot format version " + version);
+		}
+		int count = in.readInt();
+		List<Record> records = new ArrayList<>();
+		for (int i = 0; i < count; i++)
+		{
+			String productId = BillingCacheFormat.readString(in);
+			String productType = BillingCacheFormat.readString(in);
+			String skuDetailsJson = BillingCacheFormat.readString(in);
+			String offerToken = BillingCacheFormat.readString(in);
+			int offerCount = in.readInt();
+			List<Offer> offers = new ArrayList<>();
+			for (int j = 0; j < offerCount; j++)
+			{
+				String basePlanId = BillingCacheFormat.readString(in);
+				String offerId = BillingCacheFormat.readString(in);
+				int phaseCount = in.readInt();
+				List<Phase> phases = new ArrayList<>();
+				for (int k = 0; k < phaseCount; k++)
+				{
+					phases.add(new Phase(BillingCacheFormat.readString(in), BillingCacheFormat.readString(in),
+										 BillingCacheFormat.readString(in), in.readLong(), in.readInt(),
+										 in.readInt()));
+				}
+				offers.add(new Offer(basePlanId, offerId, phases));
+			}
+			if (productId == null || productType == null || skuDetailsJson == null)
+			{
+				throw new IOException("Snapshot record without product id, type or details");
+			}
+			records.add(new Record(productId, productType, skuDetailsJson, offerToken, offers));
+		}
+		return records;
+	}
+
+	private static String recordKey(String productId, String productType)
+	{
+		return productType + ':' + productId;
+	}
+
+	private static boolean equal(@Nullable String a, @Nullable String b)
+	{
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Checks a list of purchases by splitting it into contiguous chunks, one per worker. The
+ * calling thread verifies the first chunk itself. It then runs any chunk the executor has
+ * not started yet, and waits for the rest. A batch therefore never takes more than
+ * {@code parallelism} threads, counting the caller. It also cannot deadlock when the
+ * caller is itself running on {@code executor}, even if that executor is serial. Small
+ * batches are verified on the calling thread alone, because handing them off costs more
+ * than it saves.
+ */
+final class PurchaseBatchVerifier
+{
+	interface Check
+	{
+		boolean isValid(ParsedPurchase purchase);
+	}
+
+	/**
+	 * Fewest purchases worth giving to a worker of their own.
+	 */
+	static final int MIN_CHUNK_SIZE = 8;
+
+	private final Executor executor;
+	private final int parallelism;
+
+	PurchaseBatchVerifier(Executor executor, int parallelism)
+	{
+		this.executor = executor;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * @return one flag per purchase, in the order of {@code purchases}. A check that throws
+	 * counts as invalid.
+	 */
+	boolean[] verify(List<ParsedPurchase> purchases, Check check)
+	{
+		int size = purchases.size();
+		boolean[] valid = new boolean[size];
+		int chunks = Math.min(parallelism, size / MIN_CHUNK_SIZE);
+		if (chunks <= 1)
+		{
+			verifyRange(purchases, 0, size, check, valid);
+			return valid;
+		}
+
+		int chunkSize = (size + chunks - 1) / chunks;
+		List<FutureTask<Void>> forked = new ArrayList<>(chunks - 1);
+		for (int from = chunkSize; from < size; from += chunkSize)
+		{
+			FutureTask<Void> task = newChunk(purchases, from, Math.min(size, from + chunkSize), check, valid);
+			try
+			{
+				executor.execute(task);
+			}
+			catch (RejectedExecutionException e)
+			{
+				// Run below, by the calling thread.
+			}
+			forked.add(task);
+		}
+		verifyRange(purchases, 0, chunkSize, check, valid);
+
+		// Future.get() also makes the workers' writes to valid visible here.
+		boolean interrupted = false;
+		for (FutureTask<Void> task : forked)
+		{
+			// No-op if a worker has already started this chunk.
+			task.run();
+			while (true)
+			{
+				try
+				{
+					task.get();
+					break;
+				}
+				catch (InterruptedException e)
+				{
+					// The remaining checks are short; finish them rather than return a
+					// partial answer.
+					interrupted = true;
+				}
+				catch (ExecutionException e)
+				{
+					// verifyRange catches everything a check throws.
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		return valid;
+	}
+
+	private static FutureTask<Void> newChunk(final List<ParsedPurchase> purchases, final int from, final int to,
+											 final Check check, final boolean[] valid)
+	{
+		return new FutureTask<>(() ->
+		{
+			verifyRange(purchases, from, to, check, valid);
+			return null;
+		});
+	}
+
+	private static void verifyRange(List<ParsedPurchase> purchases, int from, int to, Check check, boolean[] valid)
+	{
+		for (int i = from; i < to; i++)
+		{
+			try
+			{
+				valid[i] = check.isValid(purchases.get(i));
+			}
+			catch (RuntimeException e)
+			{
+				valid[i] = false;
+			}
+		}
+	}
+}
@@ -15,14 +15,12 @@
  */
 package com.anjlab.android.iab.v3;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.util.Date;
+import java.io.IOException;
 
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
+import androidx.annotation.Nullable;
 
 /**
  * With this PurchaseInfo a developer is able verify
@@ -37,13 +35,6 @@ public class PurchaseInfo implements Parcelable
 {
     private static final String LOG_TAG = "iabv3.purchaseInfo";
 
-    /**
-     * Raw {@code purchaseState} value Google Play uses for a pending purchase in the
-     * purchase JSON. Mirrors how {@code com.android.billingclient.api.Purchase#getPurchaseState()}
-     * decodes it ({@code optInt("purchaseState", PURCHASED)}, {@code case 4 -> PENDING}).
-     */
-    private static final int RESPONSE_STATE_PENDING = 4;
-
     public final String responseData;
     public final String signature;
     /**
@@ -51,14 +42,22 @@ public class PurchaseInfo implements Parcelable
      */
     @Deprecated
     public final String developerPayload;
+    /**
+     * The fields of {@link #responseData}, or {@code null} if it is not a valid purchase.
+     *
+     * @deprecated use {@link #getPurchaseData()}
+     */
+    @Deprecated
     public final PurchaseData purchaseData;
+    // Decoded fields, when whoever built this already had them: purchases from Play
+    // and cache records written by this version. purchaseData is then copied from them
+    // instead of parsing responseData again.
+    @Nullable
+    final ParsedPurchase parsed;
 
     public PurchaseInfo(String responseData, String signature)
     {
-        this.responseData = responseData;
-        this.signature = signature;
-        this.developerPayload = "";
-        this.purchaseData = parseResponseDataImpl();
+        this(responseData, signature, "");
     }
 
     public PurchaseInfo(String responseData, String signature, String developerPayload)
@@ -66,57 +65,41 @@ public class PurchaseInfo implements Parcelable
         this.responseData = responseData;
         this.signature = signature;
         this.developerPayload = developerPayload;
+        this.parsed = null;
         this.purchaseData = parseResponseDataImpl();
     }
 
-    PurchaseData parseResponseDataImpl()
+    PurchaseInfo(ParsedPurchase parsed, String developerPayload)
     {
-        try
-        {
-            JSONObject json = new JSONObject(responseData);
-            PurchaseData data = new PurchaseData();
-            data.orderId = json.optString(Constants.RESPONSE_ORDER_ID);
-            data.packageName = json.optString(Constants.RESPONSE_PACKAGE_NAME);
-            data.productId = json.optString(Constants.RESPONSE_PRODUCT_ID);
-            long purchaseTimeMillis = json.optLong(Constants.RESPONSE_PURCHASE_TIME, 0);
-            data.purchaseTime = purchaseTimeMillis != 0 ? new Date(purchaseTimeMillis) : null;
-            data.purchaseState = toPurchaseState(
-                    json.optInt(Constants.RESPONSE_PURCHASE_STATE, PurchaseState.Canceled.ordinal()));
-            data.developerPayload = developerPayload;
-            data.purchaseToken = json.getString(Constants.RESPONSE_PURCHASE_TOKEN);
-            data.autoRenewing = json.optBoolean(Constants.RESPONSE_AUTO_RENEWING);
-            return data;
-        }
-        catch (JSONException e)
-        {
-            Log.e(LOG_TAG, "Failed to parse response data", e);
-            return null;
-        }
+        this.responseData = parsed.json;
+        this.signature = parsed.signature;
+        this.developerPayload = developerPayload;
+        this.parsed = parsed;
+        this.purchaseData = parsed.toPurchaseData(developerPayload);
     }
 
     /**
-     * Maps the raw {@code purchaseState} integer from Google Play's purchase JSON to a
-     * {@link PurchaseState}. Google encodes a pending purchase as {@code 4}, which is
-     * outside the {@code 0..3} range this library originally modelled; indexing
-     * {@link PurchaseState#values()} directly therefore threw
-     * {@link ArrayIndexOutOfBoundsException} for pending purchases — including the one
-     * this library itself builds when reporting a pending purchase. Pending is mapped
-     * explicitly (not via its ordinal) so it survives any future reordering of the enum,
-     * and any unrecognised value degrades to a normal purchase instead of crashing.
+     * @return the fields of {@link #responseData}, or {@code null} if it is not a valid
+     * purchase
      */
-    private static PurchaseState toPurchaseState(int responseState)
+    @Nullable
+    @SuppressWarnings("deprecation")
+    public PurchaseData getPurchaseData()
     {
-        if (responseState == RESPONSE_STATE_PENDING)
+        return purchaseData;
+    }
+
+    PurchaseData parseResponseDataImpl()
+    {
+        try
         {
-            return PurchaseState.Pending;
+            return PurchaseJsonParser.parse(responseData, signature).toPurchaseData(developerPayload);
         }
-        // 0..3 keep their historical meaning:
-        // PurchasedSuccessfully / Canceled / Refunded / SubscriptionExpired.
-        if (responseState >= 0 && responseState <= PurchaseState.SubscriptionExpired.ordinal())
+        catch (IOException e)
         {
-            return PurchaseState.values()[responseState];
+            Log.e(LOG_TAG, "Failed to parse response data", e);
+            return null;
         }
-        return PurchaseState.PurchasedSuccessfully;
     }
 
     @Override
@@ -138,6 +121,7 @@ public class PurchaseInfo implements Parcelable
         this.responseData = in.readString();
         this.developerPayload = in.readString();
         this.signature = in.readString();
+        this.parsed = null;
         this.purchaseData = parseResponseDataImpl();
     }
 
@@ -170,7 +154,7 @@ public class PurchaseInfo implements Parcelable
         return responseData.equals(other.responseData)
                && signature.equals(other.signature)
                && developerPayload.equals(other.developerPayload)
-               && purchaseData.purchaseToken.equals(other.purchaseData.purchaseToken)
-               && purchaseData.purchaseTime.equals(other.purchaseData.purchaseTime);
+               && getPurchaseData().purchaseToken.equals(other.getPurchaseData().purchaseToken)
+               && getPurchaseData().purchaseTime.equals(other.getPurchaseData().purchaseTime);
     }
 }
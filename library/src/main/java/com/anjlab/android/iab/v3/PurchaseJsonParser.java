@@ -0,0 +1,202 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Reads the fields this library uses out of Google Play's purchase JSON in a single
+ * streaming pass. Unknown fields and nested values are skipped without being
+ * materialized, unlike {@code new JSONObject(json)}, which builds the whole tree.
+ *
+ * <p>Values are coerced the way the {@code JSONObject.opt*} calls this replaces did:
+ * numbers may be quoted, a missing or unreadable optional field takes its default, and
+ * only {@code purchaseToken} is required. An explicit {@code null} counts as missing,
+ * where {@code JSONObject} would have returned the string {@code "null"}.
+ */
+final class PurchaseJsonParser
+{
+	/**
+	 * Raw {@code purchaseState} value Google Play uses for a pending purchase in the
+	 * purchase JSON. Mirrors how {@code com.android.billingclient.api.Purchase#getPurchaseState()}
+	 * decodes it ({@code optInt("purchaseState", PURCHASED)}, {@code case 4 -> PENDING}).
+	 */
+	private static final int RESPONSE_STATE_PENDING = 4;
+
+	private PurchaseJsonParser()
+	{
+	}
+
+	/**
+	 * @throws IOException if {@code json} is not a JSON object or has no
+	 * {@code purchaseToken}
+	 */
+	static ParsedPurchase parse(String json, @Nullable String signature) throws IOException
+	{
+		String orderId = "";
+		String packageName = "";
+		String productId = "";
+		long purchaseTimeMillis = 0;
+		int purchaseState = PurchaseState.Canceled.ordinal();
+		String purchaseToken = null;
+		boolean autoRenewing = false;
+		boolean hasAutoRenewing = false;
+
+		JsonReader reader = new JsonReader(new StringReader(json));
+		try
+		{
+			reader.setLenient(true);
+			reader.beginObject();
+			while (reader.hasNext())
+			{
+				String name = reader.nextName();
+				if (Constants.RESPONSE_ORDER_ID.equals(name))
+				{
+					orderId = nextString(reader, "");
+				}
+				else if (Constants.RESPONSE_PACKAGE_NAME.equals(name))
+				{
+					packageName = nextString(reader, "");
+				}
+				else if (Constants.RESPONSE_PRODUCT_ID.equals(name))
+				{
+					productId = nextString(reader, "");
+				}
+				else if (Constants.RESPONSE_PURCHASE_TIME.equals(name))
+				{
+					purchaseTimeMillis = nextLong(reader, 0);
+				}
+				else if (Constants.RESPONSE_PURCHASE_STATE.equals(name))
+				{
+					purchaseState = (int) nextLong(reader, purchaseState);
+				}
+				else if (Constants.RESPONSE_PURCHASE_TOKEN.equals(name))
+				{
+					purchaseToken = nextString(reader, null);
+				}
+				else if (Constants.RESPONSE_AUTO_RENEWING.equals(name))
+				{
+					hasAutoRenewing = true;
+					autoRenewing = nextBoolean(reader);
+				}
+				else
+				{
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		}
+		catch (IllegalStateException | NumberFormatException e)
+		{
+			// JsonReader reports structural errors this way.
+			throw new IOException("Malformed purchase JSON", e);
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		if (purchaseToken == null)
+		{
+			throw new IOException("Purchase JSON has no " + Constants.RESPONSE_PURCHASE_TOKEN);
+		}
+		return new ParsedPurchase(json, signature, orderId, packageName, productId, purchaseTimeMillis,
+								  toPurchaseState(purchaseState), purchaseToken, autoRenewing, hasAutoRenewing);
+	}
+
+	/**
+	 * Strings, numbers and booleans as their text; {@code null} and containers as
+	 * {@code defValue}.
+	 */
+	private static String nextString(JsonReader reader, String defValue) throws IOException
+	{
+		JsonToken token = reader.peek();
+		if (token == JsonToken.STRING || token == JsonToken.NUMBER)
+		{
+			return reader.nextString();
+		}
+		if (token == JsonToken.BOOLEAN)
+		{
+			return String.valueOf(reader.nextBoolean());
+		}
+		reader.skipValue();
+		return defValue;
+	}
+
+	private static long nextLong(JsonReader reader, long defValue) throws IOException
+	{
+		String text = nextString(reader, null);
+		if (text == null)
+		{
+			return defValue;
+		}
+		try
+		{
+			return Long.parseLong(text);
+		}
+		catch (NumberFormatException e)
+		{
+			try
+			{
+				return (long) Double.parseDouble(text);
+			}
+			catch (NumberFormatException notANumber)
+			{
+				return defValue;
+			}
+		}
+	}
+
+	private static boolean nextBoolean(JsonReader reader) throws IOException
+	{
+		if (reader.peek() == JsonToken.BOOLEAN)
+		{
+			return reader.nextBoolean();
+		}
+		return "true".equalsIgnoreCase(nextString(reader, null));
+	}
+
+	/**
+	 * Maps the raw {@code purchaseState} integer from Google Play's purchase JSON to a
+	 * {@link PurchaseState}. Google encodes a pending purchase as {@code 4}, which is
+	 * outside the {@code 0..3} range this library originally modelled; indexing
+	 * {@link PurchaseState#values()} directly therefore threw
+	 * {@link ArrayIndexOutOfBoundsException} for pending purchases — including the one
+	 * this library itself builds when reporting a pending purchase. Pending is mapped
+	 * explicitly (not via its ordinal) so it survives any future reordering of the enum,
+	 * and any unrecognised value degrades to a normal purchase instead of crashing.
+	 */
+	static PurchaseState toPurchaseState(int responseState)
+	{
+		if (responseState == RESPONSE_STATE_PENDING)
+		{
+			return PurchaseState.Pending;
+		}
+		// 0..3 keep their historical meaning:
+		// PurchasedSuccessfully / Canceled / Refunded / SubscriptionExpired.
+		if (responseState >= 0 && responseState <= PurchaseState.SubscriptionExpired.ordinal())
+		{
+			return PurchaseState.values()[responseState];
+		}
+		return PurchaseState.PurchasedSuccessfully;
+	}
+}
@@ -18,7 +18,13 @@ package com.anjlab.android.iab.v3;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
+import android.util.LruCache;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
@@ -44,6 +50,90 @@ class Security
     private static final String KEY_FACTORY_ALGORITHM = "RSA";
     private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
 
+    // Decoded license keys. An app normally has exactly one, so a handful of slots is
+    // plenty; decoding means Base64, a KeyFactory lookup and X.509 parsing.
+    private static final int MAX_CACHED_KEYS = 4;
+    private static final LruCache<String, PublicKey> PUBLIC_KEYS = new LruCache<>(MAX_CACHED_KEYS);
+
+    private static final ThreadLocal<Verifier> VERIFIERS = new ThreadLocal<Verifier>()
+    {
+        @Override
+        protected Verifier initialValue()
+        {
+            return new Verifier();
+        }
+    };
+
+    /**
+     * One thread's {@link Signature} and UTF-8 buffer, kept between verifications so a
+     * batch of purchases costs one provider lookup per thread rather than one per
+     * purchase. Confined to its thread, so nothing here is synchronized.
+     */
+    private static final class Verifier
+    {
+        // Purchase JSON is well under this; anything bigger is encoded into a
+        // throwaway buffer instead of being kept alive by the thread.
+        private static final int MAX_RETAINED_BUFFER = 16 * 1024;
+
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private ByteBuffer buffer = ByteBuffer.allocate(2048);
+        private Signature signature;
+        // The key signature was last initialized with; verify() leaves it ready for
+        // another round with the same key.
+        private PublicKey key;
+
+        boolean verify(PublicKey publicKey, String signedData, byte[] expected)
+                throws NoSuchAlgorithmException, InvalidKeyException, SignatureException
+        {
+            if (signature == null)
+            {
+                signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+            }
+            try
+            {
+                if (key != publicKey)
+                {
+                    key = null;
+                    signature.initVerify(publicKey);
+                    key = publicKey;
+                }
+                signature.update(encode(signedData));
+                return signature.verify(expected);
+            }
+            catch (SignatureException e)
+            {
+                // The signature may be left mid-update; start from initVerify next time.
+                key = null;
+                throw e;
+            }
+        }
+
+        /**
+         * The UTF-8 bytes of {@code value}, encoded straight into the reused buffer.
+         */
+        private ByteBuffer encode(String value)
+        {
+            int maxBytes = (int) Math.ceil(value.length() * (double) encoder.maxBytesPerChar());
+            ByteBuffer target = buffer;
+            if (target.capacity() < maxBytes)
+            {
+                target = ByteBuffer.allocate(maxBytes);
+                if (maxBytes <= MAX_RETAINED_BUFFER)
+                {
+                    buffer = target;
+                }
+            }
+            target.clear();
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(value), target, true);
+            encoder.flush(target);
+            target.flip();
+            return target;
+        }
+    }
+
     /**
      * Verifies that the data was signed with the given signature, and returns
      * the verified purchase. The data is in JSON format and signed
@@ -76,10 +166,45 @@ class Security
             return false;
         }
 
-        PublicKey key = Security.generatePublicKey(base64PublicKey);
+        PublicKey key = Security.getPublicKey(base64PublicKey);
         return Security.verify(key, signedData, signature);
     }
 
+    /**
+     * Like {@link #generatePublicKey(String)}, but decodes each key only once.
+     *
+     * @throws IllegalArgumentException if encodedPublicKey is invalid
+     */
+    static PublicKey getPublicKey(String encodedPublicKey)
+    {
+        PublicKey key = PUBLIC_KEYS.get(encodedPublicKey);
+        if (key == null)
+        {
+            key = generatePublicKey(encodedPublicKey);
+            PUBLIC_KEYS.put(encodedPublicKey, key);
+        }
+        return key;
+    }
+
+    /**
+     * Loads the RSA providers and decodes {@code encodedPublicKey} ahead of the first
+     * verification, which would otherwise pay for both on the purchase callback. Meant
+     * to run on a background thread; failures are left for the real verification to
+     * report.
+     */
+    static void warmUp(String encodedPublicKey)
+    {
+        try
+        {
+            Signature.getInstance(SIGNATURE_ALGORITHM);
+            getPublicKey(encodedPublicKey);
+        }
+        catch (Exception e)
+        {
+            Log.w(TAG, "Could not prepare signature verification.", e);
+        }
+    }
+
     /**
      * Generates a PublicKey instance from a string containing the
      * Base64-encoded public key.
@@ -116,19 +241,16 @@ class Security
      * signature on the data.  Returns true if the data is correctly signed.
      *
      * @param publicKey  public key associated with the developer account
-     * @param signedData signed data from server
+     * @param signedData signed data from server, hashed as UTF-8
      * @param signature  server signature
      * @return true if the data and signature match
      */
     public static boolean verify(PublicKey publicKey, String signedData, String signature)
     {
-        Signature sig;
         try
         {
-            sig = Signature.getInstance(SIGNATURE_ALGORITHM);
-            sig.initVerify(publicKey);
-            sig.update(signedData.getBytes());
-            if (!sig.verify(Base64.decode(signature, Base64.DEFAULT)))
+            byte[] expected = Base64.decode(signature, Base64.DEFAULT);
+            if (!VERIFIERS.get().verify(publicKey, signedData, expected))
             {
                 Log.e(TAG, "Signature verification failed.");
                 return false;
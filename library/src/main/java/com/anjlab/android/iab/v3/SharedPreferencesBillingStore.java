@@ -0,0 +1,256 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.AtomicFile;
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The default {@link BillingStore}. Strings and booleans live in SharedPreferences. Byte
+ * arrays, which is what the purchase caches are, go to one file per key next to them,
+ * because a Base64 blob in the preferences XML has to be re-parsed with every other key.
+ *
+ * <p>{@link #SharedPreferencesBillingStore(Context)} keeps its preferences in a file of
+ * their own rather than the app's default SharedPreferences, so library commits do not
+ * rewrite the app's settings and the first read does not wait for them to be parsed.
+ * Keys that releases up to 3.0 left in the default preferences are moved over on first
+ * access and removed from there.
+ */
+public class SharedPreferencesBillingStore implements BillingStore
+{
+	private static final String LOG_TAG = "iabv3.prefsStore";
+	private static final String BLOB_DIRECTORY = "iabv3";
+	private static final String PREFERENCES_NAME = "com.anjlab.android.iab.v3";
+	private static final String MIGRATED_KEY = ".legacy.migrated";
+
+	private final SharedPreferences preferences;
+	private final File blobDirectory;
+	@Nullable
+	private final Context legacyContext;
+	private volatile boolean migrated;
+
+	/**
+	 * Uses a preferences file dedicated to the library.
+	 */
+	public SharedPreferencesBillingStore(Context context)
+	{
+		Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+		preferences = appContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+		blobDirectory = new File(appContext.getNoBackupFilesDir(), BLOB_DIRECTORY);
+		legacyContext = appContext;
+	}
+
+	/**
+	 * Uses the given preferences as they are; no legacy keys are migrated into them.
+	 */
+	public SharedPreferencesBillingStore(SharedPreferences preferences, File blobDirectory)
+	{
+		this.preferences = preferences;
+		this.blobDirectory = blobDirectory;
+		legacyContext = null;
+		migrated = true;
+	}
+
+	@Nullable
+	@Override
+	public String getString(String key, @Nullable String defValue)
+	{
+		migrateLegacyPreferences();
+		return preferences.getString(key, defValue);
+	}
+
+	@Override
+	public boolean getBoolean(String key, boolean defValue)
+	{
+		migrateLegacyPreferences();
+		return preferences.getBoolean(key, defValue);
+	}
+
+	/**
+	 * Moves the library's keys out of the app's default SharedPreferences. Runs once per
+	 * install; after that the default preferences are never opened again.
+	 */
+	private void migrateLegacyPreferences()
+	{
+		if (migrated)
+		{
+			return;
+		}
+		synchronized (this)
+		{
+			if (migrated)
+			{
+				return;
+			}
+			if (!preferences.getBoolean(MIGRATED_KEY, false))
+			{
+				String prefix = legacyContext.getPackageName() + "_preferences";
+				SharedPreferences legacy = PreferenceManager.getDefaultSharedPreferences(legacyContext);
+				SharedPreferences.Editor target = preferences.edit();
+				SharedPreferences.Editor cleanup = legacy.edit();
+				for (Map.Entry<String, ?> entry : legacy.getAll().entrySet())
+				{
+					String key = entry.getKey();
+					Object value = entry.getValue();
+					if (!key.startsWith(prefix))
+					{
+						continue;
+					}
+					if (value instanceof String)
+					{
+						target.putString(key, (String) value);
+					}
+					else if (value instanceof Boolean)
+					{
+						target.putBoolean(key, (Boolean) value);
+					}
+					cleanup.remove(key);
+				}
+				target.putBoolean(MIGRATED_KEY, true);
+				// Old keys are only dropped once the copy is on disk.
+				if (target.commit())
+				{
+					cleanup.commit();
+				}
+			}
+			migrated = true;
+		}
+	}
+
+	@Nullable
+	@Override
+	public byte[] getBytes(String key)
+	{
+		try
+		{
+			return blobFile(key).readFully();
+		}
+		catch (FileNotFoundException e)
+		{
+			return null;
+		}
+		catch (IOException e)
+		{
+			Log.e(LOG_TAG, "Failed to read " + key, e);
+			return null;
+		}
+	}
+
+	@Override
+	public Editor edit()
+	{
+		return new PreferencesEditor();
+	}
+
+	private AtomicFile blobFile(String key)
+	{
+		return new AtomicFile(new File(blobDirectory, key));
+	}
+
+	private boolean writeBlob(String key, @Nullable byte[] value)
+	{
+		AtomicFile file = blobFile(key);
+		if (value == null)
+		{
+			file.delete();
+			return true;
+		}
+		FileOutputStream out = null;
+		try
+		{
+			if (!blobDirectory.isDirectory() && !blobDirectory.mkdirs())
+			{
+				throw new IOException("Cannot create " + blobDirectory);
+			}
+			out = file.startWrite();
+			out.write(value);
+			file.finishWrite(out);
+			return true;
+		}
+		catch (IOException e)
+		{
+			Log.e(LOG_TAG, "Failed to write " + key, e);
+			if (out != null)
+			{
+				file.failWrite(out);
+			}
+			return false;
+		}
+	}
+
+	private class PreferencesEditor implements Editor
+	{
+		private final SharedPreferences.Editor editor = preferences.edit();
+		private final LinkedHashMap<String, byte[]> blobs = new LinkedHashMap<>();
+
+		@Override
+		public Editor putString(String key, @Nullable String value)
+		{
+			editor.putString(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor putBoolean(String key, boolean value)
+		{
+			editor.putBoolean(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor putBytes(String key, @Nullable byte[] value)
+		{
+			blobs.put(key, value != null ? value.clone() : null);
+			return this;
+		}
+
+		@Override
+		public Editor remove(String key)
+		{
+			editor.remove(key);
+			blobs.put(key, null);
+			return this;
+		}
+
+		@Override
+		public boolean commit()
+		{
+			// A write must not be overwritten by a later migration of its legacy value.
+			migrateLegacyPreferences();
+			for (Map.Entry<String, byte[]> blob : blobs.entrySet())
+			{
+				// Blobs first: a preference commit that lands without its blob would
+				// advertise data that is not there, so a failed blob commits nothing.
+				if (!writeBlob(blob.getKey(), blob.getValue()))
+				{
+					return false;
+				}
+			}
+			return editor.commit();
+		}
+	}
+}
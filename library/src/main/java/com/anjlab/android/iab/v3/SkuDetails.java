@@ -96,6 +96,13 @@ public class SkuDetails implements Parcelable
      */
     @Nullable String offerToken;
 
+    /**
+     * Set on details served from the snapshot an earlier launch persisted, before Play
+     * confirmed them in this process. See
+     * {@link BillingOptions.Builder#setPersistProductDetails(boolean)}.
+     */
+    boolean possiblyStale;
+
     public SkuDetails(JSONObject source) throws JSONException
     {
         String responseType = source.optString(Constants.RESPONSE_TYPE);
@@ -314,6 +321,16 @@ public class SkuDetails implements Parcelable
         return offers.get(0);
     }
 
+    /**
+     * True if these details were read from the snapshot persisted by an earlier launch and
+     * Play has not confirmed them yet. Good enough to render a price; a fresh copy follows
+     * if the price turns out to have changed.
+     */
+    public boolean isPossiblyStale()
+    {
+        return possiblyStale;
+    }
+
     @Override
     public String toString()
     {
@@ -383,6 +400,7 @@ public class SkuDetails implements Parcelable
         dest.writeInt(this.introductoryPriceCycles);
         dest.writeString(this.responseData);
         dest.writeString(this.offerToken);
+        dest.writeByte(this.possiblyStale ? (byte) 1 : (byte) 0);
     }
 
     protected SkuDetails(Parcel in)
@@ -410,6 +428,7 @@ public class SkuDetails implements Parcelable
         // unparcel cleanly - e.g. IPC from an older process or a cached parcel
         // bytestream that survives an in-place library upgrade.
         this.offerToken = in.dataAvail() > 0 ? in.readString() : null;
+        this.possiblyStale = in.dataAvail() > 0 && in.readByte() != 0;
     }
 
     public static final Parcelable.Creator<SkuDetails> CREATOR =
@@ -0,0 +1,218 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link BillingStore} backed by a private SQLite database, one row per key. Unlike the
+ * file-based stores, a commit only rewrites the rows it touches.
+ */
+public class SqliteBillingStore implements BillingStore
+{
+	private static final String LOG_TAG = "iabv3.sqliteStore";
+	private static final String DATABASE_NAME = "iabv3.db";
+	private static final int DATABASE_VERSION = 1;
+
+	private static final String TABLE = "entries";
+	private static final String COLUMN_KEY = "key";
+	private static final String COLUMN_VALUE = "value";
+	private static final String[] VALUE_COLUMNS = { COLUMN_VALUE };
+	private static final String KEY_SELECTION = COLUMN_KEY + " = ?";
+
+	private static final Object REMOVED = new Object();
+
+	private final SQLiteOpenHelper helper;
+
+	public SqliteBillingStore(Context context)
+	{
+		this(context, DATABASE_NAME);
+	}
+
+	/**
+	 * @param name database name, or {@code null} for an in-memory database
+	 */
+	public SqliteBillingStore(Context context, @Nullable String name)
+	{
+		helper = new SQLiteOpenHelper(context.getApplicationContext(), name, null, DATABASE_VERSION)
+		{
+			@Override
+			public void onCreate(SQLiteDatabase db)
+			{
+				db.execSQL("CREATE TABLE " + TABLE + " (" +
+						   COLUMN_KEY + " TEXT PRIMARY KEY NOT NULL, " +
+						   COLUMN_VALUE + ")");
+			}
+
+			@Override
+			public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
+			{
+			}
+		};
+	}
+
+	@Nullable
+	@Override
+	public String getString(String key, @Nullable String defValue)
+	{
+		Cursor cursor = query(key);
+		try
+		{
+			return cursor.moveToFirst() ? cursor.getString(0) : defValue;
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	@Override
+	public boolean getBoolean(String key, boolean defValue)
+	{
+		Cursor cursor = query(key);
+		try
+		{
+			return cursor.moveToFirst() ? cursor.getInt(0) != 0 : defValue;
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	@Nullable
+	@Override
+	public byte[] getBytes(String key)
+	{
+		Cursor cursor = query(key);
+		try
+		{
+			return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	private Cursor query(String key)
+	{
+		return helper.getReadableDatabase()
+					 .query(TABLE, VALUE_COLUMNS, KEY_SELECTION, new String[] { key }, null, null, null);
+	}
+
+	@Override
+	public Editor edit()
+	{
+		return new SqliteEditor();
+	}
+
+	/**
+	 * Closes the underlying database.
+	 */
+	public void close()
+	{
+		helper.close();
+	}
+
+	private class SqliteEditor implements Editor
+	{
+		private final LinkedHashMap<String, Object> changes = new LinkedHashMap<>();
+
+		@Override
+		public Editor putString(String key, @Nullable String value)
+		{
+			changes.put(key, value != null ? value : REMOVED);
+			return this;
+		}
+
+		@Override
+		public Editor putBoolean(String key, boolean value)
+		{
+			changes.put(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor putBytes(String key, @Nullable byte[] value)
+		{
+			changes.put(key, value != null ? value.clone() : REMOVED);
+			return this;
+		}
+
+		@Override
+		public Editor remove(String key)
+		{
+			changes.put(key, REMOVED);
+			return this;
+		}
+
+		@Override
+		public boolean commit()
+		{
+			SQLiteDatabase db = helper.getWritableDatabase();
+			db.beginTransaction();
+			try
+			{
+				for (Map.Entry<String, Object> change : changes.entrySet())
+				{
+					String key = change.getKey();
+					Object value = change.getValue();
+					if (value == REMOVED)
+					{
+						db.delete(TABLE, KEY_SELECTION, new String[] { key });
+						continue;
+					}
+					ContentValues row = new ContentValues();
+					row.put(COLUMN_KEY, key);
+					if (value instanceof Boolean)
+					{
+						row.put(COLUMN_VALUE, (Boolean) value ? 1 : 0);
+					}
+					else if (value instanceof byte[])
+					{
+						row.put(COLUMN_VALUE, (byte[]) value);
+					}
+					else
+					{
+						row.put(COLUMN_VALUE, (String) value);
+					}
+					db.insertWithOnConflict(TABLE, null, row, SQLiteDatabase.CONFLICT_REPLACE);
+				}
+				db.setTransactionSuccessful();
+				return true;
+			}
+			catch (RuntimeException e)
+			{
+				Log.e(LOG_TAG, "Failed to commit billing store changes", e);
+				return false;
+			}
+			finally
+			{
+				db.endTransaction();
+			}
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.util.LruCache;
+import androidx.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Remembers the outcome of {@link Security#verifyPurchase} so that checking a purchase
+ * that was already checked costs a SHA-256 of its data and a map lookup rather than an
+ * RSA verification. Entries are keyed by a digest of the license key, the signed data
+ * and the signature, and the whole cache is dropped if a different license key shows up.
+ */
+final class VerificationCache
+{
+	static final int DEFAULT_CAPACITY = 256;
+
+	private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>()
+	{
+		@Override
+		protected MessageDigest initialValue()
+		{
+			try
+			{
+				return MessageDigest.getInstance("SHA-256");
+			}
+			catch (NoSuchAlgorithmException e)
+			{
+				// Every Android release ships SHA-256.
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final LruCache<Key, Boolean> results;
+	// Guarded by this.
+	@Nullable
+	private String licenseKey;
+
+	VerificationCache(int capacity)
+	{
+		results = new LruCache<>(capacity);
+	}
+
+	/**
+	 * Same result as {@link Security#verifyPurchase}, computed once per distinct input.
+	 * Exceptions are passed through and not remembered.
+	 */
+	boolean verifyPurchase(String productId, String base64PublicKey, String signedData, String signature)
+	{
+		onLicenseKey(base64PublicKey);
+		Key key = new Key(base64PublicKey, signedData, signature);
+		Boolean cached = results.get(key);
+		if (cached != null)
+		{
+			return cached;
+		}
+		boolean valid = Security.verifyPurchase(productId, base64PublicKey, signedData, signature);
+		results.put(key, valid);
+		return valid;
+	}
+
+	private synchronized void onLicenseKey(String base64PublicKey)
+	{
+		if (!base64PublicKey.equals(licenseKey))
+		{
+			results.evictAll();
+			licenseKey = base64PublicKey;
+		}
+	}
+
+	CacheStats stats()
+	{
+		return new CacheStats(results.hitCount(), results.missCount(), results.evictionCount(), results.size());
+	}
+
+	/**
+	 * SHA-256 over the length-prefixed inputs, so no two different inputs can collide
+	 * by shifting bytes between fields.
+	 */
+	private static final class Key
+	{
+		private final byte[] digest;
+		private final int hash;
+
+		Key(String publicKey, String signedData, String signature)
+		{
+			MessageDigest md = DIGESTS.get();
+			md.reset();
+			update(md, publicKey);
+			update(md, signedData);
+			update(md, signature);
+			digest = md.digest();
+			hash = Arrays.hashCode(digest);
+		}
+
+		private static void update(MessageDigest md, @Nullable String value)
+		{
+			if (value == null)
+			{
+				md.update(new byte[] { -1, -1, -1, -1 });
+				return;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			int length = bytes.length;
+			md.update(new byte[] {
+					(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length
+			});
+			md.update(bytes);
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			return o instanceof Key && Arrays.equals(digest, ((Key) o).digest);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,612 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Persistence rules of {@link BillingCache}: batched mutations through
+ * {@link BillingCache#begin()} stay invisible until committed, a committed batch is
+ * what a freshly constructed cache reads back, and data written by older releases is
+ * migrated from SharedPreferences into the {@link BillingCacheFormat} file. In
+ * write-behind mode, bursts of mutations are coalesced into a single store commit.
+ * Instances sharing a key see each other's writes without consulting the store.
+ * Readers racing with writers only ever observe whole states.
+ *
+ * <p>Uses Robolectric for a real {@code SharedPreferences} and {@code org.json}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class BillingCacheTest
+{
+    private static final String CACHE_KEY = ".test.cache";
+
+    private Context context;
+
+    static String purchaseJson(String productId)
+    {
+        return "{"
+                + "\"orderId\":\"GPA.0000-" + productId + "\","
+                + "\"packageName\":\"com.example.app\","
+                + "\"productId\":\"" + productId + "\","
+                + "\"purchaseTime\":1345678900000,"
+                + "\"purchaseState\":0,"
+                + "\"purchaseToken\":\"token-" + productId + "\""
+                + "}";
+    }
+
+    /**
+     * Counts commits that reach the wrapped store.
+     */
+    static class CountingStore implements BillingStore
+    {
+        final BillingStore delegate = new InMemoryBillingStore();
+        int commits;
+        // Commits to reject before writing through again.
+        int failures;
+
+        @Override
+        public String getString(String key, String defValue)
+        {
+            return delegate.getString(key, defValue);
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue)
+        {
+            return delegate.getBoolean(key, defValue);
+        }
+
+        @Override
+        public byte[] getBytes(String key)
+        {
+            return delegate.getBytes(key);
+        }
+
+        @Override
+        public Editor edit()
+        {
+            final Editor editor = delegate.edit();
+            return new Editor()
+            {
+                @Override
+                public Editor putString(String key, String value)
+                {
+                    editor.putString(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putBoolean(String key, boolean value)
+                {
+                    editor.putBoolean(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putBytes(String key, byte[] value)
+                {
+                    editor.putBytes(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor remove(String key)
+                {
+                    editor.remove(key);
+                    return this;
+                }
+
+                @Override
+                public boolean commit()
+                {
+                    commits++;
+                    if (failures > 0)
+                    {
+                        failures--;
+                        return false;
+                    }
+                    return editor.commit();
+                }
+            };
+        }
+    }
+
+    /**
+     * Runs tasks only when the test says so.
+     */
+    static class ManualExecutor implements Executor
+    {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command)
+        {
+            tasks.add(command);
+        }
+
+        void runAll()
+        {
+            while (!tasks.isEmpty())
+            {
+                tasks.poll().run();
+            }
+        }
+    }
+
+    @Before
+    public void setUp()
+    {
+        context = RuntimeEnvironment.getApplication();
+    }
+
+    @Test
+    public void transactionIsInvisibleUntilCommit()
+    {
+        BillingCache cache = new BillingCache(context, CACHE_KEY);
+        BillingCache.Transaction transaction = cache.begin()
+                .put("a", purchaseJson("a"), "sig-a")
+                .put("b", purchaseJson("b"), "sig-b");
+
+        assertFalse(cache.includesProduct("a"));
+        assertFalse(new BillingCache(context, CACHE_KEY).includesProduct("a"));
+
+        transaction.commit();
+
+        assertTrue(cache.includesProduct("a"));
+        assertTrue(cache.includesProduct("b"));
+    }
+
+    @Test
+    public void replaceAllDropsEntriesMissingFromTheNewSet()
+    {
+        BillingCache cache = new BillingCache(context, CACHE_KEY);
+        cache.put("refunded", purchaseJson("refunded"), "sig");
+
+        HashMap<String, PurchaseInfo> owned = new HashMap<>();
+        for (int i = 0; i < 200; i++)
+        {
+            String productId = "item" + i;
+            owned.put(productId, new PurchaseInfo(purchaseJson(productId), "sig-" + i));
+        }
+        cache.replaceAll(owned);
+
+        BillingCache reloaded = new BillingCache(context, CACHE_KEY);
+        assertFalse(reloaded.includesProduct("refunded"));
+        assertEquals(200, reloaded.getContents().size());
+        PurchaseInfo details = reloaded.getDetails("item42");
+        assertNotNull(details);
+        assertEquals("sig-42", details.signature);
+        assertEquals("token-item42", details.purchaseData.purchaseToken);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void transactionCannotBeCommittedTwice()
+    {
+        BillingCache.Transaction transaction = new BillingCache(context, CACHE_KEY).begin();
+        transaction.commit();
+        transaction.commit();
+    }
+
+    @Test
+    public void formatRoundTripsNullSignatureAndNonAsciiData() throws IOException
+    {
+        HashMap<String, PurchaseInfo> entries = new HashMap<>();
+        String json = purchaseJson("caf\u00e9_\u6f22\u5b57");
+        entries.put("caf\u00e9_\u6f22\u5b57", new PurchaseInfo(json, null));
+
+        Map<String, PurchaseInfo> decoded =
+                BillingCacheFormat.decode(BillingCacheFormat.encode(entries));
+
+        assertEquals(1, decoded.size());
+        PurchaseInfo info = decoded.get("caf\u00e9_\u6f22\u5b57");
+        assertEquals(json, info.responseData);
+        assertEquals(null, info.signature);
+    }
+
+    @Test
+    public void formatKeepsDecodedFieldsSoLoadingDoesNotReparse() throws IOException
+    {
+        // Fields deliberately disagree with the JSON: only a record that kept them can
+        // produce these values.
+        ParsedPurchase parsed = new ParsedPurchase(purchaseJson("a"), "sig-a", "GPA.decoded",
+                "com.example.decoded", "a", 1718292135842L, PurchaseState.Refunded, "decoded-token",
+                true, true);
+        HashMap<String, PurchaseInfo> entries = new HashMap<>();
+        entries.put("a", parsed.toPurchaseInfo(""));
+
+        PurchaseInfo info = BillingCacheFormat.decode(BillingCacheFormat.encode(entries)).get("a");
+
+        assertNotNull(info.parsed);
+        assertTrue(info.parsed.hasAutoRenewing);
+        PurchaseData data = info.getPurchaseData();
+        assertEquals("GPA.decoded", data.orderId);
+        assertEquals("decoded-token", data.purchaseToken);
+        assertEquals(PurchaseState.Refunded, data.purchaseState);
+        assertEquals(1718292135842L, data.purchaseTime.getTime());
+        assertTrue(data.autoRenewing);
+        assertEquals("sig-a", info.signature);
+    }
+
+    @Test
+    public void formatVersion1RecordsAreStillRead() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(BillingCacheFormat.MAGIC);
+        out.writeInt(1);
+        out.writeInt(1);
+        BillingCacheFormat.writeString(out, "a");
+        BillingCacheFormat.writeString(out, purchaseJson("a"));
+        BillingCacheFormat.writeString(out, "sig-a");
+        out.flush();
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+
+        PurchaseInfo info = BillingCacheFormat.decode(bytes.toByteArray()).get("a");
+
+        assertNull(info.parsed);
+        assertEquals("token-a", info.getPurchaseData().purchaseToken);
+    }
+
+    @Test(expected = IOException.class)
+    public void formatRejectsCorruptedChecksum() throws IOException
+    {
+        HashMap<String, PurchaseInfo> entries = new HashMap<>();
+        entries.put("a", new PurchaseInfo(purchaseJson("a"), "sig-a"));
+        byte[] bytes = BillingCacheFormat.encode(entries);
+        bytes[20] ^= 0x01;
+
+        BillingCacheFormat.decode(bytes);
+    }
+
+    @Test
+    public void legacyPreferencesEntryIsMigratedOnceAndRemoved()
+    {
+        String legacyKey = context.getPackageName() + "_preferences" + CACHE_KEY;
+        String legacy = "a>>>>>" + purchaseJson("a") + ">>>>>sig-a"
+                + "#####"
+                + "b>>>>>" + purchaseJson("b") + ">>>>>sig-b";
+        PreferenceManager.getDefaultSharedPreferences(context)
+                .edit().putString(legacyKey, legacy).commit();
+
+        BillingCache cache = new BillingCache(context, CACHE_KEY);
+
+        assertTrue(cache.includesProduct("a"));
+        assertEquals("sig-b", cache.getDetails("b").signature);
+        assertFalse(PreferenceManager.getDefaultSharedPreferences(context).contains(legacyKey));
+        assertTrue(new BillingCache(context, CACHE_KEY).includesProduct("b"));
+    }
+
+    @Test
+    public void damagedFileIsTreatedAsEmpty() throws IOException
+    {
+        new BillingCache(context, CACHE_KEY).put("a", purchaseJson("a"), "sig-a");
+        File file = new File(new File(context.getNoBackupFilesDir(), "iabv3"),
+                context.getPackageName() + "_preferences" + CACHE_KEY + ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+
+        assertEquals(0, new BillingCache(context, CACHE_KEY).getContents().size());
+    }
+
+    @Test
+    public void writeBehindCoalescesABurstIntoOneCommit()
+    {
+        CountingStore store = new CountingStore();
+        ManualExecutor executor = new ManualExecutor();
+        BillingCache cache = new BillingCache(context, store, CACHE_KEY);
+        cache.enableWriteBehind(executor);
+
+        cache.put("a", purchaseJson("a"), "sig-a");
+        cache.put("b", purchaseJson("b"), "sig-b");
+        cache.remove("a");
+        cache.put("c", purchaseJson("c"), "sig-c");
+
+        assertTrue("memory is updated immediately", cache.includesProduct("c"));
+        assertEquals(0, store.commits);
+        assertEquals(1, executor.tasks.size());
+
+        executor.runAll();
+
+        assertEquals(1, store.commits);
+        BillingCache reloaded = new BillingCache(context, store, CACHE_KEY);
+        assertFalse(reloaded.includesProduct("a"));
+        assertTrue(reloaded.includesProduct("b"));
+        assertTrue(reloaded.includesProduct("c"));
+    }
+
+    @Test
+    public void flushNowMakesPendingWritesDurableWithoutTheExecutor()
+    {
+        CountingStore store = new CountingStore();
+        ManualExecutor executor = new ManualExecutor();
+        BillingCache cache = new BillingCache(context, store, CACHE_KEY);
+        cache.enableWriteBehind(executor);
+        cache.put("a", purchaseJson("a"), "sig-a");
+
+        cache.flushNow();
+
+        assertEquals(1, store.commits);
+        assertTrue(new BillingCache(context, store, CACHE_KEY).includesProduct("a"));
+
+        executor.runAll();
+        assertEquals("nothing left to write", 1, store.commits);
+    }
+
+    @Test
+    public void failedWriteBehindFlushIsRetried()
+    {
+        CountingStore store = new CountingStore();
+        store.failures = 1;
+        ManualExecutor executor = new ManualExecutor();
+        BillingCache cache = new BillingCache(context, store, CACHE_KEY);
+        cache.enableWriteBehind(executor);
+        cache.put("a", purchaseJson("a"), "sig-a");
+
+        executor.runAll();
+
+        assertEquals(1, store.commits);
+        assertTrue("memory keeps the change", cache.includesProduct("a"));
+        assertFalse(new BillingCache(context, store, CACHE_KEY).includesProduct("a"));
+        assertTrue(executor.tasks.isEmpty());
+
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofSeconds(1));
+        executor.runAll();
+
+        assertEquals(2, store.commits);
+        assertTrue(new BillingCache(context, store, CACHE_KEY).includesProduct("a"));
+    }
+
+    @Test
+    public void trimMemoryFlushesOnTheExecutor()
+    {
+        CountingStore store = new CountingStore();
+        ManualExecutor executor = new ManualExecutor();
+        BillingCache cache = new BillingCache(context, store, CACHE_KEY);
+        cache.enableWriteBehind(executor);
+        cache.put("a", purchaseJson("a"), "sig-a");
+
+        RuntimeEnvironment.getApplication().onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+
+        assertEquals("the main thread does not write", 0, store.commits);
+        executor.runAll();
+        assertEquals(1, store.commits);
+        cache.release();
+    }
+
+    @Test
+    public void writesBySiblingInstanceAreSeenWithoutStoreReads()
+    {
+        CountingStore store = new CountingStore();
+        BillingCache first = new BillingCache(context, store, CACHE_KEY);
+        BillingCache second = new BillingCache(context, store, CACHE_KEY);
+
+        first.put("a", purchaseJson("a"), "sig-a");
+        assertTrue(second.includesProduct("a"));
+
+        second.remove("a");
+        assertFalse(first.includesProduct("a"));
+    }
+
+    @Test
+    public void backToBackFlushesWriteDistinctVersions()
+    {
+        BillingStore store = new InMemoryBillingStore();
+        BillingCache cache = new BillingCache(context, store, CACHE_KEY);
+        String versionKey = context.getPackageName() + "_preferences" + CACHE_KEY + ".version";
+
+        cache.put("a", purchaseJson("a"), "sig-a");
+        String firstVersion = store.getString(versionKey, null);
+        cache.put("b", purchaseJson("b"), "sig-b");
+
+        assertNotNull(firstVersion);
+        assertFalse(firstVersion.equals(store.getString(versionKey, null)));
+    }
+
+    @Test
+    public void externalWriteIsPickedUpByExplicitCheckOnly()
+    {
+        BillingStore store = new InMemoryBillingStore();
+        BillingCache cache = new BillingCache(context, store, CACHE_KEY);
+        HashMap<String, PurchaseInfo> entries = new HashMap<>();
+        entries.put("other", new PurchaseInfo(purchaseJson("other"), "sig"));
+        String prefix = context.getPackageName() + "_preferences" + CACHE_KEY;
+        // What another process would leave behind: new data under a new version.
+        try
+        {
+            store.edit()
+                    .putBytes(prefix + ".bin", BillingCacheFormat.encode(entries))
+                    .putString(prefix + ".version", "other-process.1")
+                    .commit();
+        }
+        catch (IOException e)
+        {
+            throw new AssertionError(e);
+        }
+
+        assertFalse(cache.includesProduct("other"));
+        cache.checkForExternalChanges();
+        assertTrue(cache.includesProduct("other"));
+    }
+
+    @Test
+    public void contentsAreASnapshotUnaffectedByLaterWrites()
+    {
+        BillingCache cache = new BillingCache(context, new InMemoryBillingStore(), CACHE_KEY);
+        cache.put("a", purchaseJson("a"), "sig-a");
+        List<String> before = cache.getContents();
+
+        cache.put("b", purchaseJson("b"), "sig-b");
+
+        assertEquals(Arrays.asList("a"), before);
+        assertEquals(2, cache.getContents().size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void contentsCannotBeModified()
+    {
+        BillingCache cache = new BillingCache(context, new InMemoryBillingStore(), CACHE_KEY);
+        cache.getContents().add("a");
+    }
+
+    private static Map<String, PurchaseInfo> generation(String prefix, int size)
+    {
+        HashMap<String, PurchaseInfo> entries = new HashMap<>();
+        for (int i = 0; i < size; i++)
+        {
+            String productId = prefix + i;
+            entries.put(productId, new PurchaseInfo(purchaseJson(productId), "sig-" + productId));
+        }
+        return entries;
+    }
+
+    /**
+     * Writers swap the whole cache between two disjoint sets of products while readers
+     * hammer it. Every listing a reader gets must be exactly one of the two sets, and a
+     * product that is listed must resolve to its own purchase.
+     */
+    @Test
+    public void concurrentReadersNeverObserveATornState() throws InterruptedException
+    {
+        final int size = 16;
+        final BillingCache cache = new BillingCache(context, new InMemoryBillingStore(), CACHE_KEY);
+        final List<Map<String, PurchaseInfo>> states = Arrays.asList(
+                generation("left-", size), generation("right-", size));
+        cache.replaceAll(states.get(0));
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(6);
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < 2; w++)
+        {
+            threads.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < 2000; i++)
+                    {
+                        cache.replaceAll(states.get(i % 2));
+                    }
+                    done.countDown();
+                }
+            }));
+        }
+        for (int r = 0; r < 4; r++)
+        {
+            threads.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    while (running.get() && failure.get() == null)
+                    {
+                        List<String> contents = cache.getContents();
+                        String prefix = contents.isEmpty() ? "" : contents.get(0).substring(0, 5);
+                        if (contents.size() != size)
+                        {
+                            failure.compareAndSet(null, "listed " + contents.size() + " products");
+                        }
+                        for (String productId : contents)
+                        {
+                            if (!productId.startsWith(prefix))
+                            {
+                                failure.compareAndSet(null, "mixed listing " + contents);
+                            }
+                        }
+                        String probe = contents.get(size - 1);
+                        PurchaseInfo details = cache.getDetails(probe);
+                        if (details != null && !probe.equals(details.purchaseData.productId))
+                        {
+                            failure.compareAndSet(null, probe + " resolved to " + details.purchaseData.productId);
+                        }
+                    }
+                    done.countDown();
+                }
+            }));
+        }
+        for (Thread thread : threads)
+        {
+            thread.start();
+        }
+        for (int w = 0; w < 2; w++)
+        {
+            threads.get(w).join(TimeUnit.SECONDS.toMillis(30));
+        }
+        running.set(false);
+
+        assertTrue("threads did not finish", done.await(30, TimeUnit.SECONDS));
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void concurrentPutsAreNotLost() throws InterruptedException
+    {
+        final BillingCache cache = new BillingCache(context, new InMemoryBillingStore(), CACHE_KEY);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++)
+        {
+            final String prefix = "t" + t + "-";
+            threads.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < 100; i++)
+                    {
+                        cache.put(prefix + i, purchaseJson(prefix + i), "sig");
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads)
+        {
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertEquals(400, cache.getContents().size());
+        assertEquals(400, new BillingCache(context, cache.getStore(), CACHE_KEY).getContents().size());
+    }
+}
@@ -0,0 +1,342 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.Context;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link BillingOptions.Builder#setLoadCachesAsync(boolean)}: the constructor must not
+ * touch the store, readiness is reported through the future and the listener, and a
+ * read issued before the load finishes waits for it instead of answering from an empty
+ * cache. A load that fails is reported as such and leaves empty caches behind, the main
+ * thread never waits for a load to refresh purchases, and {@code release()} does not wait
+ * for a load still in progress. Background work goes to the executor from
+ * {@link BillingOptions.Builder#setExecutor(Executor)} when one is given.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class BillingProcessorCacheLoadTest
+{
+    private static final String PRODUCTS_KEY = "_preferences.products.cache.v2_6";
+
+    private Context context;
+
+    /**
+     * Holds every byte read until {@link #open()} is called.
+     */
+    static class GatedStore extends InMemoryBillingStore
+    {
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        void open()
+        {
+            gate.countDown();
+        }
+
+        @Override
+        public byte[] getBytes(String key)
+        {
+            try
+            {
+                gate.await(30, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return super.getBytes(key);
+        }
+    }
+
+    private static final BillingProcessor.IBillingHandler HANDLER = new BillingProcessor.IBillingHandler()
+    {
+        @Override
+        public void onProductPurchased(@NonNull String productId, @Nullable PurchaseInfo details)
+        {
+        }
+
+        @Override
+        public void onPurchaseHistoryRestored()
+        {
+        }
+
+        @Override
+        public void onBillingError(int errorCode, @Nullable Throwable error)
+        {
+        }
+
+        @Override
+        public void onBillingInitialized()
+        {
+        }
+    };
+
+    @Before
+    public void setUp()
+    {
+        context = RuntimeEnvironment.getApplication();
+    }
+
+    @Test
+    public void constructorReturnsBeforeCachesAreLoaded() throws Exception
+    {
+        GatedStore gated = new GatedStore();
+        HashMap<String, PurchaseInfo> owned = new HashMap<>();
+        owned.put("owned", new PurchaseInfo(BillingCacheTest.purchaseJson("owned"), "sig"));
+        gated.edit()
+                .putBytes(context.getPackageName() + PRODUCTS_KEY + ".bin", BillingCacheFormat.encode(owned))
+                .commit();
+
+        BillingProcessor bp = BillingProcessor.newBillingProcessor(context, null, null, HANDLER,
+                BillingOptions.newBuilder().setStore(gated).setLoadCachesAsync(true).build());
+        final AtomicBoolean notified = new AtomicBoolean();
+        bp.whenCachesReady(new BillingProcessor.ICachesReadyListener()
+        {
+            @Override
+            public void onCachesReady()
+            {
+                notified.set(true);
+            }
+        });
+
+        assertFalse(bp.getCachesReadyFuture().isDone());
+
+        gated.open();
+        assertTrue("read waits for the load", bp.isPurchased("owned"));
+        bp.getCachesReadyFuture().get(30, TimeUnit.SECONDS);
+        shadowOf(Looper.getMainLooper()).idle();
+        assertTrue(notified.get());
+    }
+
+    @Test
+    public void listenerAddedAfterLoadIsStillCalled()
+    {
+        BillingProcessor bp = BillingProcessor.newBillingProcessor(context, null, null, HANDLER,
+                BillingOptions.newBuilder().setStore(new InMemoryBillingStore()).build());
+        final AtomicBoolean notified = new AtomicBoolean();
+
+        assertTrue(bp.getCachesReadyFuture().isDone());
+        bp.whenCachesReady(new BillingProcessor.ICachesReadyListener()
+        {
+            @Override
+            public void onCachesReady()
+            {
+                notified.set(true);
+            }
+        });
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertTrue(notified.get());
+    }
+
+    @Test
+    public void backgroundWorkRunsOnTheConfiguredExecutor()
+    {
+        final ArrayDeque<Runnable> queued = new ArrayDeque<>();
+        Executor executor = new Executor()
+        {
+            @Override
+            public void execute(Runnable command)
+            {
+                queued.add(command);
+            }
+        };
+
+        BillingProcessor bp = BillingProcessor.newBillingProcessor(context, null, null, HANDLER,
+                BillingOptions.newBuilder()
+                        .setStore(new InMemoryBillingStore())
+                        .setLoadCachesAsync(true)
+                        .setExecutor(executor)
+                        .build());
+
+        assertFalse(bp.getCachesReadyFuture().isDone());
+        assertFalse(queued.isEmpty());
+        while (!queued.isEmpty())
+        {
+            queued.poll().run();
+        }
+        assertTrue(bp.getCachesReadyFuture().isDone());
+    }
+
+    @Test
+    public void failedLoadIsReportedInsteadOfReady()
+    {
+        final ArrayDeque<Runnable> queued = new ArrayDeque<>();
+        InMemoryBillingStore broken = new InMemoryBillingStore()
+        {
+            @Override
+            public byte[] getBytes(String key)
+            {
+                throw new IllegalStateException("disk gone");
+            }
+        };
+        BillingProcessor bp = BillingProcessor.newBillingProcessor(context, null, null, HANDLER,
+                BillingOptions.newBuilder()
+                        .setStore(broken)
+                        .setLoadCachesAsync(true)
+                        .setExecutor(queued::add)
+                        .build());
+        final AtomicBoolean ready = new AtomicBoolean();
+        final AtomicBoolean failed = new AtomicBoolean();
+        bp.whenCachesReady(new BillingProcessor.ICachesReadyListener()
+        {
+            @Override
+            public void onCachesReady()
+            {
+                ready.set(true);
+            }
+
+            @Override
+            public void onCachesLoadFailed(@NonNull Throwable error)
+            {
+                failed.set(true);
+            }
+        });
+
+        while (!queued.isEmpty())
+        {
+            queued.poll().run();
+        }
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertTrue(failed.get());
+        assertFalse(ready.get());
+    }
+
+    @Test
+    public void failedLoadLeavesEmptyCachesAndStillInitializes()
+    {
+        final ArrayDeque<Runnable> queued = new ArrayDeque<>();
+        InMemoryBillingStore broken = new InMemoryBillingStore()
+        {
+            @Override
+            public byte[] getBytes(String key)
+            {
+                throw new IllegalStateException("disk gone");
+            }
+        };
+        final AtomicBoolean initialized = new AtomicBoolean();
+        BillingProcessor bp = BillingProcessor.newBillingProcessor(context, null, null,
+                new BillingProcessor.IBillingHandler()
+                {
+                    @Override
+                    public void onProductPurchased(@NonNull String productId, @Nullable PurchaseInfo details)
+                    {
+                    }
+
+                    @Override
+                    public void onPurchaseHistoryRestored()
+                    {
+                    }
+
+                    @Override
+                    public void onBillingError(int errorCode, @Nullable Throwable error)
+                    {
+                    }
+
+                    @Override
+                    public void onBillingInitialized()
+                    {
+                        initialized.set(true);
+                    }
+                },
+                BillingOptions.newBuilder()
+                        .setStore(broken)
+                        .setLoadCachesAsync(true)
+                        .setExecutor(queued::add)
+                        .build());
+        FakeBillingClient fake = new FakeBillingClient(0);
+        try
+        {
+            bp.setBillingClient(fake.client);
+            bp.initialize();
+
+            while (!queued.isEmpty())
+            {
+                queued.poll().run();
+            }
+            shadowOf(Looper.getMainLooper()).idle();
+
+            assertFalse(bp.isPurchased("owned"));
+            assertTrue(bp.listOwnedSubscriptions().isEmpty());
+            assertTrue(initialized.get());
+        }
+        finally
+        {
+            fake.shutdown();
+        }
+    }
+
+    @Test
+    public void refreshDoesNotWaitForAPendingLoad()
+    {
+        final ArrayDeque<Runnable> queued = new ArrayDeque<>();
+        BillingProcessor bp = BillingProcessor.newBillingProcessor(context, null, null, HANDLER,
+                BillingOptions.newBuilder()
+                        .setStore(new InMemoryBillingStore())
+                        .setLoadCachesAsync(true)
+                        .setExecutor(queued::add)
+                        .build());
+        FakeBillingClient fake = new FakeBillingClient(0);
+        try
+        {
+            bp.setBillingClient(fake.client);
+
+            bp.loadOwnedPurchasesFromGoogleAsync(null);
+            assertEquals(0, fake.purchaseQueries.get());
+
+            while (!queued.isEmpty())
+            {
+                queued.poll().run();
+            }
+            shadowOf(Looper.getMainLooper()).idle();
+            assertEquals(2, fake.purchaseQueries.get());
+        }
+        finally
+        {
+            fake.shutdown();
+        }
+    }
+
+    @Test
+    public void releaseDoesNotWaitForAPendingLoad()
+    {
+        final ArrayDeque<Runnable> queued = new ArrayDeque<>();
+        BillingProcessor bp = BillingProcessor.newBillingProcessor(context, null, null, HANDLER,
+                BillingOptions.newBuilder()
+                        .setStore(new InMemoryBillingStore())
+                        .setLoadCachesAsync(true)
+                        .setExecutor(queued::add)
+                        .build());
+
+        bp.release();
+
+        assertFalse(bp.getCachesReadyFuture().isDone());
+        while (!queued.isEmpty())
+        {
+            queued.poll().run();
+        }
+        assertTrue(bp.getCachesReadyFuture().isDone());
+    }
+}
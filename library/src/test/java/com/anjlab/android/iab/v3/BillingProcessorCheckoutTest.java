@@ -0,0 +1,169 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.Activity;
+import android.os.Looper;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * String-id purchases through {@link BillingProcessor} against a {@link FakeBillingClient}:
+ * details that are already known, from the cache or from
+ * {@link BillingProcessor#prepareCheckout(String)}, launch the billing flow without asking
+ * Play for them again, until they are older than the product details TTL.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class BillingProcessorCheckoutTest
+{
+    private static final String INAPP = BillingClient.ProductType.INAPP;
+    private static final long TTL_MILLIS = ProductDetailsCache.DEFAULT_TTL_MILLIS;
+
+    private final Activity activity = mock(Activity.class);
+    private FakeBillingClient fake;
+
+    @Before
+    public void setUp()
+    {
+        fake = new FakeBillingClient(0);
+        when(fake.client.launchBillingFlow(any(Activity.class), any(BillingFlowParams.class)))
+                .thenReturn(BillingResult.newBuilder().setResponseCode(BillingClient.BillingResponseCode.OK).build());
+    }
+
+    @After
+    public void tearDown()
+    {
+        fake.shutdown();
+    }
+
+    private BillingProcessor newProcessor(BillingOptions.Builder options)
+    {
+        BillingProcessor processor = BillingProcessor.newBillingProcessor(
+                RuntimeEnvironment.getApplication(), null, null, null,
+                options.setStore(new InMemoryBillingStore()).setExecutor(Runnable::run).build());
+        processor.setBillingClient(fake.client);
+        return processor;
+    }
+
+    /**
+     * Runs the main looper long enough for the fake client's answers to arrive.
+     */
+    private void settle() throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+        while (System.nanoTime() < deadline)
+        {
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void preparedCheckoutLaunchesWithoutAQuery() throws Exception
+    {
+        BillingProcessor bp = newProcessor(BillingOptions.newBuilder().setProductDetailsCache(0, 0));
+        fake.respondWithDetails(BillingClient.BillingResponseCode.OK,
+                                FakeBillingClient.productDetails("premium", INAPP));
+
+        bp.prepareCheckout("premium");
+        settle();
+
+        assertTrue(bp.purchase(activity, "premium"));
+        verify(fake.client).launchBillingFlow(any(Activity.class), any(BillingFlowParams.class));
+        assertEquals(1, fake.productDetailsQueries.get());
+    }
+
+    @Test
+    public void cachedDetailsLaunchWithoutAQuery() throws Exception
+    {
+        BillingProcessor bp = newProcessor(BillingOptions.newBuilder());
+        fake.respondWithDetails(BillingClient.BillingResponseCode.OK,
+                                FakeBillingClient.productDetails("premium", INAPP));
+        bp.getPurchaseProductDetailsAsync(Arrays.asList("premium"),
+                                          new BillingProcessorProductDetailsTest.DetailsListener());
+        settle();
+
+        assertTrue(bp.purchase(activity, "premium"));
+        verify(fake.client).launchBillingFlow(any(Activity.class), any(BillingFlowParams.class));
+        assertEquals(1, fake.productDetailsQueries.get());
+    }
+
+    @Test
+    public void unpreparedPurchaseAsksPlayFirst() throws Exception
+    {
+        BillingProcessor bp = newProcessor(BillingOptions.newBuilder().setProductDetailsCache(0, 0));
+        fake.respondWithDetails(BillingClient.BillingResponseCode.OK,
+                                FakeBillingClient.productDetails("premium", INAPP));
+
+        assertTrue(bp.purchase(activity, "premium"));
+        settle();
+
+        verify(fake.client).launchBillingFlow(any(Activity.class), any(BillingFlowParams.class));
+        assertEquals(1, fake.productDetailsQueries.get());
+    }
+
+    @Test
+    public void expiredPreparedCheckoutAsksPlayAgain() throws Exception
+    {
+        BillingProcessor bp = newProcessor(BillingOptions.newBuilder().setProductDetailsCache(0, 0));
+        fake.respondWithDetails(BillingClient.BillingResponseCode.OK,
+                                FakeBillingClient.productDetails("premium", INAPP))
+            .respondWithDetails(BillingClient.BillingResponseCode.OK,
+                                FakeBillingClient.productDetails("premium", INAPP));
+        bp.prepareCheckout("premium");
+        settle();
+
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(TTL_MILLIS));
+        assertTrue(bp.purchase(activity, "premium"));
+        settle();
+
+        verify(fake.client).launchBillingFlow(any(Activity.class), any(BillingFlowParams.class));
+        assertEquals(2, fake.productDetailsQueries.get());
+    }
+
+    @Test
+    public void staleCatalogDetailsAskPlayAgain() throws Exception
+    {
+        BillingProcessor bp = newProcessor(BillingOptions.newBuilder().setProductDetailsCache(0, 0)
+                .setProductCatalog(Arrays.asList("premium"), Collections.<String>emptyList()));
+        fake.respondWithDetails(BillingClient.BillingResponseCode.OK,
+                                FakeBillingClient.productDetails("premium", INAPP))
+            .respondWithDetails(BillingClient.BillingResponseCode.OK,
+                                FakeBillingClient.productDetails("premium", INAPP));
+        AtomicInteger ready = new AtomicInteger();
+        bp.whenCatalogReady(ready::incrementAndGet);
+        bp.initialize();
+        settle();
+        assertEquals(1, ready.get());
+
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(TTL_MILLIS));
+        assertTrue(bp.purchase(activity, "premium"));
+        settle();
+
+        verify(fake.client).launchBillingFlow(any(Activity.class), any(BillingFlowParams.class));
+        assertEquals(2, fake.productDetailsQueries.get());
+    }
+}
@@ -0,0 +1,318 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.UnfetchedProduct;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Product details queries through {@link BillingProcessor} against a
+ * {@link FakeBillingClient}: fresh details are answered from memory, and only what is
+ * missing or stale goes to Play. A declared catalog is fetched on connection and then
+ * looked up without a round trip.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class BillingProcessorProductDetailsTest
+{
+    private static final String INAPP = BillingClient.ProductType.INAPP;
+    private static final String SUBS = BillingClient.ProductType.SUBS;
+    private static final long TTL_MILLIS = 60_000;
+
+    private FakeBillingClient fake;
+    private BillingProcessor bp;
+
+    /**
+     * Keeps the answer it was given.
+     */
+    static class DetailsListener implements BillingProcessor.IProductDetailsResponseListener
+    {
+        volatile List<ProductDetails> products;
+        volatile List<UnfetchedProduct> unfetched;
+        volatile String error;
+
+        @Override
+        public void onProductDetailsResponse(@NonNull List<ProductDetails> products)
+        {
+            this.products = products;
+        }
+
+        @Override
+        public void onProductDetailsError(@NonNull String error)
+        {
+            this.error = error;
+        }
+
+        @Override
+        public void onProductDetailsUnfetched(@NonNull List<UnfetchedProduct> unfetched)
+        {
+            this.unfetched = unfetched;
+        }
+
+        /**
+         * Runs the main looper, where answers are delivered, until one arrives.
+         */
+        void await() throws InterruptedException
+        {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (products == null && error == null && System.nanoTime() < deadline)
+            {
+                shadowOf(Looper.getMainLooper()).idle();
+                Thread.sleep(1);
+            }
+        }
+
+        List<String> productIds()
+        {
+            String[] ids = new String[products.size()];
+            for (int i = 0; i < ids.length; i++)
+            {
+                ids[i] = products.get(i).getProductId();
+            }
+            return Arrays.asList(ids);
+        }
+    }
+
+    @Before
+    public void setUp()
+    {
+        fake = new FakeBillingClient(0);
+        bp = newProcessor(BillingOptions.newBuilder().setProductDetailsCache(10, TTL_MILLIS));
+    }
+
+    @After
+    public void tearDown()
+    {
+        fake.shutdown();
+    }
+
+    private BillingProcessor newProcessor(BillingOptions.Builder options)
+    {
+        BillingProcessor processor = BillingProcessor.newBillingProcessor(
+                RuntimeEnvironment.getApplication(), null, null, null,
+                options.setStore(new InMemoryBillingStore()).setExecutor(Runnable::run).build());
+        processor.setBillingClient(fake.client);
+        return processor;
+    }
+
+    private static DetailsListener query(BillingProcessor processor, String... productIds) throws InterruptedException
+    {
+        DetailsListener listener = new DetailsListener();
+        processor.getPurchaseProductDetailsAsync(Arrays.asList(productIds), listener);
+        listener.await();
+        return listener;
+    }
+
+    @Test
+    public void freshDetailsAreServedFromMemory() throws Exception
+    {
+        fake.respondWithDetails(BillingClient.BillingResponseCode.OK,
+                                FakeBillingClient.productDetails("premium", INAPP));
+
+        assertEquals(Arrays.asList("premium"), query(bp, "premium").productIds());
+        assertEquals(Arrays.asList("premium"), query(bp, "premium").productIds());
+
+        assertEquals(1, fake.productDetailsQueries.get());
+        assertEquals(1, bp.getProductDetailsCacheStats().getHitCount());
+    }
+
+    @Test
+    public void staleDetailsAreFetchedAgain() throws Exception
+    {
+        fake.respondWithDetails(BillingClient.BillingResponseCode.OK,
+                                FakeBillingClient.productDetails("premium", INAPP))
+            .respondWithDetails(BillingClient.BillingResponseCode.OK,
+                                FakeBillingClient.productDetails("premium", INAPP));
+        query(bp, "premium");
+
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(TTL_MILLIS));
+
+        assertEquals(Arrays.asList("premium"), query(bp, "premium").productIds());
+        assertEquals(2, fake.productDetailsQueries.get());
+    }
+
+    @Test
+    public void partlyCachedQueryKeepsRequestOrder() throws Exception
+    {
+        fake.respondWithDetails(BillingClient.BillingResponseCode.OK,
+                                FakeBillingClient.productDetails("b", INAPP))
+            .respondWithDetails(BillingClient.BillingResponseCode.OK,
+                                FakeBillingClient.productDetails("a", INAPP),
+                                FakeBillingClient.productDetails("c", INAPP));
+        query(bp, "b");
+
+        assertEquals(Arrays.asList("a", "b", "c"), query(bp, "a", "b", "c").productIds());
+        assertEquals(2, fake.productDetailsQueries.get());
+    }
+
+    @Test
+    public void failedQueryCachesNothing() throws Exception
+    {
+        fake.respondWithDetails(BillingClient.BillingResponseCode.DEVELOPER_ERROR);
+
+        DetailsListener failed = query(bp, "premium");
+
+        assertNotNull(failed.error);
+        assertNull(failed.products);
+        assertEquals(0, bp.getProductDetailsCacheStats().getSize());
+    }
+
+    @Test
+    public void disabledCacheAlwaysAsksPlay() throws Exception
+    {
+        BillingProcessor uncached = newProcessor(BillingOptions.newBuilder().setProductDetailsCache(0, 0));
+
+        query(uncached, "premium");
+        query(uncached, "premium");
+
+        assertEquals(2, fake.productDetailsQueries.get());
+        assertEquals(0, uncached.getProductDetailsCacheStats().getHitCount());
+    }
+
+    @Test
+    public void unfetchedProductsAreReportedBeforeTheAnswer() throws Exception
+    {
+        UnfetchedProduct missing = mock(UnfetchedProduct.class);
+        when(missing.getProductId()).thenReturn("retired");
+        fake.respondWithDetails(BillingClient.BillingResponseCode.OK, Arrays.asList(missing),
+                                FakeBillingClient.productDetails("premium", INAPP));
+
+        DetailsListener listener = query(bp, "premium", "retired");
+
+        assertEquals(Arrays.asList("premium"), listener.productIds());
+        assertEquals(Arrays.asList(missing), listener.unfetched);
+    }
+
+    @Test
+    public void singleLookupsInOneFrameAreBatched() throws Exception
+    {
+        BillingProcessor batched = newProcessor(BillingOptions.newBuilder().setProductDetailsBatchWindow(0));
+        fake.respondWithDetails(BillingClient.BillingResponseCode.OK,
+                                FakeBillingClient.productDetails("premium", INAPP),
+                                FakeBillingClient.productDetails("coins", INAPP));
+        DetailsListener premium = new DetailsListener();
+        DetailsListener coins = new DetailsListener();
+
+        batched.getPurchaseProductDetailsAsync("premium", premium);
+        batched.getPurchaseProductDetailsAsync("coins", coins);
+        premium.await();
+        coins.await();
+
+        assertEquals(Arrays.asList("premium"), premium.productIds());
+        assertEquals(Arrays.asList("coins"), coins.productIds());
+        assertEquals(1, fake.productDetailsQueries.get());
+    }
+
+    private static void awaitMainLooper(AtomicInteger counter) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (counter.get() == 0 && System.nanoTime() < deadline)
+        {
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void catalogIsFetchedOnConnection() throws Exception
+    {
+        BillingProcessor catalogued = newProcessor(BillingOptions.newBuilder().setProductCatalog(
+                Arrays.asList("premium"), Arrays.asList("monthly")));
+        fake.respondWithDetails(BillingClient.BillingResponseCode.OK,
+                                FakeBillingClient.productDetails("premium", INAPP))
+            .respondWithDetails(BillingClient.BillingResponseCode.OK,
+                                FakeBillingClient.productDetails("monthly", SUBS));
+        final AtomicInteger ready = new AtomicInteger();
+        catalogued.whenCatalogReady(ready::incrementAndGet);
+        assertFalse(catalogued.isCatalogReady());
+        assertNull(catalogued.getCatalogProductDetails("premium"));
+
+        catalogued.initialize();
+        awaitMainLooper(ready);
+
+        assertEquals(1, ready.get());
+        assertTrue(catalogued.isCatalogReady());
+        assertEquals(INAPP, catalogued.getCatalogProductDetails("premium").getProductType());
+        assertEquals(SUBS, catalogued.getCatalogProductDetails("monthly").getProductType());
+        assertEquals(2, fake.productDetailsQueries.get());
+    }
+
+    @Test
+    public void listenerAddedOnceReadyIsCalledRightAway() throws Exception
+    {
+        BillingProcessor catalogued = newProcessor(BillingOptions.newBuilder().setProductCatalog(
+                Arrays.asList("premium"), Collections.<String>emptyList()));
+        final AtomicInteger first = new AtomicInteger();
+        catalogued.whenCatalogReady(first::incrementAndGet);
+        catalogued.initialize();
+        awaitMainLooper(first);
+
+        final AtomicInteger second = new AtomicInteger();
+        catalogued.whenCatalogReady(second::incrementAndGet);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertEquals(1, second.get());
+        assertEquals(1, fake.productDetailsQueries.get());
+    }
+
+    @Test
+    public void failedCatalogFetchIsRetriedOnTheNextConnection() throws Exception
+    {
+        BillingProcessor catalogued = newProcessor(BillingOptions.newBuilder().setProductCatalog(
+                Arrays.asList("premium"), Collections.<String>emptyList()));
+        fake.respondWithDetails(BillingClient.BillingResponseCode.DEVELOPER_ERROR)
+            .respondWithDetails(BillingClient.BillingResponseCode.OK,
+                                FakeBillingClient.productDetails("premium", INAPP));
+        final AtomicInteger ready = new AtomicInteger();
+        catalogued.whenCatalogReady(ready::incrementAndGet);
+
+        catalogued.initialize();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (fake.productDetailsQueries.get() == 0 && System.nanoTime() < deadline)
+        {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        shadowOf(Looper.getMainLooper()).idle();
+        assertFalse(catalogued.isCatalogReady());
+
+        catalogued.initialize();
+        awaitMainLooper(ready);
+
+        assertEquals(1, ready.get());
+        assertEquals(2, fake.productDetailsQueries.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void catalogLookupWithoutACatalogFails()
+    {
+        bp.getCatalogProductDetails("premium");
+    }
+}
@@ -0,0 +1,211 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.Purchase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link BillingProcessor#loadOwnedPurchasesFromGoogleAsync} against a
+ * {@link FakeBillingClient} that answers each query after {@value #LATENCY_MILLIS} ms. The
+ * products and subscriptions queries are in flight at the same time, and a refresh still
+ * succeeds only if both do. Calls made while a refresh is in flight share it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class BillingProcessorRefreshTest
+{
+    private static final long LATENCY_MILLIS = 300;
+
+    private FakeBillingClient fake;
+    private BillingProcessor bp;
+
+    /**
+     * Counts the answers a caller gets.
+     */
+    static class CountingListener implements BillingProcessor.IPurchasesResponseListener
+    {
+        final AtomicInteger successes = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+
+        @Override
+        public void onPurchasesSuccess()
+        {
+            successes.incrementAndGet();
+        }
+
+        @Override
+        public void onPurchasesError()
+        {
+            errors.incrementAndGet();
+        }
+
+        boolean answered()
+        {
+            return successes.get() + errors.get() > 0;
+        }
+
+        /**
+         * Runs the main looper, where answers are delivered, until one arrives.
+         */
+        void await() throws InterruptedException
+        {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!answered() && System.nanoTime() < deadline)
+            {
+                shadowOf(Looper.getMainLooper()).idle();
+                Thread.sleep(1);
+            }
+            // Anything posted right behind the first answer.
+            shadowOf(Looper.getMainLooper()).idle();
+        }
+    }
+
+    @Before
+    public void setUp()
+    {
+        fake = new FakeBillingClient(LATENCY_MILLIS);
+        bp = BillingProcessor.newBillingProcessor(RuntimeEnvironment.getApplication(), null, null, null,
+                BillingOptions.newBuilder()
+                        .setStore(new InMemoryBillingStore())
+                        .setExecutor(Runnable::run)
+                        .build());
+        bp.setBillingClient(fake.client);
+    }
+
+    @After
+    public void tearDown()
+    {
+        fake.shutdown();
+    }
+
+    @Test
+    public void productsAndSubscriptionsAreQueriedConcurrently() throws Exception
+    {
+        CountingListener listener = new CountingListener();
+
+        bp.loadOwnedPurchasesFromGoogleAsync(listener);
+        listener.await();
+
+        assertEquals(2, fake.purchaseQueries.get());
+        assertEquals(2, fake.maxPurchaseQueriesInFlight.get());
+        assertEquals(1, listener.successes.get());
+        assertEquals(0, listener.errors.get());
+    }
+
+    @Test
+    public void bothResultsAreCached() throws Exception
+    {
+        fake.respond(BillingClient.BillingResponseCode.OK,
+                     new Purchase(BillingCacheTest.purchaseJson("premium"), "sig"))
+            .respond(BillingClient.BillingResponseCode.OK,
+                     new Purchase(PurchaseJsonParserTest.subscriptionPurchaseJson("monthly"), "sig"));
+        CountingListener listener = new CountingListener();
+
+        bp.loadOwnedPurchasesFromGoogleAsync(listener);
+        listener.await();
+
+        assertTrue(bp.isPurchased("premium"));
+        assertTrue(bp.isSubscribed("monthly"));
+        assertFalse(bp.isSubscribed("premium"));
+    }
+
+    @Test
+    public void failedSubscriptionsQueryFailsTheRefresh() throws Exception
+    {
+        fake.respond(BillingClient.BillingResponseCode.OK)
+            .respond(BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE);
+        CountingListener listener = new CountingListener();
+
+        bp.loadOwnedPurchasesFromGoogleAsync(listener);
+        listener.await();
+
+        assertEquals(0, listener.successes.get());
+        assertEquals(1, listener.errors.get());
+    }
+
+    @Test
+    public void failedProductsQueryFailsTheRefresh() throws Exception
+    {
+        fake.respond(BillingClient.BillingResponseCode.ERROR)
+            .respond(BillingClient.BillingResponseCode.OK);
+        CountingListener listener = new CountingListener();
+
+        bp.loadOwnedPurchasesFromGoogleAsync(listener);
+        listener.await();
+
+        assertEquals(0, listener.successes.get());
+        assertEquals(1, listener.errors.get());
+    }
+
+    @Test
+    public void concurrentCallersShareOneRefresh() throws Exception
+    {
+        CountingListener first = new CountingListener();
+        CountingListener second = new CountingListener();
+        CountingListener third = new CountingListener();
+
+        bp.loadOwnedPurchasesFromGoogleAsync(first);
+        bp.loadOwnedPurchasesFromGoogleAsync(second);
+        bp.loadOwnedPurchasesFromGoogleAsync(null);
+        bp.loadOwnedPurchasesFromGoogleAsync(third);
+        first.await();
+        second.await();
+        third.await();
+
+        assertEquals(2, fake.purchaseQueries.get());
+        for (CountingListener listener : new CountingListener[] { first, second, third })
+        {
+            assertEquals(1, listener.successes.get());
+            assertEquals(0, listener.errors.get());
+        }
+    }
+
+    @Test
+    public void sharedRefreshFailureReachesEveryCaller() throws Exception
+    {
+        fake.respond(BillingClient.BillingResponseCode.NETWORK_ERROR);
+        CountingListener first = new CountingListener();
+        CountingListener second = new CountingListener();
+
+        bp.loadOwnedPurchasesFromGoogleAsync(first);
+        bp.loadOwnedPurchasesFromGoogleAsync(second);
+        first.await();
+        second.await();
+
+        assertEquals(2, fake.purchaseQueries.get());
+        assertEquals(1, first.errors.get());
+        assertEquals(1, second.errors.get());
+    }
+
+    @Test
+    public void callAfterARefreshFinishesStartsANewOne() throws Exception
+    {
+        CountingListener first = new CountingListener();
+        bp.loadOwnedPurchasesFromGoogleAsync(first);
+        first.await();
+
+        CountingListener second = new CountingListener();
+        bp.loadOwnedPurchasesFromGoogleAsync(second);
+        second.await();
+
+        assertEquals(4, fake.purchaseQueries.get());
+        assertEquals(1, second.successes.get());
+    }
+}
@@ -0,0 +1,222 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.Activity;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ProductDetails;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * {@link BillingOptions.Builder#setQueueWhileConnecting(int, long)}: requests made while
+ * the client is connecting wait for it and are replayed once it is up. A request whose
+ * deadline passes, or that finds the queue full, fails, and so does a queued purchase
+ * whose activity finished in the meantime.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class BillingProcessorRequestQueueTest
+{
+    private static final long DEADLINE_MILLIS = 5000;
+
+    private FakeBillingClient fake;
+    private final List<Integer> errorCodes = new CopyOnWriteArrayList<>();
+
+    private final BillingProcessor.IBillingHandler handler = new BillingProcessor.IBillingHandler()
+    {
+        @Override
+        public void onProductPurchased(@NonNull String productId, @Nullable PurchaseInfo details)
+        {
+        }
+
+        @Override
+        public void onPurchaseHistoryRestored()
+        {
+        }
+
+        @Override
+        public void onBillingError(int errorCode, @Nullable Throwable error)
+        {
+            errorCodes.add(errorCode);
+        }
+
+        @Override
+        public void onBillingInitialized()
+        {
+        }
+    };
+
+    /**
+     * Remembers the error it was given, if any.
+     */
+    static class DetailsListener implements BillingProcessor.IProductDetailsResponseListener
+    {
+        volatile String error;
+
+        @Override
+        public void onProductDetailsResponse(@NonNull List<ProductDetails> products)
+        {
+        }
+
+        @Override
+        public void onProductDetailsError(@NonNull String error)
+        {
+            this.error = error;
+        }
+    }
+
+    @Before
+    public void setUp()
+    {
+        fake = new FakeBillingClient(0);
+        fake.ready = false;
+    }
+
+    @After
+    public void tearDown()
+    {
+        fake.shutdown();
+    }
+
+    private BillingProcessor newProcessor(int queueCapacity)
+    {
+        BillingOptions.Builder options = BillingOptions.newBuilder()
+                .setStore(new InMemoryBillingStore())
+                .setExecutor(Runnable::run);
+        if (queueCapacity > 0)
+        {
+            options.setQueueWhileConnecting(queueCapacity, DEADLINE_MILLIS);
+        }
+        BillingProcessor bp = BillingProcessor.newBillingProcessor(
+                RuntimeEnvironment.getApplication(), null, null, handler, options.build());
+        bp.setBillingClient(fake.client);
+        return bp;
+    }
+
+    @Test
+    public void queuedRequestsRunOnceConnected() throws Exception
+    {
+        BillingProcessor bp = newProcessor(4);
+        bp.initialize();
+        BillingProcessorRefreshTest.CountingListener listener = new BillingProcessorRefreshTest.CountingListener();
+
+        bp.loadOwnedPurchasesFromGoogleAsync(listener);
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(0, fake.purchaseQueries.get());
+        assertEquals(0, listener.successes.get() + listener.errors.get());
+
+        fake.ready = true;
+        fake.connectionListener.onBillingSetupFinished(
+                BillingResult.newBuilder().setResponseCode(BillingClient.BillingResponseCode.OK).build());
+        listener.await();
+
+        assertEquals(2, fake.purchaseQueries.get());
+        assertEquals(1, listener.successes.get());
+        assertEquals(0, listener.errors.get());
+        assertTrue(errorCodes.isEmpty());
+    }
+
+    @Test
+    public void requestFailsWhenItsDeadlinePasses()
+    {
+        BillingProcessor bp = newProcessor(4);
+        BillingProcessorRefreshTest.CountingListener listener = new BillingProcessorRefreshTest.CountingListener();
+
+        bp.loadOwnedPurchasesFromGoogleAsync(listener);
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(DEADLINE_MILLIS - 1));
+        assertEquals(0, listener.errors.get());
+
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(1));
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertEquals(1, listener.errors.get());
+        assertEquals(0, listener.successes.get());
+        assertEquals(0, fake.purchaseQueries.get());
+        assertTrue(errorCodes.contains(Constants.BILLING_ERROR_CONNECTION_TIMEOUT));
+    }
+
+    @Test
+    public void fullQueueFailsAtOnce()
+    {
+        BillingProcessor bp = newProcessor(2);
+        DetailsListener details = new DetailsListener();
+
+        // Takes both slots: one query per product type.
+        bp.loadOwnedPurchasesFromGoogleAsync(null);
+        bp.getPurchaseProductDetailsAsync("premium", details);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertTrue(details.error != null && details.error.contains("not be connected"));
+    }
+
+    @Test
+    public void withoutTheQueueRequestsFailAtOnce()
+    {
+        BillingProcessor bp = newProcessor(0);
+        BillingProcessorRefreshTest.CountingListener listener = new BillingProcessorRefreshTest.CountingListener();
+
+        bp.loadOwnedPurchasesFromGoogleAsync(listener);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertEquals(1, listener.errors.get());
+        assertEquals(0, fake.purchaseQueries.get());
+    }
+
+    @Test
+    public void releaseFailsQueuedRequests()
+    {
+        BillingProcessor bp = newProcessor(4);
+        BillingProcessorRefreshTest.CountingListener listener = new BillingProcessorRefreshTest.CountingListener();
+
+        bp.loadOwnedPurchasesFromGoogleAsync(listener);
+        bp.release();
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertEquals(1, listener.errors.get());
+        assertTrue(errorCodes.contains(Constants.BILLING_ERROR_CONNECTION_TIMEOUT));
+    }
+
+    @Test
+    public void queuedPurchaseFailsIfItsActivityFinished()
+    {
+        BillingProcessor bp = newProcessor(4);
+        bp.initialize();
+        Activity activity = mock(Activity.class);
+
+        assertTrue(bp.purchase(activity, "premium"));
+        when(activity.isFinishing()).thenReturn(true);
+        fake.ready = true;
+        fake.connectionListener.onBillingSetupFinished(
+                BillingResult.newBuilder().setResponseCode(BillingClient.BillingResponseCode.OK).build());
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertTrue(errorCodes.contains(Constants.BILLING_ERROR_ACTIVITY_GONE));
+        assertEquals(0, fake.productDetailsQueries.get());
+        verify(fake.client, never()).launchBillingFlow(any(Activity.class), any(BillingFlowParams.class));
+    }
+}
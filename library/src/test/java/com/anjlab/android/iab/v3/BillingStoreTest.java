@@ -0,0 +1,195 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The {@link BillingStore} contract, run against every shipped backend: batched changes
+ * are invisible until committed, {@code null} removes a key, and persistent backends
+ * hand the committed values to a fresh instance. Also covers the one-time move of
+ * library keys out of the app's default SharedPreferences.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class BillingStoreTest
+{
+    private Context context;
+
+    @Before
+    public void setUp()
+    {
+        context = RuntimeEnvironment.getApplication();
+    }
+
+    private static void assertContract(BillingStore store)
+    {
+        BillingStore.Editor editor = store.edit()
+                .putString("string", "value")
+                .putBoolean("boolean", true)
+                .putBytes("bytes", new byte[] { 1, 2, 3 });
+
+        assertNull(store.getString("string", null));
+        assertTrue(editor.commit());
+
+        assertEquals("value", store.getString("string", null));
+        assertTrue(store.getBoolean("boolean", false));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, store.getBytes("bytes"));
+        assertEquals("default", store.getString("missing", "default"));
+        assertNull(store.getBytes("missing"));
+
+        assertTrue(store.edit().putString("string", null).putBytes("bytes", null).commit());
+        assertNull(store.getString("string", null));
+        assertNull(store.getBytes("bytes"));
+
+        assertTrue(store.edit().remove("boolean").commit());
+        assertFalse(store.getBoolean("boolean", false));
+    }
+
+    private static void assertSurvivesReopen(BillingStore first, BillingStore second)
+    {
+        assertTrue(first.edit()
+                .putString("payload", "inapp:sku")
+                .putBytes("cache", new byte[] { 42 })
+                .commit());
+
+        assertEquals("inapp:sku", second.getString("payload", null));
+        assertArrayEquals(new byte[] { 42 }, second.getBytes("cache"));
+    }
+
+    @Test
+    public void inMemoryStore()
+    {
+        assertContract(new InMemoryBillingStore());
+    }
+
+    @Test
+    public void sharedPreferencesStore()
+    {
+        assertContract(new SharedPreferencesBillingStore(context));
+        assertSurvivesReopen(new SharedPreferencesBillingStore(context),
+                new SharedPreferencesBillingStore(context));
+    }
+
+    @Test
+    public void fileStore()
+    {
+        File file = new File(context.getNoBackupFilesDir(), "store-test");
+        assertContract(new FileBillingStore(file));
+        assertSurvivesReopen(new FileBillingStore(file), new FileBillingStore(file));
+    }
+
+    @Test
+    public void sqliteStore()
+    {
+        SqliteBillingStore first = new SqliteBillingStore(context, "store-test.db");
+        SqliteBillingStore second = new SqliteBillingStore(context, "store-test.db");
+        assertContract(first);
+        assertSurvivesReopen(first, second);
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void cacheRunsOnAnyStore()
+    {
+        BillingStore store = new InMemoryBillingStore();
+        new BillingCache(context, store, ".products").put(
+                "a", BillingCacheTest.purchaseJson("a"), "sig-a");
+
+        assertTrue(new BillingCache(context, store, ".products").includesProduct("a"));
+    }
+
+    @Test
+    public void defaultStoreMovesLibraryKeysOutOfDefaultPreferences()
+    {
+        String restoredKey = context.getPackageName() + "_preferences.products.restored.v2_6";
+        String payloadKey = context.getPackageName() + "_preferences.purchase.last.v2_6";
+        SharedPreferences legacy = PreferenceManager.getDefaultSharedPreferences(context);
+        legacy.edit()
+                .putBoolean(restoredKey, true)
+                .putString(payloadKey, "inapp:sku:uuid")
+                .putString("app_setting", "untouched")
+                .commit();
+
+        SharedPreferencesBillingStore store = new SharedPreferencesBillingStore(context);
+
+        assertTrue(store.getBoolean(restoredKey, false));
+        assertEquals("inapp:sku:uuid", store.getString(payloadKey, null));
+        assertFalse(legacy.contains(restoredKey));
+        assertFalse(legacy.contains(payloadKey));
+        assertEquals("untouched", legacy.getString("app_setting", null));
+        assertTrue(new SharedPreferencesBillingStore(context).getBoolean(restoredKey, false));
+    }
+
+    @Test
+    public void writeBeforeFirstReadIsNotOverwrittenByMigration()
+    {
+        String payloadKey = context.getPackageName() + "_preferences.purchase.last.v2_6";
+        PreferenceManager.getDefaultSharedPreferences(context)
+                .edit().putString(payloadKey, "stale").commit();
+
+        SharedPreferencesBillingStore store = new SharedPreferencesBillingStore(context);
+        store.edit().putString(payloadKey, "fresh").commit();
+
+        assertEquals("fresh", store.getString(payloadKey, null));
+    }
+
+    @Test
+    public void failedBlobWriteCommitsNoPreferences() throws Exception
+    {
+        File notADirectory = File.createTempFile("blobs", null);
+        notADirectory.deleteOnExit();
+        SharedPreferences preferences = context.getSharedPreferences("failing_store", Context.MODE_PRIVATE);
+        SharedPreferencesBillingStore store = new SharedPreferencesBillingStore(preferences, notADirectory);
+
+        assertFalse(store.edit()
+                .putString("version", "2")
+                .putBytes("cache", new byte[] { 42 })
+                .commit());
+
+        assertNull(store.getString("version", null));
+        assertNull(store.getBytes("cache"));
+    }
+
+    @Test
+    public void failedPersistLeavesMemoryUnchanged()
+    {
+        final AtomicBoolean failing = new AtomicBoolean();
+        InMemoryBillingStore store = new InMemoryBillingStore()
+        {
+            @Override
+            boolean persist(Map<String, Object> values)
+            {
+                return !failing.get();
+            }
+        };
+        assertTrue(store.edit().putString("version", "1").commit());
+
+        failing.set(true);
+        assertFalse(store.edit()
+                .putString("version", "2")
+                .putBytes("cache", new byte[] { 42 })
+                .commit());
+
+        assertEquals("1", store.getString("version", null));
+        assertNull(store.getBytes("cache"));
+    }
+}
@@ -0,0 +1,157 @@
+package com.anjlab.android.iab.v3;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.QueryProductDetailsParams;
+import com.android.billingclient.api.QueryProductDetailsResult;
+import com.android.billingclient.api.QueryPurchasesParams;
+import com.android.billingclient.api.UnfetchedProduct;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Mockito {@link BillingClient} that answers {@code queryPurchasesAsync} and
+ * {@code queryProductDetailsAsync} after a fixed latency on a thread of its own, the way
+ * Play Services answers over IPC. Responses are handed out in the order the queries
+ * arrive; once a queue is empty every query succeeds with nothing in it. The client reports itself ready while {@link #ready} is
+ * set, and keeps the listener of the last {@code startConnection} call in
+ * {@link #connectionListener}.
+ */
+class FakeBillingClient
+{
+    final BillingClient client = mock(BillingClient.class);
+    final AtomicInteger purchaseQueries = new AtomicInteger();
+    final AtomicInteger maxPurchaseQueriesInFlight = new AtomicInteger();
+    final AtomicInteger productDetailsQueries = new AtomicInteger();
+    volatile boolean ready = true;
+    volatile BillingClientStateListener connectionListener;
+
+    private final AtomicInteger purchaseQueriesInFlight = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Response> responses = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<DetailsResponse> detailsResponses = new ConcurrentLinkedQueue<>();
+    private final DetailsResponse emptyDetails = new DetailsResponse(BillingClient.BillingResponseCode.OK,
+            new ArrayList<ProductDetails>(), new ArrayList<UnfetchedProduct>());
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private final long latencyMillis;
+
+    private static final class Response
+    {
+        final int responseCode;
+        final List<Purchase> purchases;
+
+        Response(int responseCode, List<Purchase> purchases)
+        {
+            this.responseCode = responseCode;
+            this.purchases = purchases;
+        }
+    }
+
+    private static final class DetailsResponse
+    {
+        final int responseCode;
+        final QueryProductDetailsResult result;
+
+        DetailsResponse(int responseCode, List<ProductDetails> details, List<UnfetchedProduct> unfetched)
+        {
+            this.responseCode = responseCode;
+            result = mock(QueryProductDetailsResult.class);
+            when(result.getProductDetailsList()).thenReturn(details);
+            when(result.getUnfetchedProductList()).thenReturn(unfetched);
+        }
+    }
+
+    /**
+     * A mock with just the id and the type set.
+     */
+    static ProductDetails productDetails(String productId, String productType)
+    {
+        ProductDetails details = mock(ProductDetails.class);
+        when(details.getProductId()).thenReturn(productId);
+        when(details.getProductType()).thenReturn(productType);
+        return details;
+    }
+
+    FakeBillingClient(long latencyMillis)
+    {
+        this.latencyMillis = latencyMillis;
+        when(client.isReady()).thenAnswer(invocation -> ready);
+        doAnswer(invocation ->
+        {
+            connectionListener = invocation.getArgument(0);
+            return null;
+        }).when(client).startConnection(any(BillingClientStateListener.class));
+        doAnswer(invocation ->
+        {
+            final PurchasesResponseListener listener = invocation.getArgument(1);
+            purchaseQueries.incrementAndGet();
+            int inFlight = purchaseQueriesInFlight.incrementAndGet();
+            maxPurchaseQueriesInFlight.accumulateAndGet(inFlight, Math::max);
+            Response polled = responses.poll();
+            final Response response = polled != null
+                    ? polled
+                    : new Response(BillingClient.BillingResponseCode.OK, new ArrayList<Purchase>());
+            scheduler.schedule(() ->
+            {
+                purchaseQueriesInFlight.decrementAndGet();
+                listener.onQueryPurchasesResponse(
+                        BillingResult.newBuilder().setResponseCode(response.responseCode).build(),
+                        response.purchases);
+            }, this.latencyMillis, TimeUnit.MILLISECONDS);
+            return null;
+        }).when(client).queryPurchasesAsync(any(QueryPurchasesParams.class), any(PurchasesResponseListener.class));
+        doAnswer(invocation ->
+        {
+            final ProductDetailsResponseListener listener = invocation.getArgument(1);
+            productDetailsQueries.incrementAndGet();
+            DetailsResponse polled = detailsResponses.poll();
+            final DetailsResponse response = polled != null ? polled : emptyDetails;
+            scheduler.schedule(() -> listener.onProductDetailsResponse(
+                    BillingResult.newBuilder().setResponseCode(response.responseCode).build(), response.result),
+                    this.latencyMillis, TimeUnit.MILLISECONDS);
+            return null;
+        }).when(client).queryProductDetailsAsync(any(QueryProductDetailsParams.class),
+                                                 any(ProductDetailsResponseListener.class));
+    }
+
+    FakeBillingClient respondWithDetails(int responseCode, ProductDetails... details)
+    {
+        detailsResponses.add(new DetailsResponse(responseCode, Arrays.asList(details),
+                                                 new ArrayList<UnfetchedProduct>()));
+        return this;
+    }
+
+    FakeBillingClient respondWithDetails(int responseCode, List<UnfetchedProduct> unfetched,
+                                         ProductDetails... details)
+    {
+        detailsResponses.add(new DetailsResponse(responseCode, Arrays.asList(details), unfetched));
+        return this;
+    }
+
+    FakeBillingClient respond(int responseCode, Purchase... purchases)
+    {
+        responses.add(new Response(responseCode, Arrays.asList(purchases)));
+        return this;
+    }
+
+    void shutdown()
+    {
+        scheduler.shutdownNow();
+    }
+}
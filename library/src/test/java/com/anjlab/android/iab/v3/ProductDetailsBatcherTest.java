@@ -0,0 +1,198 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.UnfetchedProduct;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link ProductDetailsBatcher} on the main looper, with a loader the test answers by
+ * hand: lookups wait for the looper to go idle, or for the window, and then go out as one
+ * deduplicated query per product type whose answer reaches every caller.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class ProductDetailsBatcherTest
+{
+    private static final String INAPP = BillingClient.ProductType.INAPP;
+    private static final String SUBS = BillingClient.ProductType.SUBS;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Keeps every batch until the test answers it.
+     */
+    static class HeldLoader implements ProductDetailsBatcher.Loader
+    {
+        final List<List<String>> productIds = new ArrayList<>();
+        final List<String> productTypes = new ArrayList<>();
+        final List<BillingProcessor.IProductDetailsResponseListener> listeners = new ArrayList<>();
+
+        @Override
+        public void load(List<String> productIds, String productType,
+                         BillingProcessor.IProductDetailsResponseListener listener)
+        {
+            this.productIds.add(productIds);
+            productTypes.add(productType);
+            listeners.add(listener);
+        }
+
+        List<String> idsOf(String productType)
+        {
+            return productIds.get(productTypes.indexOf(productType));
+        }
+
+        BillingProcessor.IProductDetailsResponseListener listenerOf(String productType)
+        {
+            return listeners.get(productTypes.indexOf(productType));
+        }
+    }
+
+    static class Answer implements BillingProcessor.IProductDetailsResponseListener
+    {
+        List<ProductDetails> products;
+        List<UnfetchedProduct> unfetched;
+        String error;
+
+        @Override
+        public void onProductDetailsResponse(@NonNull List<ProductDetails> products)
+        {
+            this.products = products;
+        }
+
+        @Override
+        public void onProductDetailsError(@NonNull String error)
+        {
+            this.error = error;
+        }
+
+        @Override
+        public void onProductDetailsUnfetched(@NonNull List<UnfetchedProduct> unfetched)
+        {
+            this.unfetched = unfetched;
+        }
+    }
+
+    @Test
+    public void lookupsBeforeIdleShareOneQueryPerType()
+    {
+        HeldLoader loader = new HeldLoader();
+        ProductDetailsBatcher batcher = new ProductDetailsBatcher(handler, 0, loader);
+        Answer premium = new Answer();
+        Answer premiumAgain = new Answer();
+        Answer coins = new Answer();
+        Answer monthly = new Answer();
+
+        batcher.load("premium", INAPP, premium);
+        batcher.load("coins", INAPP, coins);
+        batcher.load("premium", INAPP, premiumAgain);
+        batcher.load("monthly", SUBS, monthly);
+        assertTrue(loader.productIds.isEmpty());
+
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertEquals(2, loader.productIds.size());
+        assertEquals(Arrays.asList("premium", "coins"), loader.idsOf(INAPP));
+        assertEquals(Arrays.asList("monthly"), loader.idsOf(SUBS));
+
+        ProductDetails premiumDetails = FakeBillingClient.productDetails("premium", INAPP);
+        ProductDetails coinsDetails = FakeBillingClient.productDetails("coins", INAPP);
+        loader.listenerOf(INAPP).onProductDetailsResponse(Arrays.asList(coinsDetails, premiumDetails));
+
+        assertEquals(Arrays.asList(premiumDetails), premium.products);
+        assertEquals(Arrays.asList(premiumDetails), premiumAgain.products);
+        assertEquals(Arrays.asList(coinsDetails), coins.products);
+        assertNull(monthly.products);
+    }
+
+    @Test
+    public void windowHoldsTheBatchUntilItEnds()
+    {
+        HeldLoader loader = new HeldLoader();
+        ProductDetailsBatcher batcher = new ProductDetailsBatcher(handler, 50, loader);
+
+        batcher.load("premium", INAPP, new Answer());
+        shadowOf(Looper.getMainLooper()).idle();
+        assertTrue(loader.productIds.isEmpty());
+
+        batcher.load("coins", INAPP, new Answer());
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(50));
+
+        assertEquals(1, loader.productIds.size());
+        assertEquals(Arrays.asList("premium", "coins"), loader.idsOf(INAPP));
+    }
+
+    @Test
+    public void lookupAfterAFlushStartsANewBatch()
+    {
+        HeldLoader loader = new HeldLoader();
+        ProductDetailsBatcher batcher = new ProductDetailsBatcher(handler, 0, loader);
+
+        batcher.load("premium", INAPP, new Answer());
+        shadowOf(Looper.getMainLooper()).idle();
+        batcher.load("premium", INAPP, new Answer());
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertEquals(2, loader.productIds.size());
+    }
+
+    @Test
+    public void productMissingFromTheAnswerGetsAnEmptyList()
+    {
+        HeldLoader loader = new HeldLoader();
+        ProductDetailsBatcher batcher = new ProductDetailsBatcher(handler, 0, loader);
+        Answer retired = new Answer();
+        UnfetchedProduct unfetched = mock(UnfetchedProduct.class);
+        when(unfetched.getProductId()).thenReturn("retired");
+
+        batcher.load("premium", INAPP, new Answer());
+        batcher.load("retired", INAPP, retired);
+        shadowOf(Looper.getMainLooper()).idle();
+        loader.listenerOf(INAPP).onProductDetailsUnfetched(Arrays.asList(unfetched));
+        loader.listenerOf(INAPP).onProductDetailsResponse(
+                Arrays.asList(FakeBillingClient.productDetails("premium", INAPP)));
+
+        assertEquals(Collections.<ProductDetails>emptyList(), retired.products);
+        assertEquals(Arrays.asList(unfetched), retired.unfetched);
+    }
+
+    @Test
+    public void errorReachesEveryCaller()
+    {
+        HeldLoader loader = new HeldLoader();
+        ProductDetailsBatcher batcher = new ProductDetailsBatcher(handler, 0, loader);
+        Answer premium = new Answer();
+        Answer coins = new Answer();
+
+        batcher.load("premium", INAPP, premium);
+        batcher.load("coins", INAPP, coins);
+        shadowOf(Looper.getMainLooper()).idle();
+        loader.listenerOf(INAPP).onProductDetailsError("unavailable");
+
+        assertEquals("unavailable", premium.error);
+        assertEquals("unavailable", coins.error);
+        assertNull(premium.unfetched);
+    }
+}
@@ -0,0 +1,88 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.ProductDetails;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.time.Duration;
+
+/**
+ * {@link ProductDetailsCache} serves an entry until its TTL runs out, keys entries by
+ * product type as well as id, and stays within its size bound.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class ProductDetailsCacheTest
+{
+    private static final String INAPP = BillingClient.ProductType.INAPP;
+    private static final String SUBS = BillingClient.ProductType.SUBS;
+
+    private static void advanceClock(long millis)
+    {
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(millis));
+    }
+
+    @Test
+    public void freshEntryIsServedUntilItsTtlRunsOut()
+    {
+        ProductDetailsCache cache = new ProductDetailsCache(10, 1000);
+        ProductDetails premium = FakeBillingClient.productDetails("premium", INAPP);
+        cache.put(premium);
+
+        advanceClock(999);
+        assertSame(premium, cache.get("premium", INAPP));
+
+        advanceClock(1);
+        assertNull(cache.get("premium", INAPP));
+
+        CacheStats stats = cache.stats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(0, stats.getSize());
+        assertEquals(0.5, stats.getHitRate(), 0);
+    }
+
+    @Test
+    public void typeIsPartOfTheKey()
+    {
+        ProductDetailsCache cache = new ProductDetailsCache(10, 1000);
+        ProductDetails inApp = FakeBillingClient.productDetails("premium", INAPP);
+        cache.put(inApp);
+
+        assertNull(cache.get("premium", SUBS));
+        assertSame(inApp, cache.get("premium", INAPP));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted()
+    {
+        ProductDetailsCache cache = new ProductDetailsCache(2, 1000);
+        cache.put(FakeBillingClient.productDetails("a", INAPP));
+        cache.put(FakeBillingClient.productDetails("b", INAPP));
+        cache.get("a", INAPP);
+
+        cache.put(FakeBillingClient.productDetails("c", INAPP));
+
+        assertNull(cache.get("b", INAPP));
+        assertEquals("a", cache.get("a", INAPP).getProductId());
+        assertEquals(1, cache.stats().getEvictionCount());
+        assertEquals(2, cache.stats().getSize());
+    }
+
+    @Test
+    public void hitRateIsZeroBeforeAnyLookup()
+    {
+        assertEquals(0, new ProductDetailsCache(2, 1000).stats().getHitRate(), 0);
+    }
+}
@@ -0,0 +1,309 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.UnfetchedProduct;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link ProductDetailsFetcher} against a query whose chunks the test answers by hand, in
+ * any order: chunk sizes and the in-flight bound hold, answers come back in request order,
+ * and only failed chunks are sent again, after a growing delay.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class ProductDetailsFetcherTest
+{
+    private static final String INAPP = BillingClient.ProductType.INAPP;
+    private static final int OK = BillingClient.BillingResponseCode.OK;
+
+    /**
+     * Keeps every chunk it is asked for until the test answers it.
+     */
+    static class HeldQuery implements ProductDetailsFetcher.Query
+    {
+        final List<List<String>> sent = new ArrayList<>();
+        final List<ProductDetailsFetcher.ChunkCallback> pending = new ArrayList<>();
+        final List<List<String>> pendingIds = new ArrayList<>();
+
+        @Override
+        public void query(List<String> productIds, String productType, ProductDetailsFetcher.ChunkCallback callback)
+        {
+            sent.add(productIds);
+            pending.add(callback);
+            pendingIds.add(productIds);
+        }
+
+        /**
+         * Answers the {@code index}-th outstanding chunk with details for all of its ids.
+         */
+        void succeed(int index, UnfetchedProduct... unfetched)
+        {
+            List<String> ids = pendingIds.remove(index);
+            ProductDetailsFetcher.ChunkCallback callback = pending.remove(index);
+            List<ProductDetails> details = new ArrayList<>();
+            for (String id : ids)
+            {
+                details.add(FakeBillingClient.productDetails(id, INAPP));
+            }
+            callback.onChunkResult(OK, details, Arrays.asList(unfetched));
+        }
+
+        void fail(int index, int responseCode)
+        {
+            pendingIds.remove(index);
+            pending.remove(index).onChunkResult(responseCode, null, null);
+        }
+    }
+
+    static class Result implements ProductDetailsFetcher.Listener
+    {
+        final List<ProductDetails> chunks = new ArrayList<>();
+        List<ProductDetails> details;
+        List<UnfetchedProduct> unfetched;
+        int failures;
+        int responseCode;
+        RuntimeException error;
+
+        @Override
+        public void onChunkFetched(List<ProductDetails> details)
+        {
+            chunks.addAll(details);
+        }
+
+        @Override
+        public void onFetched(List<ProductDetails> details, List<UnfetchedProduct> unfetched)
+        {
+            this.details = details;
+            this.unfetched = unfetched;
+        }
+
+        @Override
+        public void onFailed(int responseCode, RuntimeException error)
+        {
+            failures++;
+            this.responseCode = responseCode;
+            this.error = error;
+        }
+
+        List<String> productIds()
+        {
+            List<String> ids = new ArrayList<>();
+            for (ProductDetails each : details)
+            {
+                ids.add(each.getProductId());
+            }
+            return ids;
+        }
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private ProductDetailsFetcher fetcher(int chunkSize, int maxInFlight)
+    {
+        return new ProductDetailsFetcher(chunkSize, maxInFlight, handler);
+    }
+
+    /**
+     * Lets the retry scheduled after the {@code attempts}-th failure go out.
+     */
+    private static void awaitRetry(int attempts)
+    {
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(ProductDetailsFetcher.retryDelayMillis(attempts)));
+    }
+
+    private static List<String> ids(int count)
+    {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            ids.add("sku" + i);
+        }
+        return ids;
+    }
+
+    @Test
+    public void chunksStayWithinSizeAndInFlightBounds()
+    {
+        HeldQuery query = new HeldQuery();
+        Result result = new Result();
+
+        fetcher(3, 2).fetch(ids(10), INAPP, query, result);
+
+        assertEquals(2, query.pending.size());
+        assertEquals(Arrays.asList("sku0", "sku1", "sku2"), query.sent.get(0));
+        assertEquals(Arrays.asList("sku3", "sku4", "sku5"), query.sent.get(1));
+        while (!query.pending.isEmpty())
+        {
+            assertTrue(query.pending.size() <= 2);
+            query.succeed(0);
+        }
+        assertEquals(4, query.sent.size());
+        assertEquals(Arrays.asList("sku9"), query.sent.get(3));
+        assertEquals(ids(10), result.productIds());
+        assertEquals(0, result.failures);
+    }
+
+    @Test
+    public void answersArrivingOutOfOrderAreMergedInRequestOrder()
+    {
+        HeldQuery query = new HeldQuery();
+        Result result = new Result();
+
+        fetcher(2, 3).fetch(ids(6), INAPP, query, result);
+        query.succeed(2);
+        query.succeed(1);
+        query.succeed(0);
+
+        assertEquals(ids(6), result.productIds());
+        assertEquals(6, result.chunks.size());
+    }
+
+    @Test
+    public void onlyTheFailedChunkIsRetried()
+    {
+        HeldQuery query = new HeldQuery();
+        Result result = new Result();
+
+        fetcher(2, 2).fetch(ids(4), INAPP, query, result);
+        query.fail(1, BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE);
+        assertEquals("not sent again at once", 2, query.sent.size());
+        awaitRetry(1);
+        query.succeed(0);
+        query.succeed(0);
+
+        assertEquals(3, query.sent.size());
+        assertEquals(Arrays.asList("sku2", "sku3"), query.sent.get(2));
+        assertEquals(ids(4), result.productIds());
+        assertEquals(0, result.failures);
+    }
+
+    @Test
+    public void chunkFailsAfterTheLastAttempt()
+    {
+        HeldQuery query = new HeldQuery();
+        Result result = new Result();
+
+        fetcher(2, 2).fetch(ids(4), INAPP, query, result);
+        query.succeed(0);
+        for (int i = 1; i <= ProductDetailsFetcher.MAX_ATTEMPTS; i++)
+        {
+            query.fail(0, BillingClient.BillingResponseCode.NETWORK_ERROR);
+            awaitRetry(i);
+        }
+
+        assertEquals(1, result.failures);
+        assertEquals(BillingClient.BillingResponseCode.NETWORK_ERROR, result.responseCode);
+        assertNull(result.details);
+        assertEquals("chunks that arrived are still reported", 2, result.chunks.size());
+        assertTrue(query.pending.isEmpty());
+    }
+
+    @Test
+    public void chunkFailingTwiceThenSucceedingIsMerged()
+    {
+        HeldQuery query = new HeldQuery();
+        Result result = new Result();
+
+        fetcher(2, 2).fetch(ids(4), INAPP, query, result);
+        query.fail(0, BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE);
+        awaitRetry(1);
+        assertEquals(Arrays.asList("sku0", "sku1"), query.pendingIds.get(1));
+        query.fail(1, BillingClient.BillingResponseCode.ERROR);
+        awaitRetry(1);
+        assertEquals("the second retry waits longer", 1, query.pending.size());
+        awaitRetry(1);
+        query.succeed(1);
+        query.succeed(0);
+
+        assertEquals(4, query.sent.size());
+        assertEquals(ids(4), result.productIds());
+        assertEquals(0, result.failures);
+    }
+
+    @Test
+    public void permanentFailureIsNotRetriedAndLaterAnswersAreIgnored()
+    {
+        HeldQuery query = new HeldQuery();
+        Result result = new Result();
+
+        fetcher(2, 2).fetch(ids(4), INAPP, query, result);
+        query.fail(0, BillingClient.BillingResponseCode.DEVELOPER_ERROR);
+        query.fail(0, BillingClient.BillingResponseCode.DEVELOPER_ERROR);
+
+        assertEquals(2, query.sent.size());
+        assertEquals(1, result.failures);
+        assertNull(result.details);
+    }
+
+    @Test
+    public void unfetchedProductsOfEveryChunkAreCollected()
+    {
+        HeldQuery query = new HeldQuery();
+        Result result = new Result();
+        UnfetchedProduct first = mock(UnfetchedProduct.class);
+        UnfetchedProduct second = mock(UnfetchedProduct.class);
+
+        fetcher(2, 2).fetch(ids(4), INAPP, query, result);
+        query.succeed(0, first);
+        query.succeed(0, second);
+
+        assertEquals(Arrays.asList(first, second), result.unfetched);
+    }
+
+    @Test
+    public void throwingQueryFailsTheFetch()
+    {
+        final IllegalStateException thrown = new IllegalStateException("not connected");
+        Result result = new Result();
+
+        fetcher(2, 2).fetch(ids(4), INAPP, (productIds, productType, callback) ->
+        {
+            throw thrown;
+        }, result);
+
+        assertEquals(1, result.failures);
+        assertSame(thrown, result.error);
+    }
+
+    @Test
+    public void queryAnsweringOnTheCallingThreadCompletes()
+    {
+        final List<List<String>> sent = new ArrayList<>();
+        Result result = new Result();
+
+        fetcher(3, 1).fetch(ids(7), INAPP, (productIds, productType, callback) ->
+        {
+            sent.add(productIds);
+            List<ProductDetails> details = new ArrayList<>();
+            for (String id : productIds)
+            {
+                details.add(FakeBillingClient.productDetails(id, INAPP));
+            }
+            callback.onChunkResult(OK, details, Collections.<UnfetchedProduct>emptyList());
+        }, result);
+
+        assertEquals(3, sent.size());
+        assertEquals(ids(7), result.productIds());
+    }
+}
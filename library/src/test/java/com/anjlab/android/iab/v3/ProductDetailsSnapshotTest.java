@@ -0,0 +1,394 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.ProductDetails;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ProductDetailsSnapshot} on its own, and through {@link BillingProcessor}: a second
+ * launch answers listing queries from the first launch's details before it connects, and
+ * calls again only if Play then reports a different price.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+@SuppressWarnings("deprecation")
+public class ProductDetailsSnapshotTest
+{
+    private static final String INAPP = BillingClient.ProductType.INAPP;
+    private static final String SUBS = BillingClient.ProductType.SUBS;
+    private static final String KEY = "snapshot";
+    private static final Executor DIRECT = Runnable::run;
+
+    private InMemoryBillingStore store;
+    private FakeBillingClient fake;
+
+    /**
+     * Keeps every answer it was given.
+     */
+    static class SkuListener implements BillingProcessor.ISkuDetailsResponseListener
+    {
+        final List<List<SkuDetails>> responses = Collections.synchronizedList(new ArrayList<List<SkuDetails>>());
+        volatile String error;
+
+        @Override
+        public void onSkuDetailsResponse(List<SkuDetails> products)
+        {
+            responses.add(products);
+        }
+
+        @Override
+        public void onSkuDetailsError(String error)
+        {
+            this.error = error;
+        }
+
+        /**
+         * Runs the main looper, where answers are delivered, until {@code count} arrived.
+         */
+        void await(int count) throws InterruptedException
+        {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (responses.size() < count && error == null && System.nanoTime() < deadline)
+            {
+                shadowOf(Looper.getMainLooper()).idle();
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    @Before
+    public void setUp()
+    {
+        store = new InMemoryBillingStore();
+        fake = new FakeBillingClient(0);
+    }
+
+    @After
+    public void tearDown()
+    {
+        fake.shutdown();
+    }
+
+    static ProductDetails inApp(String productId, long priceMicros, String formattedPrice)
+    {
+        ProductDetails details = FakeBillingClient.productDetails(productId, INAPP);
+        ProductDetails.OneTimePurchaseOfferDetails offer = mock(ProductDetails.OneTimePurchaseOfferDetails.class);
+        when(offer.getPriceAmountMicros()).thenReturn(priceMicros);
+        when(offer.getFormattedPrice()).thenReturn(formattedPrice);
+        when(offer.getPriceCurrencyCode()).thenReturn("USD");
+        when(details.getOneTimePurchaseOfferDetails()).thenReturn(offer);
+        when(details.getTitle()).thenReturn(productId + " title");
+        return details;
+    }
+
+    static ProductDetails subscription(String productId, long trialMicros, long regularMicros)
+    {
+        ProductDetails details = FakeBillingClient.productDetails(productId, SUBS);
+        ProductDetails.PricingPhase trial = phase(trialMicros, "P1W", ProductDetails.RecurrenceMode.FINITE_RECURRING);
+        ProductDetails.PricingPhase regular = phase(regularMicros, "P1M",
+                                                    ProductDetails.RecurrenceMode.INFINITE_RECURRING);
+        ProductDetails.PricingPhases phases = mock(ProductDetails.PricingPhases.class);
+        when(phases.getPricingPhaseList()).thenReturn(Arrays.asList(trial, regular));
+        ProductDetails.SubscriptionOfferDetails offer = mock(ProductDetails.SubscriptionOfferDetails.class);
+        when(offer.getBasePlanId()).thenReturn("monthly");
+        when(offer.getOfferId()).thenReturn("trial");
+        when(offer.getOfferToken()).thenReturn("token-" + productId);
+        when(offer.getPricingPhases()).thenReturn(phases);
+        when(details.getSubscriptionOfferDetails()).thenReturn(Collections.singletonList(offer));
+        return details;
+    }
+
+    private static ProductDetails.PricingPhase phase(long micros, String period, int recurrenceMode)
+    {
+        ProductDetails.PricingPhase phase = mock(ProductDetails.PricingPhase.class);
+        when(phase.getPriceAmountMicros()).thenReturn(micros);
+        when(phase.getFormattedPrice()).thenReturn("$" + micros / 1e6);
+        when(phase.getPriceCurrencyCode()).thenReturn("USD");
+        when(phase.getBillingPeriod()).thenReturn(period);
+        when(phase.getBillingCycleCount()).thenReturn(1);
+        when(phase.getRecurrenceMode()).thenReturn(recurrenceMode);
+        return phase;
+    }
+
+    @Test
+    public void recordsSurviveARestartAsStale() throws Exception
+    {
+        new ProductDetailsSnapshot(store, KEY).update(
+                Arrays.asList(inApp("premium", 990_000L, "$0.99"), subscription("pro", 0L, 4_990_000L)), DIRECT);
+
+        ProductDetailsSnapshot restarted = new ProductDetailsSnapshot(store, KEY);
+        List<ProductDetailsSnapshot.Record> premium = restarted.getStale(Arrays.asList("premium"), INAPP);
+        List<ProductDetailsSnapshot.Record> pro = restarted.getStale(Arrays.asList("pro"), SUBS);
+
+        assertNotNull(premium);
+        SkuDetails premiumDetails = premium.get(0).toSkuDetails();
+        assertTrue(premiumDetails.isPossiblyStale());
+        assertEquals(990_000L, premiumDetails.priceLong);
+        assertEquals("$0.99", premiumDetails.priceText);
+        assertEquals("premium title", premiumDetails.title);
+
+        assertNotNull(pro);
+        SkuDetails proDetails = pro.get(0).toSkuDetails();
+        assertEquals(4_990_000L, proDetails.priceLong);
+        assertEquals("P1W", proDetails.subscriptionFreeTrialPeriod);
+        assertEquals("token-pro", proDetails.offerToken);
+        ProductDetailsSnapshot.Offer offer = pro.get(0).offers.get(0);
+        assertEquals("monthly", offer.basePlanId);
+        assertEquals("trial", offer.offerId);
+        assertEquals(2, offer.phases.size());
+    }
+
+    @Test
+    public void onlyCompleteAndUnrefreshedAnswersAreStale() throws Exception
+    {
+        new ProductDetailsSnapshot(store, KEY).update(Arrays.asList(inApp("premium", 990_000L, "$0.99")), DIRECT);
+        ProductDetailsSnapshot restarted = new ProductDetailsSnapshot(store, KEY);
+
+        assertNull(restarted.getStale(Arrays.asList("premium", "coins"), INAPP));
+        assertNull(restarted.getStale(Arrays.asList("premium"), SUBS));
+
+        restarted.update(Arrays.asList(inApp("premium", 990_000L, "$0.99")), DIRECT);
+
+        assertNull(restarted.getStale(Arrays.asList("premium"), INAPP));
+    }
+
+    @Test
+    public void onlyChargedPricesCount() throws Exception
+    {
+        ProductDetailsSnapshot snapshot = new ProductDetailsSnapshot(store, KEY);
+        snapshot.update(Arrays.asList(inApp("premium", 990_000L, "$0.99"), subscription("pro", 0L, 4_990_000L)),
+                        DIRECT);
+        List<ProductDetailsSnapshot.Record> served =
+                new ProductDetailsSnapshot(store, KEY).getStale(Arrays.asList("premium"), INAPP);
+        List<ProductDetailsSnapshot.Record> servedPro =
+                new ProductDetailsSnapshot(store, KEY).getStale(Arrays.asList("pro"), SUBS);
+
+        assertFalse(ProductDetailsSnapshot.pricesChanged(served, Arrays.asList(inApp("premium", 990_000L, "0,99 $"))));
+        assertTrue(ProductDetailsSnapshot.pricesChanged(served, Arrays.asList(inApp("premium", 1_490_000L, "$1.49"))));
+        assertTrue(ProductDetailsSnapshot.pricesChanged(served, Collections.<ProductDetails>emptyList()));
+        assertFalse(ProductDetailsSnapshot.pricesChanged(servedPro, Arrays.asList(subscription("pro", 0L, 4_990_000L))));
+        assertTrue(ProductDetailsSnapshot.pricesChanged(servedPro, Arrays.asList(subscription("pro", 990_000L, 4_990_000L))));
+    }
+
+    @Test
+    public void unreadableSnapshotIsDiscarded()
+    {
+        store.edit().putBytes(KEY, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20 })
+             .commit();
+
+        assertNull(new ProductDetailsSnapshot(store, KEY).getStale(Arrays.asList("premium"), INAPP));
+    }
+
+    @Test
+    public void leastRecentlyFetchedRecordsAreDropped()
+    {
+        ProductDetailsSnapshot snapshot = new ProductDetailsSnapshot(store, KEY);
+        for (int i = 0; i <= ProductDetailsSnapshot.MAX_RECORDS; i++)
+        {
+            snapshot.update(Arrays.asList(inApp("sku" + i, 990_000L, "$0.99")), DIRECT);
+        }
+
+        ProductDetailsSnapshot restarted = new ProductDetailsSnapshot(store, KEY);
+        assertNull(restarted.getStale(Arrays.asList("sku0"), INAPP));
+        assertNotNull(restarted.getStale(Arrays.asList("sku1", "sku" + ProductDetailsSnapshot.MAX_RECORDS), INAPP));
+    }
+
+    /**
+     * Holds the first commit until {@link #release} is counted down.
+     */
+    static class FirstCommitGatedStore extends BillingCacheTest.CountingStore
+    {
+        final CountDownLatch firstCommitStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public Editor edit()
+        {
+            final Editor editor = super.edit();
+            return new Editor()
+            {
+                @Override
+                public Editor putString(String key, String value)
+                {
+                    editor.putString(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putBoolean(String key, boolean value)
+                {
+                    editor.putBoolean(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putBytes(String key, byte[] value)
+                {
+                    editor.putBytes(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor remove(String key)
+                {
+                    editor.remove(key);
+                    return this;
+                }
+
+                @Override
+                public boolean commit()
+                {
+                    if (firstCommitStarted.getCount() > 0)
+                    {
+                        firstCommitStarted.countDown();
+                        try
+                        {
+                            release.await(10, TimeUnit.SECONDS);
+                        }
+                        catch (InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return editor.commit();
+                }
+            };
+        }
+    }
+
+    @Test
+    public void overlappingWritesReachTheStoreInOrder() throws Exception
+    {
+        FirstCommitGatedStore gated = new FirstCommitGatedStore();
+        final List<Thread> writers = Collections.synchronizedList(new ArrayList<Thread>());
+        Executor threadPerWrite = command ->
+        {
+            Thread writer = new Thread(command);
+            writers.add(writer);
+            writer.start();
+        };
+        ProductDetailsSnapshot snapshot = new ProductDetailsSnapshot(gated, KEY);
+
+        snapshot.update(Arrays.asList(inApp("premium", 990_000L, "$0.99")), threadPerWrite);
+        assertTrue(gated.firstCommitStarted.await(10, TimeUnit.SECONDS));
+        snapshot.update(Arrays.asList(inApp("extra", 490_000L, "$0.49")), threadPerWrite);
+        // The newer write must wait for the older one rather than commit before it.
+        Thread newer = writers.get(1);
+        while (newer.isAlive() && newer.getState() != Thread.State.BLOCKED)
+        {
+            Thread.sleep(1);
+        }
+        gated.release.countDown();
+        for (Thread writer : writers)
+        {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        }
+
+        assertNotNull(new ProductDetailsSnapshot(gated, KEY).getStale(Arrays.asList("premium", "extra"), INAPP));
+    }
+
+    private BillingProcessor newProcessor()
+    {
+        BillingProcessor processor = BillingProcessor.newBillingProcessor(
+                RuntimeEnvironment.getApplication(), null, null, null,
+                BillingOptions.newBuilder()
+                        .setStore(store)
+                        .setExecutor(DIRECT)
+                        .setPersistProductDetails(true)
+                        .build());
+        processor.setBillingClient(fake.client);
+        return processor;
+    }
+
+    private static SkuListener listing(BillingProcessor processor, int responses) throws InterruptedException
+    {
+        SkuListener listener = new SkuListener();
+        processor.getPurchaseListingDetailsAsync(new ArrayList<>(Arrays.asList("premium")), listener);
+        listener.await(responses);
+        return listener;
+    }
+
+    /**
+     * Fills the store the way a previous launch would have.
+     */
+    private void firstLaunch() throws InterruptedException
+    {
+        fake.respondWithDetails(BillingClient.BillingResponseCode.OK, inApp("premium", 990_000L, "$0.99"));
+        SkuListener fetched = listing(newProcessor(), 1);
+        assertFalse(fetched.responses.get(0).get(0).isPossiblyStale());
+    }
+
+    @Test
+    public void nextLaunchAnswersBeforeConnectingAndReportsNewPrices() throws Exception
+    {
+        firstLaunch();
+        fake.ready = false;
+        BillingProcessor bp = newProcessor();
+
+        SkuListener listener = listing(bp, 1);
+
+        SkuDetails stale = listener.responses.get(0).get(0);
+        assertTrue(stale.isPossiblyStale());
+        assertEquals(990_000L, stale.priceLong);
+        assertEquals(1, fake.productDetailsQueries.get());
+
+        fake.ready = true;
+        fake.respondWithDetails(BillingClient.BillingResponseCode.OK, inApp("premium", 1_490_000L, "$1.49"));
+        bp.initialize();
+        listener.await(2);
+
+        assertEquals(2, listener.responses.size());
+        SkuDetails fresh = listener.responses.get(1).get(0);
+        assertFalse(fresh.isPossiblyStale());
+        assertEquals(1_490_000L, fresh.priceLong);
+        assertEquals(2, fake.productDetailsQueries.get());
+    }
+
+    @Test
+    public void unchangedPricesAreNotReportedAgain() throws Exception
+    {
+        firstLaunch();
+        BillingProcessor bp = newProcessor();
+        fake.respondWithDetails(BillingClient.BillingResponseCode.OK, inApp("premium", 990_000L, "$0.99"));
+
+        SkuListener listener = listing(bp, 1);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (fake.productDetailsQueries.get() < 2 && System.nanoTime() < deadline)
+        {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertEquals(2, fake.productDetailsQueries.get());
+        assertEquals(1, listener.responses.size());
+        assertTrue(listener.responses.get(0).get(0).isPossiblyStale());
+        assertNull(listener.error);
+    }
+}
@@ -0,0 +1,162 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * {@link PurchaseBatchVerifier} must return the same answers as checking the purchases
+ * one by one, in input order, whatever the executor does. Throughput at 10, 100 and 1000
+ * purchases is measured on a device, by the instrumented {@code PurchaseBatchVerifierBenchmark}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class PurchaseBatchVerifierTest
+{
+    private static final PurchaseBatchVerifier.Check SIGNATURE =
+            purchase -> Security.verifyPurchase(purchase.productId, SecurityTest.licenseKey,
+                                                purchase.json, purchase.signature);
+
+    private static final Executor REJECTING = runnable ->
+    {
+        throw new RejectedExecutionException();
+    };
+
+    @Before
+    public void setUp() throws GeneralSecurityException
+    {
+        SecurityTest.generateKeys();
+    }
+
+    /**
+     * Signed purchases, where every {@code badEvery}-th one carries another purchase's
+     * signature. Zero means all are valid.
+     */
+    private static List<ParsedPurchase> purchases(int count, int badEvery)
+            throws GeneralSecurityException, IOException
+    {
+        List<ParsedPurchase> purchases = new ArrayList<>(count);
+        String foreignSignature = SecurityTest.sign(SecurityTest.keyPair.getPrivate(),
+                                                    BillingCacheTest.purchaseJson("foreign"));
+        for (int i = 0; i < count; i++)
+        {
+            String json = BillingCacheTest.purchaseJson("sku" + i);
+            String signature = badEvery > 0 && i % badEvery == 0
+                    ? foreignSignature
+                    : SecurityTest.sign(SecurityTest.keyPair.getPrivate(), json);
+            purchases.add(PurchaseJsonParser.parse(json, signature));
+        }
+        return purchases;
+    }
+
+    @Test
+    public void resultsFollowInputOrder() throws Exception
+    {
+        List<ParsedPurchase> purchases = purchases(100, 7);
+        PurchaseBatchVerifier verifier = new PurchaseBatchVerifier(BillingExecutors.verification(), 4);
+
+        boolean[] valid = verifier.verify(purchases, SIGNATURE);
+
+        assertEquals(purchases.size(), valid.length);
+        for (int i = 0; i < valid.length; i++)
+        {
+            assertEquals("purchase " + i, i % 7 != 0, valid[i]);
+        }
+    }
+
+    @Test
+    public void smallBatchStaysOnTheCallingThread() throws Exception
+    {
+        List<ParsedPurchase> purchases = purchases(PurchaseBatchVerifier.MIN_CHUNK_SIZE, 0);
+        final List<Thread> threads = new ArrayList<>();
+        PurchaseBatchVerifier verifier = new PurchaseBatchVerifier(REJECTING, 4);
+
+        boolean[] valid = verifier.verify(purchases, purchase ->
+        {
+            threads.add(Thread.currentThread());
+            return SIGNATURE.isValid(purchase);
+        });
+
+        for (boolean each : valid)
+        {
+            assertTrue(each);
+        }
+        for (Thread thread : threads)
+        {
+            assertSame(Thread.currentThread(), thread);
+        }
+    }
+
+    @Test
+    public void rejectedChunksRunOnTheCallingThread() throws Exception
+    {
+        List<ParsedPurchase> purchases = purchases(64, 5);
+        PurchaseBatchVerifier verifier = new PurchaseBatchVerifier(REJECTING, 4);
+
+        boolean[] valid = verifier.verify(purchases, SIGNATURE);
+
+        for (int i = 0; i < valid.length; i++)
+        {
+            assertEquals("purchase " + i, i % 5 != 0, valid[i]);
+        }
+    }
+
+    @Test
+    public void chunksTheExecutorNeverStartsRunOnTheCallingThread() throws Exception
+    {
+        List<ParsedPurchase> purchases = purchases(64, 3);
+        final List<Runnable> queued = new ArrayList<>();
+        // Like a serial executor whose only thread is the caller.
+        PurchaseBatchVerifier verifier = new PurchaseBatchVerifier(queued::add, 4);
+
+        boolean[] valid = verifier.verify(purchases, SIGNATURE);
+
+        assertEquals(3, queued.size());
+        for (int i = 0; i < valid.length; i++)
+        {
+            assertEquals("purchase " + i, i % 3 != 0, valid[i]);
+        }
+    }
+
+    @Test
+    public void throwingCheckCountsAsInvalid() throws Exception
+    {
+        List<ParsedPurchase> purchases = purchases(32, 0);
+        PurchaseBatchVerifier verifier = new PurchaseBatchVerifier(BillingExecutors.verification(), 4);
+
+        boolean[] valid = verifier.verify(purchases, purchase ->
+        {
+            if (purchase.productId.equals("sku20"))
+            {
+                throw new IllegalArgumentException();
+            }
+            return true;
+        });
+
+        for (int i = 0; i < valid.length; i++)
+        {
+            assertEquals("purchase " + i, i != 20, valid[i]);
+        }
+    }
+
+    @Test
+    public void emptyBatch()
+    {
+        PurchaseBatchVerifier verifier = new PurchaseBatchVerifier(REJECTING, 4);
+
+        assertEquals(0, verifier.verify(new ArrayList<ParsedPurchase>(), SIGNATURE).length);
+    }
+}
@@ -0,0 +1,50 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * {@link PurchaseInfo#getPurchaseData()} answers with the deprecated {@code purchaseData}
+ * field, whether the purchase JSON was parsed or its fields were already decoded, and
+ * constructing a {@code PurchaseInfo} never fails on bad data.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+@SuppressWarnings("deprecation")
+public class PurchaseInfoPurchaseDataTest
+{
+    @Test
+    public void malformedDataHasNoPurchaseData()
+    {
+        PurchaseInfo info = new PurchaseInfo("not json", "signature");
+
+        assertEquals("not json", info.responseData);
+        assertNull(info.purchaseData);
+        assertNull(info.getPurchaseData());
+    }
+
+    @Test
+    public void accessorAndFieldAgree()
+    {
+        PurchaseInfo info = new PurchaseInfo(BillingCacheTest.purchaseJson("sku"), "signature");
+
+        assertEquals("sku", info.getPurchaseData().productId);
+        assertSame(info.purchaseData, info.getPurchaseData());
+    }
+
+    @Test
+    public void decodedPurchaseFillsTheField() throws Exception
+    {
+        PurchaseInfo info = PurchaseJsonParser.parse(BillingCacheTest.purchaseJson("sku"), "signature")
+                .toPurchaseInfo("");
+
+        assertEquals("sku", info.purchaseData.productId);
+        assertSame(info.purchaseData, info.getPurchaseData());
+    }
+}
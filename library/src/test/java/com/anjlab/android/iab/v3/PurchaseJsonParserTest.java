@@ -0,0 +1,141 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * {@link PurchaseJsonParser} must read purchase JSON the way the {@code JSONObject} code
+ * it replaced did, including its lenient coercions. How much faster it is gets measured on
+ * a device, by the instrumented {@code PurchaseJsonParserBenchmark}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class PurchaseJsonParserTest
+{
+    private static final String TOKEN = "hjkofllmdlbebfoioeghpban.AO-J1OzmD1Qh2CNX5mLbNvUoR7b6L5F0yyPqLBXYD"
+            + "Xqq3L7nNi1sR8o2kKWtQH0dR46VwWAqW3c2eTNu7RL0k4I5w4WnqPEUb6Nl7kIlz7hM0ZN4jA";
+
+    /**
+     * A one-time product purchase as {@code Purchase.getOriginalJson()} returns it.
+     */
+    static String inAppPurchaseJson(String productId)
+    {
+        return "{\"orderId\":\"GPA.3377-4478-2719-53116\",\"packageName\":\"com.example.app\","
+                + "\"productId\":\"" + productId + "\",\"purchaseTime\":1718292135842,"
+                + "\"purchaseState\":0,\"purchaseToken\":\"" + TOKEN + "\","
+                + "\"obfuscatedAccountId\":\"a1b2c3d4e5\",\"quantity\":1,\"acknowledged\":false}";
+    }
+
+    /**
+     * A subscription purchase as {@code Purchase.getOriginalJson()} returns it.
+     */
+    static String subscriptionPurchaseJson(String productId)
+    {
+        return "{\"orderId\":\"GPA.3349-2171-7305-80771..0\",\"packageName\":\"com.example.app\","
+                + "\"productId\":\"" + productId + "\",\"purchaseTime\":1718292135842,"
+                + "\"purchaseState\":0,\"purchaseToken\":\"" + TOKEN + "\","
+                + "\"obfuscatedAccountId\":\"a1b2c3d4e5\",\"obfuscatedProfileId\":\"p-42\","
+                + "\"quantity\":1,\"autoRenewing\":true,\"acknowledged\":true,"
+                + "\"productIds\":[\"" + productId + "\"],"
+                + "\"accountIdentifiers\":{\"obfuscatedAccountId\":\"a1b2c3d4e5\"}}";
+    }
+
+    /**
+     * The parser this class replaced, kept as the reference behavior.
+     */
+    private static PurchaseData parseWithJsonObject(String json) throws JSONException
+    {
+        JSONObject object = new JSONObject(json);
+        PurchaseData data = new PurchaseData();
+        data.orderId = object.optString(Constants.RESPONSE_ORDER_ID);
+        data.packageName = object.optString(Constants.RESPONSE_PACKAGE_NAME);
+        data.productId = object.optString(Constants.RESPONSE_PRODUCT_ID);
+        long purchaseTimeMillis = object.optLong(Constants.RESPONSE_PURCHASE_TIME, 0);
+        data.purchaseTime = purchaseTimeMillis != 0 ? new Date(purchaseTimeMillis) : null;
+        data.purchaseState = PurchaseJsonParser.toPurchaseState(
+                object.optInt(Constants.RESPONSE_PURCHASE_STATE, PurchaseState.Canceled.ordinal()));
+        data.purchaseToken = object.getString(Constants.RESPONSE_PURCHASE_TOKEN);
+        data.autoRenewing = object.optBoolean(Constants.RESPONSE_AUTO_RENEWING);
+        return data;
+    }
+
+    private static void assertSameAsJsonObject(String json) throws Exception
+    {
+        PurchaseData expected = parseWithJsonObject(json);
+        ParsedPurchase parsed = PurchaseJsonParser.parse(json, "signature");
+        PurchaseData actual = parsed.toPurchaseData(null);
+
+        assertEquals(expected.orderId, actual.orderId);
+        assertEquals(expected.packageName, actual.packageName);
+        assertEquals(expected.productId, actual.productId);
+        assertEquals(expected.purchaseTime, actual.purchaseTime);
+        assertEquals(expected.purchaseState, actual.purchaseState);
+        assertEquals(expected.purchaseToken, actual.purchaseToken);
+        assertEquals(expected.autoRenewing, actual.autoRenewing);
+        assertEquals(new JSONObject(json).has(Constants.RESPONSE_AUTO_RENEWING), parsed.hasAutoRenewing);
+        assertEquals(json, parsed.json);
+        assertEquals("signature", parsed.signature);
+    }
+
+    @Test
+    public void matchesJsonObjectOnRealisticPayloads() throws Exception
+    {
+        assertSameAsJsonObject(inAppPurchaseJson("premium"));
+        assertSameAsJsonObject(subscriptionPurchaseJson("monthly"));
+    }
+
+    @Test
+    public void matchesJsonObjectCoercions() throws Exception
+    {
+        assertSameAsJsonObject("{\"purchaseToken\":\"t\"}");
+        assertSameAsJsonObject("{\"purchaseToken\":\"t\",\"purchaseTime\":\"1718292135842\","
+                + "\"purchaseState\":\"4\",\"autoRenewing\":\"true\"}");
+        assertSameAsJsonObject("{\"purchaseToken\":\"t\",\"purchaseState\":\"bogus\",\"autoRenewing\":false}");
+        assertSameAsJsonObject("{\"purchaseToken\":12345,\"productId\":7}");
+        assertSameAsJsonObject("{\"extra\":{\"productId\":\"nested\"},\"purchaseToken\":\"t\",\"productId\":\"top\"}");
+        assertSameAsJsonObject("{\"productId\":\"\\u00e9t\\u00e9\",\"purchaseToken\":\"t\\\"q\"}");
+    }
+
+    @Test(expected = IOException.class)
+    public void missingTokenIsRejected() throws IOException
+    {
+        PurchaseJsonParser.parse("{\"productId\":\"sku\"}", null);
+    }
+
+    @Test(expected = IOException.class)
+    public void nullTokenIsRejected() throws IOException
+    {
+        PurchaseJsonParser.parse("{\"productId\":\"sku\",\"purchaseToken\":null}", null);
+    }
+
+    @Test(expected = IOException.class)
+    public void nonObjectIsRejected() throws IOException
+    {
+        PurchaseJsonParser.parse("[\"purchaseToken\"]", null);
+    }
+
+    @Test
+    public void developerPayloadIsPassedThrough() throws IOException
+    {
+        assertEquals("payload", PurchaseJsonParser.parse(inAppPurchaseJson("sku"), null)
+                .toPurchaseData("payload").developerPayload);
+    }
+
+    @Test
+    public void autoRenewingPresenceIsTracked() throws IOException
+    {
+        assertFalse(PurchaseJsonParser.parse(inAppPurchaseJson("sku"), null).hasAutoRenewing);
+        assertTrue(PurchaseJsonParser.parse(subscriptionPurchaseJson("sku"), null).hasAutoRenewing);
+    }
+}
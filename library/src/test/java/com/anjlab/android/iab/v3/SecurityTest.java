@@ -0,0 +1,107 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Base64;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+
+/**
+ * Signature checks in {@link Security} against a freshly generated key pair, standing in
+ * for the Play Console license key. Verifications per second are measured on a device, by
+ * the instrumented {@code SecurityBenchmark}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class SecurityTest
+{
+    static KeyPair keyPair;
+    static String licenseKey;
+
+    @Before
+    public void setUp() throws GeneralSecurityException
+    {
+        generateKeys();
+    }
+
+    /**
+     * RSA key generation is slow; one pair serves every test, including other classes.
+     */
+    static void generateKeys() throws GeneralSecurityException
+    {
+        if (keyPair == null)
+        {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            keyPair = generator.generateKeyPair();
+            licenseKey = Base64.encodeToString(keyPair.getPublic().getEncoded(), Base64.NO_WRAP);
+        }
+    }
+
+    static String sign(PrivateKey key, String data) throws GeneralSecurityException
+    {
+        Signature signature = Signature.getInstance("SHA1withRSA");
+        signature.initSign(key);
+        signature.update(data.getBytes(StandardCharsets.UTF_8));
+        return Base64.encodeToString(signature.sign(), Base64.NO_WRAP);
+    }
+
+    @Test
+    public void acceptsSignedDataAndRejectsTamperedData() throws GeneralSecurityException
+    {
+        String json = BillingCacheTest.purchaseJson("sku");
+        String signature = sign(keyPair.getPrivate(), json);
+
+        assertTrue(Security.verifyPurchase("sku", licenseKey, json, signature));
+        assertFalse(Security.verifyPurchase("sku", licenseKey, json.replace("sku", "skv"), signature));
+    }
+
+    @Test
+    public void licenseKeyIsDecodedOnce()
+    {
+        assertSame(Security.getPublicKey(licenseKey), Security.getPublicKey(licenseKey));
+    }
+
+    @Test
+    public void warmUpToleratesAnInvalidKey()
+    {
+        Security.warmUp("not a key");
+    }
+
+    @Test
+    public void verifierRecoversAfterARejectedSignatureAndAKeyChange() throws GeneralSecurityException
+    {
+        String json = BillingCacheTest.purchaseJson("sku");
+        String signature = sign(keyPair.getPrivate(), json);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair other = generator.generateKeyPair();
+
+        assertFalse(Security.verify(keyPair.getPublic(), json, sign(other.getPrivate(), json)));
+        assertTrue(Security.verify(keyPair.getPublic(), json, signature));
+        assertTrue(Security.verify(other.getPublic(), json, sign(other.getPrivate(), json)));
+        assertTrue(Security.verify(keyPair.getPublic(), json, signature));
+    }
+
+    @Test
+    public void signedDataIsHashedAsUtf8() throws GeneralSecurityException
+    {
+        String json = BillingCacheTest.purchaseJson("caf\u00e9_\u6f22\u5b57");
+
+        assertTrue(Security.verify(keyPair.getPublic(), json, sign(keyPair.getPrivate(), json)));
+    }
+}
@@ -0,0 +1,94 @@
+package com.anjlab.android.iab.v3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Base64;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+
+/**
+ * {@link VerificationCache} answers repeated checks of the same purchase from memory,
+ * remembers rejections as well as acceptances, and forgets everything when the license
+ * key changes.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class VerificationCacheTest
+{
+    private String json;
+    private String signature;
+
+    @Before
+    public void setUp() throws GeneralSecurityException
+    {
+        SecurityTest.generateKeys();
+        json = BillingCacheTest.purchaseJson("sku");
+        signature = SecurityTest.sign(SecurityTest.keyPair.getPrivate(), json);
+    }
+
+    @Test
+    public void repeatedCheckIsAHit()
+    {
+        VerificationCache cache = new VerificationCache(VerificationCache.DEFAULT_CAPACITY);
+
+        assertTrue(cache.verifyPurchase("sku", SecurityTest.licenseKey, json, signature));
+        assertTrue(cache.verifyPurchase("sku", SecurityTest.licenseKey, json, signature));
+
+        CacheStats stats = cache.stats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(1, stats.getSize());
+    }
+
+    @Test
+    public void rejectionIsRemembered()
+    {
+        VerificationCache cache = new VerificationCache(VerificationCache.DEFAULT_CAPACITY);
+        String tampered = json.replace("sku", "skv");
+
+        assertFalse(cache.verifyPurchase("skv", SecurityTest.licenseKey, tampered, signature));
+        assertFalse(cache.verifyPurchase("skv", SecurityTest.licenseKey, tampered, signature));
+
+        assertEquals(1, cache.stats().getHitCount());
+    }
+
+    @Test
+    public void newLicenseKeyDropsRememberedResults() throws GeneralSecurityException
+    {
+        VerificationCache cache = new VerificationCache(VerificationCache.DEFAULT_CAPACITY);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        String otherKey = Base64.encodeToString(
+                generator.generateKeyPair().getPublic().getEncoded(), Base64.NO_WRAP);
+
+        assertTrue(cache.verifyPurchase("sku", SecurityTest.licenseKey, json, signature));
+        assertFalse(cache.verifyPurchase("sku", otherKey, json, signature));
+
+        assertEquals(1, cache.stats().getSize());
+        assertEquals(0, cache.stats().getHitCount());
+    }
+
+    @Test
+    public void capacityIsBounded() throws GeneralSecurityException
+    {
+        VerificationCache cache = new VerificationCache(2);
+        for (String productId : new String[] { "a", "b", "c" })
+        {
+            String data = BillingCacheTest.purchaseJson(productId);
+            cache.verifyPurchase(productId, SecurityTest.licenseKey, data,
+                    SecurityTest.sign(SecurityTest.keyPair.getPrivate(), data));
+        }
+
+        assertEquals(2, cache.stats().getSize());
+        assertEquals(1, cache.stats().getEvictionCount());
+    }
+}